@@ -5,6 +5,7 @@ import org.c4i.nlp.ph3.tokenize.Token;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.TreeSet;
 
 /**
@@ -19,7 +20,7 @@ import java.util.TreeSet;
  *
  */
 public class CNFTransform {
-    private static final String AND = "&", OR  = "|", NOT = "-";
+    private static final String AND = "&", OR  = "|", NOT = "-", NEAR = "NEAR/", COUNT = "COUNT{";
 
     /**
      * Every propositional formula can be converted into an equivalent formula that is in CNF.
@@ -219,29 +220,126 @@ public class CNFTransform {
         }
 
         if(node.isOperator("A")){
-            return new Literal(new Token(node.left().getValue()).setMatchOnNormalized(true), negated);
+            return parsed(new Literal(new Token(node.left().getValue()).setMatchOnNormalized(true), negated), new BitSet());
         } else if(node.isOperator("E")){
-            return new Literal(new Token(node.left().getValue()).setMatchOnNormalized(false), negated);
+            return parsed(new Literal(new Token(node.left().getValue()).setMatchOnNormalized(false), negated), new BitSet());
         } else if("?".equals(node.getValue())){
-            return new Literal(new Token(node.getValue()).setMatchOnNormalized(false), negated);
+            return parsed(new Literal(new Token(node.getValue()).setMatchOnNormalized(false), negated), new BitSet());
         } else if("+".equals(node.getValue())){
-            return new Literal(new Token(node.getValue()).setMatchOnNormalized(false), negated);
+            return parsed(new Literal(new Token(node.getValue()).setMatchOnNormalized(false), negated), new BitSet());
         } else if("*".equals(node.getValue())){
-            return new Literal(new Token(node.getValue()).setMatchOnNormalized(false), negated);
-        } else if(node.isOperator("_")){
-            Literal left = doLiteral(node.left());
-            Literal right = doLiteral(node.right());
-            // concat arrays from left and right
-            Token[] tokens = Arrays.copyOf(left.tokens, left.tokens.length + right.tokens.length);
-            System.arraycopy(right.tokens, 0, tokens, left.tokens.length, right.tokens.length);
-            return new Literal(tokens, negated, 'a');
+            return parsed(new Literal(new Token(node.getValue()).setMatchOnNormalized(false), negated), new BitSet());
+        } else if(isGap(node)){
+            ArrayList<Token> tokens = new ArrayList<>();
+            BitSet operators = new BitSet();
+            operator(node.getValue(), tokens, operators);
+            return checked(parsed(new Literal(tokens.get(0), negated), operators));
+        } else if(node.isOperator("_") || node.isOperator("[")){
+            ArrayList<Token> tokens = new ArrayList<>();
+            BitSet operators = new BitSet();
+            doSequence(node, tokens, operators);
+            return checked(parsed(new Literal(tokens.toArray(new Token[tokens.size()]), negated, 'a'), operators));
+        } else if(isNear(node)){
+            // a proximity literal: the tokens of both operands, separated by the NEAR/k token
+            ArrayList<Token> tokens = new ArrayList<>();
+            BitSet operators = new BitSet();
+            doSequence(node.left(), tokens, operators);
+            operator(node.getOperator(), tokens, operators);
+            doSequence(node.right(), tokens, operators);
+            return checked(parsed(new Literal(tokens.toArray(new Token[tokens.size()]), negated, 'a'), operators));
+        } else if(isCount(node)){
+            // a count literal: the counted word, followed by the COUNT{m,n} token
+            ArrayList<Token> tokens = new ArrayList<>();
+            BitSet operators = new BitSet();
+            tokens.add(doLiteral(node.left()).tokens[0]);
+            operator(node.getOperator(), tokens, operators);
+            return checked(parsed(new Literal(tokens.toArray(new Token[tokens.size()]), negated, 'a'), operators));
         } else if(node.isOperator("#")){
-            return new Literal(new Token(node.left().left().getValue()).setMatchOnNormalized(false), negated, '#');
+            return parsed(new Literal(new Token(node.left().left().getValue()).setMatchOnNormalized(false), negated, '#'), new BitSet());
         } else {
             throw new IllegalStateException("Unexpected node in CNF expression: " + node);
         }
     }
 
+    private static Literal checked(Literal lit){
+        if(lit.isGrouped()){
+            // fail early on a sequence that can not be matched
+            SequenceMatcher.of(lit);
+        }
+        return lit;
+    }
+
+    /**
+     * Record which tokens of a literal the grammar made operators, so words with the same text are not, see {@link Literal#operators}.
+     */
+    private static Literal parsed(Literal lit, BitSet operators){
+        lit.operators = new boolean[lit.tokens.length];
+        for (int i = operators.nextSetBit(0); i >= 0; i = operators.nextSetBit(i + 1)) {
+            lit.operators[i] = true;
+        }
+        return lit;
+    }
+
+    /**
+     * The tokens of a part of a sequence. Alternatives and optional parts are kept as groups,
+     * delimited by ( | ) and [ ] tokens, instead of expanding them to a literal per combination.
+     * @param operators receives the indices of the tokens that are operators
+     */
+    private static void doSequence(MatchNode node, ArrayList<Token> tokens, BitSet operators){
+        if(node.isOperator("_")){
+            doSequence(node.left(), tokens, operators);
+            doSequence(node.right(), tokens, operators);
+        } else if(node.isOperator(OR)){
+            operator("(", tokens, operators);
+            doAlternatives(node, tokens, operators);
+            operator(")", tokens, operators);
+        } else if(node.isOperator("[")){
+            operator("[", tokens, operators);
+            doAlternatives(node.left(), tokens, operators);
+            operator("]", tokens, operators);
+        } else if(isGap(node)){
+            // a bounded gap, that may be empty by itself
+            operator(node.getValue(), tokens, operators);
+        } else if(node.isOperator(NOT) && !isNear(node.left()) && !isCount(node.left())){
+            // as before groups existed: the negation of a term of a sequence is ignored, -c_c is c_c
+            doSequence(node.left(), tokens, operators);
+        } else if(node.isOperator(AND) || node.isOperator(NOT) || isNear(node) || isCount(node)){
+            throw new IllegalArgumentException("Only words, wildcards, alternatives and optional parts can be part of a sequence: " + node.eval());
+        } else {
+            tokens.addAll(Arrays.asList(doLiteral(node).tokens));
+        }
+    }
+
+    private static void doAlternatives(MatchNode node, ArrayList<Token> tokens, BitSet operators){
+        if(node.isOperator(OR)){
+            doAlternatives(node.left(), tokens, operators);
+            operator("|", tokens, operators);
+            doAlternatives(node.right(), tokens, operators);
+        } else {
+            doSequence(node, tokens, operators);
+        }
+    }
+
+    private static boolean isNear(MatchNode node){
+        return node.getOperator() != null && node.getOperator().startsWith(NEAR);
+    }
+
+    private static boolean isCount(MatchNode node){
+        return node.getOperator() != null && node.getOperator().startsWith(COUNT);
+    }
+
+    /**
+     * @return whether the node is a bounded gap {m,n} of the grammar, and not a quoted word
+     */
+    private static boolean isGap(MatchNode node){
+        return node.isLeaf() && node.getValue().startsWith("{");
+    }
+
+    private static void operator(String word, ArrayList<Token> tokens, BitSet operators){
+        operators.set(tokens.size());
+        tokens.add(new Token(word).setMatchOnNormalized(false));
+    }
+
     /**
      * Simplify expression
      * <code>
@@ -0,0 +1,960 @@
+package org.c4i.nlp.ph3.match;
+
+import org.c4i.nlp.ph3.tokenize.Token;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state of evaluating the rules of a rule set against a document: the text in the forms the evaluator
+ * can use, the literal occurrences that are found once for all rules, and the ranges of the clauses and rules.
+ * <p>
+ * A context can be reused for many documents, by one thread at a time (see {@link MatchEval#eval(EvalContext, Token[])}).
+ * Between documents, only the entries that were changed are reset, so evaluation does not allocate,
+ * until the matches are turned into {@link MatchRange}s.
+ * The matches of the last document can be read from the context until the next document is evaluated.
+ * <p>
+ * The work per document can be limited with a timeout or a budget (see {@link #setTimeout(long, TimeUnit)}).
+ * When the limit is reached, the remaining rules are not evaluated: the matches so far are kept,
+ * and {@link #isEvaluated(int)} tells which rules were decided.
+ */
+public class EvalContext {
+
+    /** Start of the range of a clause that is true, but of which the range is not known yet */
+    static final int TRUE = -3;
+
+    private static final int[] NONE = new int[0];
+    /** the amount of work between two checks of the clock */
+    private static final long CHECK_INTERVAL = 1 << 12;
+
+    /** the original tokens, or null when the text was encoded elsewhere */
+    Token[] tokens;
+    /** the number of tokens */
+    int length;
+    /** optional positional index of the tokens */
+    TokenIndex index;
+    /** vocabulary ids of the normalized and exact forms of the tokens, at the first length positions (optional) */
+    int[] normalized, exact;
+    /**
+     * bitset of the vocabulary ids of the normalized and exact forms of the tokens,
+     * to skip rules of which none of the required words occur (optional)
+     */
+    long[] terms;
+    /** the rules to evaluate (optional) */
+    final MatchRuleSet ruleSet;
+    /**
+     * first occurrences of the literals in the literal table of the rule set (optional),
+     * see {@link LiteralAutomaton#first(int[], int[])}
+     */
+    int[] hits;
+    /** for rule id i: the range of the rule at [2*i] and [2*i + 1], both -1 when it does not match (optional) */
+    int[] ruleRanges;
+    /**
+     * for clause id i: the range of the clause at [2*i] and [2*i + 1], -1 when false, {@link #TRUE} when true,
+     * or {@link LiteralAutomaton#NOT_EVALUATED} when not known yet (optional)
+     */
+    int[] clauseRanges;
+    /** the order in which rules are evaluated, null for the original order */
+    RuleStatistics.Plan plan;
+    /** whether to collect statistics while evaluating */
+    boolean measure;
+
+    /** ascending positions in the evaluation order of the rules to evaluate, or null to evaluate all rules */
+    int[] selection;
+
+    /** the limits per document: nanoseconds and work, Long.MAX_VALUE when there is no limit */
+    private long timeout = Long.MAX_VALUE, budget = Long.MAX_VALUE;
+    /** whether there is a limit */
+    private boolean limited;
+    /** the limits of the current document */
+    private long deadline, work;
+    /** the work since the clock was checked */
+    private long unchecked;
+    /** whether a limit of the current document was reached: nothing more is evaluated */
+    boolean expired;
+    /** the position in the evaluation order of the first rule that was not evaluated, or -1 when all rules were */
+    int stopped = -1;
+    /** the first positions of the segments of the text, see {@link Token#getSegment()}, when the rule set has segmented rules */
+    int[] segments = NONE;
+    int segmentCount;
+    /** a context to evaluate the segments of the text with, created when first needed */
+    private EvalContext segmentContext;
+
+    /** per rule id: the number of the last document it was evaluated against, so nothing has to be cleared */
+    private int[] evaluated;
+    /** the number of the current document */
+    private int generation = 1;
+    /**
+     * per counted word of the rule set (see {@link MatchRuleSet#countedWords}): the number of occurrences,
+     * the start of the first and the end of the last, for the document with the number countedGeneration
+     */
+    private int[] counts = NONE;
+    private int countedGeneration;
+    /** whether the counts are of a text that grows, see {@link #addCounts(int[], int[], int, int, int)}, and are kept for all documents */
+    private boolean growing;
+
+    /** the literals of which the hits were changed */
+    int[] touchedLiterals = NONE;
+    int touchedLiteralCount;
+    /** the clauses of which the range was changed */
+    private int[] touchedClauses = NONE;
+    private int touchedClauseCount;
+    /** the matching rules, in evaluation order */
+    private int[] matches = NONE;
+    private int matchCount;
+    /** the rules evaluated by generated code, which may have changed the hits of their literals */
+    private int[] compiled = NONE;
+    private int compiledCount;
+
+    /** encoded tokens, when encoded by this context */
+    private int[] normalizedBuffer, exactBuffer;
+    private boolean ownText;
+    private final int[] scanStates = new int[2];
+    private final LiteralAutomaton.Hits collector;
+
+    /**
+     * A context to evaluate the rules of a rule set with, for one document at a time.
+     * @param ruleSet the rules to evaluate
+     */
+    public EvalContext(MatchRuleSet ruleSet) {
+        this.ruleSet = ruleSet;
+        this.hits = ruleSet.automaton.first(NONE, NONE);
+        this.ruleRanges = new int[2 * ruleSet.ruleArray.length];
+        Arrays.fill(ruleRanges, -1);
+        this.clauseRanges = new int[2 * ruleSet.clauses.length];
+        Arrays.fill(clauseRanges, LiteralAutomaton.NOT_EVALUATED);
+        this.terms = ruleSet.termWords > 0 ? new long[ruleSet.termWords] : null;
+        this.evaluated = new int[ruleSet.ruleArray.length];
+        this.counts = new int[3 * ruleSet.countedWords.length];
+        this.collector = (id, start, end) -> {
+            // patterns have a fixed length: the first end is also the first start
+            if(hits[2 * id] < 0){
+                hits[2 * id] = start;
+                hits[2 * id + 1] = end;
+                touchedLiterals = push(touchedLiterals, touchedLiteralCount++, id);
+            }
+        };
+    }
+
+    /**
+     * A context that only has its own clause ranges, and borrows the rest, see {@link #borrow(EvalContext)}.
+     */
+    private EvalContext(MatchRuleSet ruleSet, int[] clauseRanges) {
+        this.ruleSet = ruleSet;
+        this.clauseRanges = clauseRanges;
+        this.collector = null;
+    }
+
+    /**
+     * @return a context to evaluate some rules of the documents of other contexts with
+     */
+    static EvalContext worker(MatchRuleSet ruleSet){
+        final int[] clauseRanges = new int[2 * ruleSet.clauses.length];
+        Arrays.fill(clauseRanges, LiteralAutomaton.NOT_EVALUATED);
+        return new EvalContext(ruleSet, clauseRanges);
+    }
+
+    /**
+     * Evaluate rules of the document of another context, that is being evaluated by other threads at the same time:
+     * read its text and occurrences, and write the ranges of the rules to it, but keep the ranges of the clauses.
+     * The occurrences of all literals should be known already, and only rules that do not look each other up
+     * should be evaluated at the same time, see {@link MatchEval#evalParallel(MatchRuleSet, Token[], ForkJoinPool)}.
+     * @param doc the context of the document
+     */
+    void borrow(EvalContext doc){
+        this.tokens = doc.tokens;
+        this.index = doc.index;
+        this.length = doc.length;
+        this.normalized = doc.normalized;
+        this.exact = doc.exact;
+        this.terms = doc.terms;
+        this.hits = doc.hits;
+        this.ruleRanges = doc.ruleRanges;
+        this.plan = doc.plan;
+        this.measure = false;
+    }
+
+    /**
+     * Stop evaluating the rules of another context: forget it and reset the clause ranges.
+     * The matches are kept in the ranges of the rules of the other context.
+     */
+    void giveBack(){
+        for (int k = 0; k < touchedClauseCount; k++) {
+            int c = touchedClauses[k];
+            clauseRanges[2 * c] = clauseRanges[2 * c + 1] = LiteralAutomaton.NOT_EVALUATED;
+        }
+        touchedClauseCount = 0;
+        matchCount = 0;
+        compiledCount = 0;
+        tokens = null;
+        index = null;
+        normalized = exact = null;
+        terms = null;
+        hits = ruleRanges = null;
+        plan = null;
+    }
+
+    /**
+     * A single document, without rule set.
+     */
+    EvalContext(Token[] tokens) {
+        this.ruleSet = null;
+        this.collector = null;
+        this.tokens = tokens;
+        this.length = tokens.length;
+    }
+
+    /**
+     * A single document, without rule set.
+     */
+    EvalContext(TokenIndex index) {
+        this(index.tokens);
+        this.index = index;
+    }
+
+    /**
+     * Use a text for the next evaluation, after clearing the previous one.
+     * @param tokens the text
+     * @return this
+     */
+    EvalContext load(Token[] tokens){
+        clear();
+        start();
+        this.tokens = tokens;
+        this.index = null;
+        this.length = tokens.length;
+        normalizedBuffer = ruleSet.vocabulary.normalizedIds(tokens, normalizedBuffer);
+        exactBuffer = ruleSet.vocabulary.exactIds(tokens, exactBuffer);
+        this.normalized = normalizedBuffer;
+        this.exact = exactBuffer;
+        this.ownText = true;
+        if(ruleSet.segmentSelection != null){
+            for (int i = 0; i < tokens.length; i++) {
+                if(i == 0 || tokens[i].getSegment() != tokens[i - 1].getSegment()){
+                    segments = push(segments, segmentCount++, i);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Use a segment of the text of another context for the next evaluation, after clearing the previous one.
+     * @param doc the context of the whole text
+     * @param from the first position of the segment
+     * @param to the position after the segment
+     * @return this
+     */
+    EvalContext loadSegment(EvalContext doc, int from, int to){
+        loadSegment(doc.tokens, doc.normalized, doc.exact, from, to);
+        this.plan = doc.plan;
+        return this;
+    }
+
+    /**
+     * Use a segment of an encoded text for the next evaluation, after clearing the previous one.
+     * @param tokens the tokens of the text, or null when unknown
+     * @param normalized the normalized codes of the text
+     * @param exact the exact codes of the text
+     * @param from the first position of the segment
+     * @param to the position after the segment
+     * @return this
+     */
+    EvalContext loadSegment(Token[] tokens, int[] normalized, int[] exact, int from, int to){
+        clear();
+        start();
+        final int n = to - from;
+        if(normalizedBuffer == null || normalizedBuffer.length < n){
+            normalizedBuffer = new int[Math.max(n, 16)];
+            exactBuffer = new int[Math.max(n, 16)];
+        }
+        System.arraycopy(normalized, from, normalizedBuffer, 0, n);
+        System.arraycopy(exact, from, exactBuffer, 0, n);
+        this.tokens = tokens == null ? null : Arrays.copyOfRange(tokens, from, to);
+        this.index = null;
+        this.length = n;
+        this.normalized = normalizedBuffer;
+        this.exact = exactBuffer;
+        this.ownText = true;
+        this.plan = ruleSet.statistics.plan();
+        this.measure = false;
+        return this;
+    }
+
+    /**
+     * @return the context to evaluate the segments of the text with
+     */
+    EvalContext segmentContext(){
+        if(segmentContext == null){
+            segmentContext = new EvalContext(ruleSet);
+        }
+        return segmentContext;
+    }
+
+    /**
+     * Use an indexed text for the next evaluation, after clearing the previous one.
+     * @param index the text
+     * @return this
+     */
+    EvalContext load(TokenIndex index){
+        load(index.tokens);
+        this.index = index;
+        return this;
+    }
+
+    /**
+     * Use an encoded text for the next evaluation, after clearing the previous one.
+     * @param normalized vocabulary ids of the normalized forms of the tokens
+     * @param exact vocabulary ids of the exact forms of the tokens
+     * @return this
+     */
+    EvalContext load(int[] normalized, int[] exact){
+        if(normalized.length != exact.length){
+            throw new IllegalArgumentException("The normalized and exact ids differ in length.");
+        }
+        clear();
+        start();
+        this.tokens = null;
+        this.index = null;
+        this.length = normalized.length;
+        this.normalized = normalized;
+        this.exact = exact;
+        this.ownText = false;
+        return this;
+    }
+
+    /**
+     * Only evaluate the rules of some labels, and the rules they look up, for every next document.
+     * Other rules do not match, so the cost depends on the labels asked for instead of the size of the rule set.
+     * @param labels heads of rules, or null to evaluate all rules
+     * @return this
+     */
+    public EvalContext select(Collection<String> labels){
+        this.selection = labels == null ? null : ruleSet.selection(labels);
+        return this;
+    }
+
+    /**
+     * Limit the time spent on every next document.
+     * @param timeout the time per document, from when it is loaded, or Long.MAX_VALUE for no limit
+     * @param unit the unit of the timeout
+     * @return this
+     */
+    public EvalContext setTimeout(long timeout, TimeUnit unit){
+        if(timeout < 0){
+            throw new IllegalArgumentException("The timeout should not be negative: " + timeout);
+        }
+        this.timeout = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : unit.toNanos(timeout);
+        this.limited = this.timeout != Long.MAX_VALUE || budget != Long.MAX_VALUE;
+        return this;
+    }
+
+    /**
+     * Limit the work spent on every next document. Looking for a literal in the text costs the length of the text,
+     * evaluating a rule costs 1. Unlike a timeout, the same document always gives the same result.
+     * @param budget the work per document, or Long.MAX_VALUE for no limit
+     * @return this
+     */
+    public EvalContext setBudget(long budget){
+        if(budget < 0){
+            throw new IllegalArgumentException("The budget should not be negative: " + budget);
+        }
+        this.budget = budget;
+        this.limited = timeout != Long.MAX_VALUE || budget != Long.MAX_VALUE;
+        return this;
+    }
+
+    /**
+     * Reset the limits and the evaluated rules for a new document, or a new evaluation of a growing document.
+     */
+    void start(){
+        expired = false;
+        stopped = -1;
+        if(++generation == 0){
+            // wrapped around: forget all documents
+            Arrays.fill(evaluated, 0);
+            countedGeneration = 0;
+            generation = 1;
+        }
+        if(limited){
+            work = budget;
+            unchecked = 0;
+            final long now = System.nanoTime();
+            deadline = timeout == Long.MAX_VALUE || now + timeout < now ? Long.MAX_VALUE : now + timeout;
+        }
+    }
+
+    /**
+     * Account for work before it is done. The clock is only checked now and then.
+     * @param amount the work to do
+     * @return false when a limit is reached: the work should not be done
+     */
+    boolean charge(long amount){
+        if(!limited){
+            return true;
+        } else if(expired){
+            return false;
+        }
+        work -= amount;
+        unchecked += amount;
+        if(work < 0){
+            expired = true;
+        } else if(unchecked >= CHECK_INTERVAL && deadline != Long.MAX_VALUE){
+            unchecked = 0;
+            expired = System.nanoTime() - deadline >= 0;
+        }
+        return !expired;
+    }
+
+    /**
+     * Account for the literals that generated code of a rule may look for.
+     * @return false when a limit is reached: the rule should not be evaluated
+     */
+    boolean chargeMatchers(MatchRule rule){
+        if(!limited || !RuleCompiler.isCompilable(rule)){
+            // interpreted rules are charged per literal
+            return true;
+        }
+        int n = 0;
+        for (int i = 0; rule.literalIds != null && i < rule.literalIds.length; i++) {
+            for (int j = 0; j < rule.literalIds[i].length; j++) {
+                int id = rule.literalIds[i][j];
+                if(rule.expression[i][j].meta != '#' && hits[2 * id] == LiteralAutomaton.NOT_EVALUATED){
+                    n++;
+                }
+            }
+        }
+        return charge((long) n * length);
+    }
+
+    /**
+     * @return whether all (selected) rules were evaluated against the last document, or a limit was reached
+     */
+    public boolean isComplete(){
+        return stopped < 0;
+    }
+
+    /**
+     * @param labelId the id of a label, see {@link MatchRuleSet#getLabelId(String)}
+     * @return whether the rule of the label was evaluated against the last document:
+     * if not, it is not known whether it matches
+     */
+    public boolean isEvaluated(int labelId){
+        return evaluated[labelId] == generation;
+    }
+
+    /**
+     * Record that a rule was evaluated completely against the current document.
+     */
+    void evaluated(int rule){
+        evaluated[rule] = generation;
+    }
+
+    /**
+     * @param position a position in the evaluation order
+     * @return whether the rule at the position should be evaluated
+     */
+    boolean isSelected(int position){
+        return selection == null || Arrays.binarySearch(selection, position) >= 0;
+    }
+
+    /**
+     * Find all literals of the automaton of the rule set, and the words of the text.
+     * @return this
+     */
+    EvalContext scan(){
+        scanOccurrences();
+        scanTerms();
+        return this;
+    }
+
+    /**
+     * Find all literals of the automaton of the rule set.
+     */
+    void scanOccurrences(){
+        scanStates[0] = scanStates[1] = 0;
+        ruleSet.automaton.scan(normalized, exact, 0, length, scanStates, collector);
+    }
+
+    /**
+     * Find the words of the text, see {@link #terms}.
+     */
+    void scanTerms(){
+        if(terms != null){
+            addTerms(terms, normalized, 0, length);
+            addTerms(terms, exact, 0, length);
+        }
+    }
+
+    /**
+     * Find the first occurrences of the literals of the automaton that end in a part of the text,
+     * without changing this context, so parts can be scanned at the same time.
+     * @param from the first end position - 1 of the part
+     * @param to the last end position of the part
+     * @return triples (literal id, start, end) of the first occurrence per literal
+     */
+    int[] scanPart(int from, int to){
+        final LiteralAutomaton automaton = ruleSet.automaton;
+        final Part part = new Part(automaton.size(), from);
+        // start early enough for an occurrence that ends at from + 1 to be found
+        automaton.scan(normalized, exact, Math.max(0, from - automaton.maxLength() + 1), to, new int[2], part);
+        return Arrays.copyOf(part.found, part.count);
+    }
+
+    /**
+     * Collects the first occurrence per literal that ends after a position.
+     */
+    private static final class Part implements LiteralAutomaton.Hits {
+        private final long[] seen;
+        private final int from;
+        private int[] found = NONE;
+        private int count;
+
+        Part(int literals, int from) {
+            this.seen = new long[(literals + 63) >> 6];
+            this.from = from;
+        }
+
+        @Override
+        public void hit(int id, int start, int end) {
+            if(end > from && (seen[id >> 6] & 1L << id) == 0){
+                seen[id >> 6] |= 1L << id;
+                if(count + 3 > found.length){
+                    found = Arrays.copyOf(found, Math.max(48, 2 * found.length));
+                }
+                found[count++] = id;
+                found[count++] = start;
+                found[count++] = end;
+            }
+        }
+    }
+
+    /**
+     * Add the occurrences of a part of the text, see {@link #scanPart(int, int)}.
+     * The parts should be added in the order of the text.
+     */
+    void addPart(int[] part){
+        for (int k = 0; k < part.length; k += 3) {
+            collector.hit(part[k], part[k + 1], part[k + 2]);
+        }
+    }
+
+    /**
+     * Set the first occurrence of a literal that is not covered by the automaton, see {@link #search(int)}.
+     */
+    void setHit(int id, long found){
+        hits[2 * id] = (int) (found >> 32);
+        hits[2 * id + 1] = (int) found;
+        touchedLiterals = push(touchedLiterals, touchedLiteralCount++, id);
+    }
+
+    /**
+     * Set the bits of word ids in a term bitset, ignoring the ids that do not fit.
+     * @param terms term bitset
+     * @param ids vocabulary ids
+     * @param from first position of the ids to add
+     * @param to position after the last id to add
+     */
+    static void addTerms(long[] terms, int[] ids, int from, int to){
+        for (int i = from; i < to; i++) {
+            int id = ids[i];
+            if(id >= 0 && id >> 6 < terms.length){
+                terms[id >> 6] |= 1L << id;
+            }
+        }
+    }
+
+    /**
+     * @param rule a rule of the rule set of this document
+     * @return false if none of the words that the rule requires occur in the document, see {@link MatchRule#requiredWords}
+     */
+    boolean mayMatch(MatchRule rule){
+        final int[] words = rule.requiredWords;
+        if(terms == null || words == null){
+            return true;
+        }
+        final long[] bits = rule.requiredBits;
+        for (int k = 0; k < words.length; k++) {
+            if((terms[words[k]] & bits[k]) != 0){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Make sure the first occurrence of a literal of the literal table is known.
+     * @param id literal table id
+     * @return whether the literal occurs, its range is at hits[2*id] and hits[2*id + 1]
+     */
+    boolean findLiteral(int id){
+        if(hits[2 * id] == LiteralAutomaton.NOT_EVALUATED){
+            if(!charge(length)){
+                // not known: the rule will be discarded
+                return false;
+            }
+            setHit(id, search(id));
+        }
+        return hits[2 * id] >= 0;
+    }
+
+    /**
+     * Look for a literal of the literal table, without changing this context.
+     * @param id literal table id
+     * @return the range of the first occurrence packed as start &lt;&lt; 32 | end, or -1 if not found
+     */
+    long search(int id){
+        final Literal lit = ruleSet.literals[id];
+        if(ruleSet.countOf[id] >= 0 && normalized != null){
+            // from the occurrences of the word, counted once for all counts of the document
+            final int[] counts = counts();
+            final int k = 3 * ruleSet.countOf[id];
+            return lit.matcher().countMatches(counts[k]) ? (long) counts[k + 1] << 32 | counts[k + 2] : -1;
+        }
+        if(index == null && normalized != null && lit.ids != null){
+            return lit.matcher().find(normalized, exact, length);
+        }
+        int[] range = findRange(lit);
+        return range == null ? -1 : (long) range[0] << 32 | range[1];
+    }
+
+    /**
+     * Count the occurrences of all counted words of the rule set in one pass over the encoded text,
+     * when first needed for the current document.
+     * @return per counted word: the number of occurrences, the start of the first and the end of the last
+     */
+    synchronized int[] counts(){
+        if(countedGeneration != generation && !growing){
+            final int[] words = ruleSet.countedWords;
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < length; i++) {
+                count(words, normalized[i] << 1, i);
+                count(words, exact[i] << 1 | 1, i);
+            }
+            countedGeneration = generation;
+        }
+        return counts;
+    }
+
+    /**
+     * Count the occurrences of the counted words of the rule set in tokens appended to a text that grows,
+     * see {@link MatchSession}. The counts are kept, instead of being counted again for the next document.
+     * @param normalized the normalized codes of the kept tokens
+     * @param exact the exact codes of the kept tokens
+     * @param from the first appended token
+     * @param to the end of the appended tokens
+     * @param offset the position in the text of the first kept token
+     * @return per counted word: the number of occurrences, the start of the first and the end of the last
+     */
+    synchronized int[] addCounts(int[] normalized, int[] exact, int from, int to, int offset){
+        final int[] words = ruleSet.countedWords;
+        if(words.length > 0){
+            for (int i = from; i < to; i++) {
+                count(words, normalized[i] << 1, offset + i);
+                count(words, exact[i] << 1 | 1, offset + i);
+            }
+        }
+        growing = true;
+        return counts;
+    }
+
+    private void count(int[] words, int code, int i){
+        final int k = code < 0 ? -1 : Arrays.binarySearch(words, code);
+        if(k >= 0){
+            if(counts[3 * k]++ == 0){
+                counts[3 * k + 1] = i;
+            }
+            counts[3 * k + 2] = i + 1;
+        }
+    }
+
+    /**
+     * @param rule rule id
+     * @return per word that the rule counts, e.g. by refund{3,}: the number of occurrences in the text
+     */
+    Map<String, Integer> counts(int rule){
+        final MatchRule r = ruleSet.ruleArray[rule];
+        if(counts.length == 0 || r.literalIds == null || normalized == null && !growing){
+            return Collections.emptyMap();
+        }
+        Map<String, Integer> result = Collections.emptyMap();
+        for (int i = 0; i < r.literalIds.length; i++) {
+            for (int j = 0; j < r.literalIds[i].length; j++) {
+                final int id = r.literalIds[i][j];
+                if(r.expression[i][j].meta != '#' && ruleSet.countOf[id] >= 0){
+                    if(result.isEmpty()){
+                        result = new HashMap<>();
+                    }
+                    result.put(r.expression[i][j].tokens[0].toString(), counts()[3 * ruleSet.countOf[id]]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param id literal table id
+     * @return the range of the first occurrence of the literal, or null if not found
+     */
+    int[] literalRange(int id){
+        return findLiteral(id) ? new int[]{hits[2 * id], hits[2 * id + 1]} : null;
+    }
+
+    /**
+     * Find the first occurrence of a literal, with the best means available.
+     * @param lit the literal to look for
+     * @return the range of the first occurrence, or null if not found (reversed when the literal is negated)
+     */
+    int[] findRange(Literal lit){
+        if(index != null){
+            return MatchEval.findRange(index, lit);
+        } else if(normalized != null && lit.ids != null){
+            long found = lit.matcher().find(normalized, exact, length);
+            if(lit.negated){
+                return found < 0 ? new int[]{0, length} : null;
+            }
+            return found < 0 ? null : new int[]{(int) (found >> 32), (int) found};
+        } else {
+            return MatchEval.findRange(tokens, lit);
+        }
+    }
+
+    /**
+     * Record that the range of a clause is set.
+     */
+    void clauseEvaluated(int clause){
+        touchedClauses = push(touchedClauses, touchedClauseCount++, clause);
+    }
+
+    /**
+     * Record that a rule matches, after its range is set.
+     */
+    void matched(int rule){
+        matches = push(matches, matchCount++, rule);
+    }
+
+    /**
+     * Record that a rule was evaluated by generated code.
+     */
+    void compiled(int rule){
+        compiled = push(compiled, compiledCount++, rule);
+    }
+
+    private static int[] push(int[] list, int size, int value){
+        if(size == list.length){
+            list = Arrays.copyOf(list, Math.max(16, 2 * size));
+        }
+        list[size] = value;
+        return list;
+    }
+
+    /**
+     * Reset everything that was changed by the last evaluation.
+     */
+    void clear(){
+        if(ruleSet == null){
+            return;
+        }
+        final LiteralAutomaton automaton = ruleSet.automaton;
+        for (int k = 0; k < touchedLiteralCount; k++) {
+            int id = touchedLiterals[k];
+            hits[2 * id] = hits[2 * id + 1] = automaton.covers(id) ? -1 : LiteralAutomaton.NOT_EVALUATED;
+        }
+        touchedLiteralCount = 0;
+        for (int k = 0; k < compiledCount; k++) {
+            MatchRule rule = ruleSet.ruleArray[compiled[k]];
+            for (int i = 0; i < rule.literalIds.length; i++) {
+                for (int j = 0; j < rule.literalIds[i].length; j++) {
+                    int id = rule.literalIds[i][j];
+                    if(rule.expression[i][j].meta != '#' && !automaton.covers(id)){
+                        hits[2 * id] = hits[2 * id + 1] = LiteralAutomaton.NOT_EVALUATED;
+                    }
+                }
+            }
+        }
+        compiledCount = 0;
+        clearRanges();
+        if(terms != null && length > 0){
+            if(ownText){
+                for (int i = 0; i < length; i++) {
+                    clearTerm(normalized[i]);
+                    clearTerm(exact[i]);
+                }
+            } else {
+                // the ids may have been changed since
+                Arrays.fill(terms, 0);
+            }
+        }
+        segmentCount = 0;
+        // do not keep the last document
+        length = 0;
+        tokens = null;
+        index = null;
+        normalized = exact = null;
+    }
+
+    private void clearTerm(int id){
+        if(id >= 0 && id >> 6 < terms.length){
+            terms[id >> 6] &= ~(1L << id);
+        }
+    }
+
+    /**
+     * Reset the ranges of the clauses and rules of the last evaluation, but keep the hits.
+     */
+    void clearRanges(){
+        for (int k = 0; k < touchedClauseCount; k++) {
+            int c = touchedClauses[k];
+            clauseRanges[2 * c] = clauseRanges[2 * c + 1] = LiteralAutomaton.NOT_EVALUATED;
+        }
+        touchedClauseCount = 0;
+        for (int k = 0; k < matchCount; k++) {
+            int rule = matches[k];
+            ruleRanges[2 * rule] = ruleRanges[2 * rule + 1] = -1;
+        }
+        matchCount = 0;
+    }
+
+    /**
+     * @return the number of rules that matched the last document
+     */
+    public int size(){
+        return matchCount;
+    }
+
+    int match(int k){
+        if(k < 0 || k >= matchCount){
+            throw new IndexOutOfBoundsException("Match " + k + " of " + matchCount);
+        }
+        return matches[k];
+    }
+
+    /**
+     * @param k index of a match, less than {@link #size()}
+     * @return the label of the rule of the k-th match, in evaluation order
+     */
+    public String label(int k){
+        return ruleSet.ruleArray[match(k)].head;
+    }
+
+    /**
+     * @param k index of a match, less than {@link #size()}
+     * @return the label id of the rule of the k-th match, see {@link MatchRuleSet#getLabelId(String)}
+     */
+    public int labelId(int k){
+        return match(k);
+    }
+
+    /**
+     * @param k index of a match, less than {@link #size()}
+     * @return the first token of the k-th match
+     */
+    public int tokenStart(int k){
+        return ruleRanges[2 * match(k)];
+    }
+
+    /**
+     * @param k index of a match, less than {@link #size()}
+     * @return the token after the k-th match
+     */
+    public int tokenEnd(int k){
+        return ruleRanges[2 * match(k) + 1];
+    }
+
+    /**
+     * @param k index of a match, less than {@link #size()}
+     * @return the first character of the k-th match, or -1 when the original tokens are unknown
+     */
+    public int charStart(int k){
+        return startChar(tokenStart(k));
+    }
+
+    /**
+     * @param k index of a match, less than {@link #size()}
+     * @return the character after the k-th match, or -1 when the original tokens are unknown
+     */
+    public int charEnd(int k){
+        return endChar(tokenEnd(k));
+    }
+
+    /**
+     * @return the first character of a token, or -1 when the original tokens are unknown
+     */
+    int startChar(int start){
+        return tokens != null && start < length ? tokens[start].getCharStart() : -1;
+    }
+
+    /**
+     * @return the character after the token before the end, or -1 when the original tokens are unknown
+     */
+    int endChar(int end){
+        return tokens != null && end > 0 ? tokens[end - 1].getCharEnd() : -1;
+    }
+
+    /**
+     * @param k index of a match, less than {@link #size()}
+     * @return the k-th match, including character offsets
+     */
+    public MatchRange range(int k){
+        final MatchRange range = new MatchRange(label(k), tokenStart(k), tokenEnd(k), charStart(k), charEnd(k));
+        range.counts = counts(match(k));
+        return range;
+    }
+
+    /**
+     * Pass the matches of the last document to a sink, in evaluation order.
+     * @param sink receives the matches
+     * @return the number of matches
+     */
+    public int forEach(MatchSink sink){
+        for (int k = 0; k < matchCount; k++) {
+            sink.match(matches[k], tokenStart(k), tokenEnd(k), charStart(k), charEnd(k));
+        }
+        return matchCount;
+    }
+
+    /**
+     * @param reuse a bitset to overwrite, if it is large enough (optional)
+     * @return the bitset of the label ids of the matches of the last document
+     */
+    public long[] labelBits(long[] reuse){
+        final int words = (ruleSet.ruleArray.length + 63) >> 6;
+        final long[] bits = reuse != null && reuse.length >= words ? reuse : new long[words];
+        Arrays.fill(bits, 0);
+        for (int k = 0; k < matchCount; k++) {
+            bits[matches[k] >> 6] |= 1L << matches[k];
+        }
+        return bits;
+    }
+
+    /**
+     * @return the matching labels of the last document
+     */
+    public Map<String, MatchRange> toMap(){
+        final Map<String, MatchRange> result = new HashMap<>(Math.max(4, 2 * matchCount));
+        for (int k = 0; k < matchCount; k++) {
+            MatchRange range = range(k);
+            result.put(range.getLabel(), range);
+        }
+        return result;
+    }
+
+    public MatchRuleSet getRuleSet() {
+        return ruleSet;
+    }
+
+    /**
+     * @param label the rule head
+     * @param start first token
+     * @param end the token after the range
+     * @return the range including character offsets, these are -1 when the original tokens are unknown
+     */
+    MatchRange toMatchRange(String label, int start, int end){
+        return new MatchRange(label, start, end, startChar(start), endChar(end));
+    }
+}
@@ -0,0 +1,48 @@
+package org.c4i.nlp.ph3.match;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The labels that matched a text within a limit, and the labels of the rules that were not evaluated
+ * before the limit was reached, see {@link MatchEval#eval(MatchRuleSet, org.c4i.nlp.ph3.tokenize.Token[], long, java.util.concurrent.TimeUnit)}.
+ * It is not known whether the rules that were not evaluated match.
+ */
+public class EvalResult {
+    final Map<String, MatchRange> labels;
+    final List<String> notEvaluated;
+
+    EvalResult(Map<String, MatchRange> labels, List<String> notEvaluated) {
+        this.labels = labels;
+        this.notEvaluated = notEvaluated;
+    }
+
+    /**
+     * @return the matching labels of the rules that were evaluated
+     */
+    public Map<String, MatchRange> getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return whether all rules were evaluated, so the labels are all matching labels
+     */
+    public boolean isComplete() {
+        return notEvaluated.isEmpty();
+    }
+
+    /**
+     * @return the labels of the rules that were not evaluated, in the order of definition
+     */
+    public List<String> notEvaluated() {
+        return notEvaluated;
+    }
+
+    @Override
+    public String toString() {
+        return "EvalResult{" +
+                "labels=" + labels +
+                ", notEvaluated=" + notEvaluated +
+                '}';
+    }
+}
@@ -4,6 +4,7 @@ import org.c4i.nlp.ph3.tokenize.Token;
 
 import java.util.Arrays;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * A literal is an atomic formula (in this case a sequence of tokens) or its negation.
@@ -21,6 +22,15 @@ public class Literal implements Comparable<Literal>{
     Token[] tokens;
     boolean negated;
     char meta;
+    /** vocabulary codes of the tokens, assigned when the rule set is compiled (see {@link Vocabulary#encode(Token[])}) */
+    int[] ids;
+    /**
+     * of a parsed literal: per token, whether the grammar made it a group, gap, proximity or count operator, so a quoted
+     * word such as "|" or "{2}" stays a word. Null when the literal was built from tokens, of which the text tells the operators.
+     */
+    boolean[] operators;
+    /** matcher of the token sequence, created when first needed */
+    private SequenceMatcher matcher;
 
     public Literal(Token[] tokens, boolean negated, char meta) {
         this.tokens = tokens;
@@ -44,15 +54,60 @@ public class Literal implements Comparable<Literal>{
         this(new Token[]{token}, false, 'a');
     }
 
+    /**
+     * @param i token index
+     * @return the code of the token when it is a wildcard or an operator, see {@link Vocabulary#special(String)},
+     * or {@link Vocabulary#UNKNOWN} when it is a word
+     */
+    int special(int i){
+        final int special = Vocabulary.special(tokens[i].getWord());
+        return special <= Vocabulary.GROUP_START && operators != null && !operators[i] ? Vocabulary.UNKNOWN : special;
+    }
+
     public Token[] getTokens() {
         return tokens;
     }
 
     public Literal setTokens(Token[] tokens) {
         this.tokens = tokens;
+        this.ids = null;
+        this.operators = null;
+        this.matcher = null;
         return this;
     }
 
+    /**
+     * @return the matcher of the token sequence, for the current vocabulary codes
+     */
+    SequenceMatcher matcher(){
+        SequenceMatcher m = matcher;
+        if(m == null || (ids != null && !m.hasCodes())){
+            matcher = m = SequenceMatcher.of(this);
+        }
+        return m;
+    }
+
+    /**
+     * Assign vocabulary codes, see {@link Vocabulary#encode(Token[])}.
+     */
+    void setIds(int[] ids){
+        this.ids = ids;
+        this.matcher = null;
+    }
+
+    /**
+     * @return whether the sequence has groups of alternatives, optional parts or bounded gaps,
+     * or is a proximity pattern <code>A NEAR/k B</code> or a count <code>refund{3,}</code>, see {@link SequenceMatcher}
+     */
+    boolean isGrouped(){
+        for (int i = 0; i < tokens.length; i++) {
+            if(special(i) <= Vocabulary.GROUP_START){
+                return true;
+            }
+        }
+        return false;
+    }
+
     public boolean isNegated() {
         return negated;
     }
@@ -93,12 +148,21 @@ public class Literal implements Comparable<Literal>{
 
     @Override
     public String toString() {
-        String tokens = Arrays.stream(this.tokens).map(Token::toString).collect(Collectors.joining("_"));
+        // a word that looks like an operator is quoted
+        String tokens = IntStream.range(0, this.tokens.length)
+                .mapToObj(i -> special(i) == Vocabulary.UNKNOWN && Vocabulary.special(this.tokens[i].getWord()) <= Vocabulary.GROUP_START
+                        ? '"' + this.tokens[i].getWord() + '"' : this.tokens[i].toString())
+                .collect(Collectors.joining("_"));
+        if(isGrouped()){
+            // the_(red|blue)_book
+            tokens = tokens.replaceAll("_?([|)\\]])", "$1").replaceAll("([(|\\[])_", "$1").replaceAll("_(NEAR/\\d+)_", " $1 ").replace("_COUNT{", "{");
+        }
         if(meta != 'a'){
             tokens = meta+tokens;
         }
         if(negated){
-            tokens = "-"+tokens;
+            // -(refund NEAR/3 order), as the operands bind stronger than the negation
+            tokens = tokens.contains(" NEAR/") ? "-(" + tokens + ")" : "-" + tokens;
         }
         return tokens;
     }
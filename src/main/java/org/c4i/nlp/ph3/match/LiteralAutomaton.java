@@ -0,0 +1,380 @@
+package org.c4i.nlp.ph3.match;
+
+import org.c4i.nlp.ph3.tokenize.Token;
+
+import java.util.*;
+
+/**
+ * Aho-Corasick automaton over the word sequences of all literals in a rule set.
+ * <p>
+ * Every literal without wildcards (and without lookups) is added to a trie of word ids. One left-to-right pass
+ * over a text then reports all these literals and where they occur, regardless of how many rules there are.
+ * Normalized ('word') and exact ("Word") literals are compared on different forms of the text tokens,
+ * so they are kept in two separate automata. Literals that mix both forms are not covered and are
+ * matched the usual way.
+ * <p>
+ * Ids of the literals are positions in the list of literals the automaton is built from, including the literals
+ * that are not covered. This way it shares its ids with the literal table of a rule set.
+ */
+public class LiteralAutomaton {
+
+    /** Start of the range of a literal that is not covered by the automaton, and has not been looked for yet */
+    public static final int NOT_EVALUATED = -2;
+
+    /**
+     * Receives the occurrences found while scanning a text.
+     */
+    @FunctionalInterface
+    public interface Hits {
+        /**
+         * @param pattern id of the literal, see {@link #id(Literal)}
+         * @param start first token of the occurrence
+         * @param end token after the occurrence
+         */
+        void hit(int pattern, int start, int end);
+    }
+
+    private final Vocabulary vocabulary;
+    private final List<Literal> patterns;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Trie normalized = new Trie();
+    private final Trie exact = new Trie();
+    private final int[] lengths;
+    /** the number of words of the longest covered literal */
+    private final int maxLength;
+    /** ids of the literals that are not covered */
+    private final int[] uncovered;
+
+    /**
+     * @param rules rules of which the literals are encoded with the given vocabulary
+     * @param vocabulary word ids
+     */
+    public LiteralAutomaton(Collection<MatchRule> rules, Vocabulary vocabulary) {
+        this(distinct(rules), vocabulary);
+    }
+
+    /**
+     * @param literals distinct literals that are encoded with the given vocabulary, their positions are their ids
+     * @param vocabulary word ids
+     */
+    public LiteralAutomaton(List<Literal> literals, Vocabulary vocabulary) {
+        this.vocabulary = vocabulary;
+        this.patterns = literals;
+        List<Integer> uncovered = new ArrayList<>();
+        for (int id = 0; id < literals.size(); id++) {
+            if(!add(literals.get(id), id)){
+                uncovered.add(id);
+            }
+        }
+        this.uncovered = uncovered.stream().mapToInt(Integer::intValue).toArray();
+        normalized.link(vocabulary.size());
+        exact.link(vocabulary.size());
+        lengths = new int[patterns.size()];
+        int max = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = patterns.get(i).tokens.length;
+            if(covers(i)){
+                max = Math.max(max, lengths[i]);
+            }
+        }
+        maxLength = max;
+    }
+
+    private static List<Literal> distinct(Collection<MatchRule> rules){
+        Map<String, Literal> literals = new LinkedHashMap<>();
+        for (MatchRule rule : rules) {
+            if(rule.expression == null){
+                continue;
+            }
+            for (Literal[] disjunction : rule.expression) {
+                for (Literal lit : disjunction) {
+                    if(lit.meta == 'a' && lit.ids != null){
+                        literals.putIfAbsent(Arrays.toString(lit.ids), lit);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(literals.values());
+    }
+
+    private boolean add(Literal lit, int id){
+        if(lit.meta != 'a' || lit.ids == null || lit.ids.length == 0){
+            return false;
+        }
+        int form = lit.ids[0] & 1;
+        for (int code : lit.ids) {
+            if(code < 0 || (code & 1) != form){
+                return false; // not a plain word sequence
+            }
+        }
+
+        // keyed on the codes: unlike literal equality, these distinguish 'word' from "word"
+        String key = Arrays.toString(lit.ids);
+        if(!ids.containsKey(key)){
+            ids.put(key, id);
+            (form == 0 ? normalized : exact).insert(lit.ids, id);
+        }
+        return true;
+    }
+
+    /**
+     * @param id literal id
+     * @return whether the literal is found by the automaton
+     */
+    public boolean covers(int id){
+        return Arrays.binarySearch(uncovered, id) < 0;
+    }
+
+    /**
+     * @param lit a literal (negated or not)
+     * @return the id of the word sequence of the literal, or -1 if it is not covered by this automaton
+     */
+    public int id(Literal lit){
+        int[] codes = lit.meta != 'a' ? null : lit.ids != null ? lit.ids : vocabulary.lookup(lit.tokens);
+        Integer id = codes == null ? null : ids.get(Arrays.toString(codes));
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * The ids of all literals of an expression, see {@link #id(Literal)}.
+     * @param expression CNF
+     * @return ids with the same shape as the expression
+     */
+    public int[][] ids(Literal[][] expression){
+        if(expression == null){
+            return null;
+        }
+        int[][] result = new int[expression.length][];
+        for (int i = 0; i < expression.length; i++) {
+            result[i] = new int[expression[i].length];
+            for (int j = 0; j < expression[i].length; j++) {
+                result[i][j] = id(expression[i][j]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of literals, including the ones that are not covered
+     */
+    public int size(){
+        return patterns.size();
+    }
+
+    /**
+     * @return the number of words of the longest literal that is covered: occurrences never span more positions
+     */
+    public int maxLength(){
+        return maxLength;
+    }
+
+    /**
+     * @return ids of the literals that are not covered, ascending
+     */
+    int[] uncovered(){
+        return uncovered;
+    }
+
+    /**
+     * Report every occurrence of every literal in a single pass over the text.
+     * Per form (normalized/exact), occurrences are reported in order of their end position.
+     * @param normalized vocabulary ids of the normalized forms of the text
+     * @param exact vocabulary ids of the exact forms of the text
+     * @param hits receives the occurrences
+     */
+    public void scan(int[] normalized, int[] exact, Hits hits){
+        this.normalized.scan(normalized, 0, normalized.length, 0, lengths, hits);
+        this.exact.scan(exact, 0, exact.length, 0, lengths, hits);
+    }
+
+    /**
+     * Continue a scan of a text that has grown, see {@link #scan(int[], int[], Hits)}.
+     * Only occurrences that end in the new part are reported, their start may lie before it.
+     * @param normalized vocabulary ids of the normalized forms of the text
+     * @param exact vocabulary ids of the exact forms of the text
+     * @param from the first position of the new part
+     * @param to the position after the new part
+     * @param states the state of the scan before position from, {0, 0} at the start of a text. It is updated to the state at position to.
+     * @param hits receives the occurrences
+     */
+    public void scan(int[] normalized, int[] exact, int from, int to, int[] states, Hits hits){
+        states[0] = this.normalized.scan(normalized, from, to, states[0], lengths, hits);
+        states[1] = this.exact.scan(exact, from, to, states[1], lengths, hits);
+    }
+
+    /**
+     * Find the first occurrence of all literals in a single pass over the text.
+     * @param normalized vocabulary ids of the normalized forms of the text
+     * @param exact vocabulary ids of the exact forms of the text
+     * @return for pattern id i: {start, end} at [2*i] and [2*i + 1], both -1 when the literal does not occur,
+     * and {@link #NOT_EVALUATED} when the literal is not covered
+     */
+    public int[] first(int[] normalized, int[] exact){
+        return first(normalized, exact, null);
+    }
+
+    /**
+     * Find the first occurrence of all literals in a single pass over the text.
+     * @param normalized vocabulary ids of the normalized forms of the text
+     * @param exact vocabulary ids of the exact forms of the text
+     * @param reuse array to write the result to, if it has the right length (optional)
+     * @return for pattern id i: {start, end} at [2*i] and [2*i + 1], see {@link #first(int[], int[])}
+     */
+    public int[] first(int[] normalized, int[] exact, int[] reuse){
+        final int[] first = reuse != null && reuse.length == 2 * patterns.size() ? reuse : new int[2 * patterns.size()];
+        Arrays.fill(first, -1);
+        for (int id : uncovered) {
+            first[2 * id] = first[2 * id + 1] = NOT_EVALUATED;
+        }
+        scan(normalized, exact, (pattern, start, end) -> {
+            // patterns have a fixed length: the first end is also the first start
+            if(first[2 * pattern] < 0){
+                first[2 * pattern] = start;
+                first[2 * pattern + 1] = end;
+            }
+        });
+        return first;
+    }
+
+    /**
+     * Find the first occurrence of all literals in a single pass over the text.
+     * @param text the tokens to search in
+     * @return for pattern id i: {start, end} at [2*i] and [2*i + 1], see {@link #first(int[], int[])}
+     */
+    public int[] first(Token[] text){
+        return first(vocabulary.normalizedIds(text), vocabulary.exactIds(text));
+    }
+
+    @Override
+    public String toString() {
+        return "LiteralAutomaton" + patterns;
+    }
+
+    /**
+     * Trie of word ids with failure links.
+     * While building, transitions are kept in maps. Afterwards the root gets a direct lookup table
+     * and every other state a sorted array of word ids.
+     */
+    private static class Trie {
+        private static final int[] NONE = new int[0];
+
+        private List<Map<Integer, Integer>> edges = new ArrayList<>();
+        private final List<int[]> out = new ArrayList<>();
+
+        private int[] rootNext;
+        private int[][] symbols, targets;
+        private int[] fail;
+        private int[][] output;
+
+        Trie() {
+            newState();
+        }
+
+        private int newState(){
+            edges.add(new HashMap<>(4));
+            out.add(NONE);
+            return edges.size() - 1;
+        }
+
+        void insert(int[] codes, int id){
+            int state = 0;
+            for (int code : codes) {
+                int symbol = code >> 1;
+                Integer s = edges.get(state).get(symbol);
+                if(s == null){
+                    s = newState();
+                    edges.get(state).put(symbol, s);
+                }
+                state = s;
+            }
+            out.set(state, append(out.get(state), id));
+        }
+
+        /**
+         * Breadth first computation of the failure links. Outputs of the suffix states are merged,
+         * so a scan never has to follow failure links to report matches.
+         */
+        void link(int vocabularySize){
+            final int n = edges.size();
+            fail = new int[n];
+            // children of the root fail to the root
+            Deque<Integer> queue = new ArrayDeque<>(edges.get(0).values());
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                for (Map.Entry<Integer, Integer> edge : edges.get(state).entrySet()) {
+                    int child = edge.getValue();
+                    int f = fail[state];
+                    while (f != 0 && !edges.get(f).containsKey(edge.getKey())) {
+                        f = fail[f];
+                    }
+                    Integer target = edges.get(f).get(edge.getKey());
+                    fail[child] = target == null ? 0 : target;
+                    for (int id : out.get(fail[child])) {
+                        out.set(child, append(out.get(child), id));
+                    }
+                    queue.add(child);
+                }
+            }
+
+            // freeze
+            rootNext = new int[vocabularySize];
+            for (Map.Entry<Integer, Integer> edge : edges.get(0).entrySet()) {
+                rootNext[edge.getKey()] = edge.getValue();
+            }
+            symbols = new int[n][];
+            targets = new int[n][];
+            output = new int[n][];
+            for (int s = 0; s < n; s++) {
+                TreeMap<Integer, Integer> sorted = new TreeMap<>(edges.get(s));
+                symbols[s] = new int[sorted.size()];
+                targets[s] = new int[sorted.size()];
+                int k = 0;
+                for (Map.Entry<Integer, Integer> edge : sorted.entrySet()) {
+                    symbols[s][k] = edge.getKey();
+                    targets[s][k++] = edge.getValue();
+                }
+                output[s] = out.get(s);
+            }
+            edges = null;
+        }
+
+        private int next(int state, int symbol){
+            if(state == 0){
+                return symbol < rootNext.length ? rootNext[symbol] : 0;
+            }
+            int k = Arrays.binarySearch(symbols[state], symbol);
+            return k < 0 ? -1 : targets[state][k];
+        }
+
+        /**
+         * @return the state after position to - 1
+         */
+        int scan(int[] text, int from, int to, int state, int[] lengths, Hits hits){
+            if(symbols.length == 1){
+                return 0; // empty
+            }
+            for (int i = from; i < to; i++) {
+                int symbol = text[i];
+                if(symbol < 0){
+                    state = 0; // unknown word
+                    continue;
+                }
+                int s;
+                while ((s = next(state, symbol)) < 0) {
+                    state = fail[state];
+                }
+                state = s;
+                for (int id : output[state]) {
+                    hits.hit(id, i + 1 - lengths[id], i + 1);
+                }
+            }
+            return state;
+        }
+
+        private static int[] append(int[] a, int x){
+            int[] b = Arrays.copyOf(a, a.length + 1);
+            b[a.length] = x;
+            return b;
+        }
+    }
+}
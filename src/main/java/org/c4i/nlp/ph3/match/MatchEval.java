@@ -2,10 +2,14 @@ package org.c4i.nlp.ph3.match;
 
 import org.c4i.nlp.ph3.tokenize.Token;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Evaluate a matching rule.
@@ -20,35 +24,941 @@ public class MatchEval {
     }
 
     /**
-     * Reurn all matching labels
+     * Return all matching labels
      * @param tokens
      * @return
      */
     public static Map<String, MatchRange> eval(final MatchRuleSet ruleSet, final Token[] tokens){
-        final Map<String, MatchRange> result = new ConcurrentHashMap<>();
-        ruleSet.rules.values().forEach(rule -> {
-            int[] range = MatchEval.findRange(tokens, rule, ruleSet, result);
-            if(range != null){
-                result.put(rule.head, new MatchRange(rule.head, range[0], range[1], tokens[range[0]].getCharStart(), tokens[range[1]-1].getCharEnd()));
+        final EvalContext doc = ruleSet.acquire();
+        try {
+            return eval(doc, tokens).toMap();
+        } finally {
+            ruleSet.release(doc);
+        }
+    }
+
+    /**
+     * Return all matching labels.
+     * Literals are looked up in the positional index of the document, instead of scanning the tokens for every literal.
+     * @param ruleSet the rules to apply
+     * @param index index of the tokens of a single document
+     * @return matching labels
+     */
+    public static Map<String, MatchRange> eval(final MatchRuleSet ruleSet, final TokenIndex index){
+        final EvalContext doc = ruleSet.acquire();
+        try {
+            return eval(doc, index).toMap();
+        } finally {
+            ruleSet.release(doc);
+        }
+    }
+
+    /**
+     * Return all matching labels of a text that was tokenized and encoded elsewhere,
+     * using the vocabulary of the rule set (see {@link MatchRuleSet#getVocabulary()}).
+     * The character offsets of the resulting ranges are -1.
+     * @param ruleSet the rules to apply
+     * @param ids word ids, used for both normalized and exact matching
+     * @return matching labels
+     */
+    public static Map<String, MatchRange> eval(final MatchRuleSet ruleSet, final int[] ids){
+        return eval(ruleSet, ids, ids);
+    }
+
+    /**
+     * Return all matching labels of a text that was tokenized and encoded elsewhere,
+     * using the vocabulary of the rule set (see {@link MatchRuleSet#getVocabulary()}).
+     * The character offsets of the resulting ranges are -1.
+     * @param ruleSet the rules to apply
+     * @param normalized word ids of the normalized words
+     * @param exact word ids of the words as they appear in the text
+     * @return matching labels
+     */
+    public static Map<String, MatchRange> eval(final MatchRuleSet ruleSet, final int[] normalized, final int[] exact){
+        final EvalContext doc = ruleSet.acquire();
+        try {
+            return eval(doc, normalized, exact).toMap();
+        } finally {
+            ruleSet.release(doc);
+        }
+    }
+
+    /**
+     * Pass all matches to a sink, with the label ids of the rule set, instead of collecting them in a map.
+     * @param ruleSet the rules to apply
+     * @param tokens the text
+     * @param sink receives the matches, in evaluation order
+     * @return the number of matches
+     */
+    public static int eval(final MatchRuleSet ruleSet, final Token[] tokens, final MatchSink sink){
+        final EvalContext doc = ruleSet.acquire();
+        try {
+            return eval(doc, tokens).forEach(sink);
+        } finally {
+            ruleSet.release(doc);
+        }
+    }
+
+    /**
+     * Pass all matches of a text that was tokenized and encoded elsewhere to a sink, see {@link #eval(MatchRuleSet, Token[], MatchSink)}.
+     * The character offsets are -1.
+     * @param ruleSet the rules to apply
+     * @param normalized word ids of the normalized words
+     * @param exact word ids of the words as they appear in the text
+     * @param sink receives the matches, in evaluation order
+     * @return the number of matches
+     */
+    public static int eval(final MatchRuleSet ruleSet, final int[] normalized, final int[] exact, final MatchSink sink){
+        final EvalContext doc = ruleSet.acquire();
+        try {
+            return eval(doc, normalized, exact).forEach(sink);
+        } finally {
+            ruleSet.release(doc);
+        }
+    }
+
+    /**
+     * Return which of the given labels match. Only their rules and the rules they look up are evaluated.
+     * @param ruleSet the rules to apply
+     * @param tokens the text
+     * @param labels heads of rules of the rule set
+     * @return matching labels among the given labels
+     */
+    public static Map<String, MatchRange> eval(final MatchRuleSet ruleSet, final Token[] tokens, final Collection<String> labels){
+        final EvalContext doc = ruleSet.acquire();
+        try {
+            final Map<String, MatchRange> result = eval(doc.select(labels), tokens).toMap();
+            // the rules that were looked up
+            result.keySet().retainAll(labels);
+            return result;
+        } finally {
+            doc.select(null);
+            ruleSet.release(doc);
+        }
+    }
+
+    /**
+     * Return the first k matching labels in order of priority, see {@link MatchRule#getPriority()}.
+     * Rules are tried from the highest priority down, so the evaluation stops as soon as k labels match.
+     * Lower priority rules are only evaluated when a higher priority rule looks them up.
+     * @param ruleSet the rules to apply
+     * @param tokens the text
+     * @param k the number of labels to find, e.g. 1 for the highest priority match only
+     * @return at most k matches, highest priority first
+     */
+    public static List<MatchRange> first(final MatchRuleSet ruleSet, final Token[] tokens, final int k){
+        final EvalContext doc = ruleSet.acquire();
+        try {
+            final List<MatchRange> result = new ArrayList<>();
+            first(doc, tokens, k, (labelId, tokenStart, tokenEnd, charStart, charEnd) ->
+                    result.add(new MatchRange(ruleSet.getLabel(labelId), tokenStart, tokenEnd, charStart, charEnd)));
+            return result;
+        } finally {
+            ruleSet.release(doc);
+        }
+    }
+
+    /**
+     * Find the first k matching labels in order of priority, see {@link #first(MatchRuleSet, Token[], int)},
+     * reusing the context of a previous text. The limits and selected labels of the context apply.
+     * @param doc context of a rule set, used by a single thread at a time
+     * @param tokens the text
+     * @param k the number of labels to find
+     * @param sink receives the matches, highest priority first
+     * @return the number of matches, at most k
+     */
+    public static int first(final EvalContext doc, final Token[] tokens, final int k, final MatchSink sink){
+        if(k < 0){
+            throw new IllegalArgumentException("The number of labels to find should not be negative: " + k);
+        }
+        doc.load(tokens).scan();
+        return evalFirst(doc, k, sink);
+    }
+
+    /**
+     * Return the labels that match within a time limit. When the limit is reached, only the labels of the rules
+     * that were evaluated so far are returned, and the result tells which rules were not evaluated.
+     * @param ruleSet the rules to apply
+     * @param tokens the text
+     * @param timeout the maximum time to evaluate the text
+     * @param unit the unit of the timeout
+     * @return matching labels, possibly not all, and the labels of which it is not known whether they match
+     */
+    public static EvalResult eval(final MatchRuleSet ruleSet, final Token[] tokens, final long timeout, final TimeUnit unit){
+        final EvalContext doc = ruleSet.acquire();
+        try {
+            eval(doc.setTimeout(timeout, unit), tokens);
+            List<String> notEvaluated = Collections.emptyList();
+            if(!doc.isComplete()){
+                notEvaluated = new ArrayList<>();
+                for (int id = 0; id < ruleSet.getLabelCount(); id++) {
+                    if(!doc.isEvaluated(id)){
+                        notEvaluated.add(ruleSet.getLabel(id));
+                    }
+                }
             }
-        });
-        return result;
+            return new EvalResult(doc.toMap(), notEvaluated);
+        } finally {
+            doc.setTimeout(Long.MAX_VALUE, unit);
+            ruleSet.release(doc);
+        }
     }
 
     /**
-     * Reurn all matching labels
-     * @param tokens
-     * @return
+     * Return which labels match, when their ranges are not needed.
+     * @param ruleSet the rules to apply
+     * @param tokens the text
+     * @param reuse a bitset to overwrite, if it is large enough (optional)
+     * @return the bitset of the matching label ids, see {@link MatchRuleSet#getLabelId(String)}
+     */
+    public static long[] classify(final MatchRuleSet ruleSet, final Token[] tokens, final long[] reuse){
+        final EvalContext doc = ruleSet.acquire();
+        try {
+            return eval(doc, tokens).labelBits(reuse);
+        } finally {
+            ruleSet.release(doc);
+        }
+    }
+
+    /**
+     * Return which labels match a text that was tokenized and encoded elsewhere, when their ranges are not needed.
+     * @param ruleSet the rules to apply
+     * @param normalized word ids of the normalized words
+     * @param exact word ids of the words as they appear in the text
+     * @param reuse a bitset to overwrite, if it is large enough (optional)
+     * @return the bitset of the matching label ids, see {@link MatchRuleSet#getLabelId(String)}
+     */
+    public static long[] classify(final MatchRuleSet ruleSet, final int[] normalized, final int[] exact, final long[] reuse){
+        final EvalContext doc = ruleSet.acquire();
+        try {
+            return eval(doc, normalized, exact).labelBits(reuse);
+        } finally {
+            ruleSet.release(doc);
+        }
+    }
+
+    /**
+     * Evaluate all rules of the rule set of a context against a text, reusing the context of a previous text.
+     * When the context selects labels, see {@link EvalContext#select(Collection)}, only their rules are evaluated.
+     * Nothing is allocated for a text that is not longer than the texts before it;
+     * the matches can be read from the context until its next text.
+     * @param doc context of a rule set, used by a single thread at a time
+     * @param tokens the text
+     * @return the context, with the matches of the text
+     */
+    public static EvalContext eval(final EvalContext doc, final Token[] tokens){
+        return eval(doc.load(tokens));
+    }
+
+    /**
+     * Evaluate all rules of the rule set of a context against a text that was tokenized and encoded elsewhere,
+     * see {@link #eval(EvalContext, Token[])}. The arrays are not copied, and should not change during the evaluation.
+     * @param doc context of a rule set, used by a single thread at a time
+     * @param normalized word ids of the normalized words
+     * @param exact word ids of the words as they appear in the text
+     * @return the context, with the matches of the text
+     */
+    public static EvalContext eval(final EvalContext doc, final int[] normalized, final int[] exact){
+        return eval(doc.load(normalized, exact));
+    }
+
+    /**
+     * Evaluate all rules of the rule set of a context against an indexed text, see {@link #eval(EvalContext, Token[])}.
+     * @param doc context of a rule set, used by a single thread at a time
+     * @param index index of the tokens of a single document
+     * @return the context, with the matches of the text
+     */
+    public static EvalContext eval(final EvalContext doc, final TokenIndex index){
+        return eval(doc.load(index));
+    }
+
+    /**
+     * Evaluate the rules in dependency order, so every rule is evaluated exactly once,
+     * and lookups just read the result of a rule that was evaluated before.
+     * Literals and disjunctions that are shared by rules are evaluated at most once as well.
+     */
+    private static EvalContext eval(final EvalContext doc){
+        doc.scan();
+        evalRules(doc);
+        return doc;
+    }
+
+    /**
+     * Evaluate all (selected) rules of the rule set of a document of which the hits are known, see {@link #eval(EvalContext)}.
+     * Generated code is only used when the encoded text is known.
+     * @param doc a document of which the rule set and hits are known, and of which the ranges are cleared
+     */
+    static void evalRules(final EvalContext doc){
+        final MatchRuleSet ruleSet = doc.ruleSet;
+        final RuleEvaluator[] evaluators = doc.normalized == null ? null : ruleSet.evaluators;
+        final RuleStatistics statistics = ruleSet.statistics;
+        doc.plan = statistics.plan();
+        doc.measure = evaluators == null && statistics.sample();
+        evalSegments(doc);
+        final int[] order = ruleSet.order;
+        final int[] selection = doc.selection;
+        final int n = selection == null ? order.length : selection.length;
+        for (int k = 0; k < n; k++) {
+            final int position = selection == null ? k : selection[k];
+            if(doc.isEvaluated(order[position])){
+                // a segmented rule
+                continue;
+            }
+            if(!doc.charge(1)){
+                doc.stopped = position;
+                break;
+            }
+            evalRule(doc, evaluators, order[position]);
+            if(doc.expired){
+                // the rule was not evaluated completely
+                doc.stopped = position;
+                break;
+            }
+            doc.evaluated(order[position]);
+        }
+        if(doc.measure){
+            statistics.measured();
+        }
+    }
+
+    /**
+     * Evaluate the (selected) rules of the rule set of a context in order of priority, until k of them match.
+     * The rules that a rule looks up are evaluated just before it, when needed.
+     * @param doc a document of which the rule set and hits are known, and of which the ranges are cleared
+     * @param k the number of matches to find
+     * @param sink receives the matches, highest priority first
+     * @return the number of matches, at most k
+     */
+    static int evalFirst(final EvalContext doc, final int k, final MatchSink sink){
+        final MatchRuleSet ruleSet = doc.ruleSet;
+        final RuleEvaluator[] evaluators = doc.normalized == null ? null : ruleSet.evaluators;
+        final RuleStatistics statistics = ruleSet.statistics;
+        doc.plan = statistics.plan();
+        doc.measure = evaluators == null && statistics.sample();
+        final int[] ruleRanges = doc.ruleRanges;
+        evalSegments(doc);
+        int found = 0;
+        for (int i = 0; i < ruleSet.priorityOrder.length && found < k; i++) {
+            final int id = ruleSet.priorityOrder[i];
+            if(!doc.isSelected(ruleSet.positions[id])){
+                continue;
+            }
+            if(!evalNeeded(doc, evaluators, id)){
+                doc.stopped = ruleSet.positions[id];
+                break;
+            }
+            final int start = ruleRanges[2 * id], end = ruleRanges[2 * id + 1];
+            if(start >= 0){
+                found++;
+                sink.match(id, start, end, doc.startChar(start), doc.endChar(end));
+            }
+        }
+        if(doc.measure){
+            statistics.measured();
+        }
+        return found;
+    }
+
+    /**
+     * Evaluate the segmented rules (see {@link MatchRule#isSegmented()}) of a document of which the text has multiple segments,
+     * segment by segment: a segmented rule matches where it first matches within a segment.
+     * The rules that they look up are evaluated per segment as well.
+     * A segment is only scanned when it contains a word that one of the segmented rules that did not match yet requires.
+     * When the text is a single segment, the segmented rules are evaluated like the other rules.
+     * @param doc a document of which the rule set and hits are known, and of which the ranges are cleared
+     */
+    static void evalSegments(final EvalContext doc){
+        final MatchRuleSet ruleSet = doc.ruleSet;
+        final int[] selection = ruleSet.segmentSelection;
+        if(selection == null || doc.segmentCount < 2){
+            return;
+        }
+        final RuleEvaluator[] evaluators = doc.normalized == null ? null : ruleSet.evaluators;
+        final MatchRule[] rules = ruleSet.ruleArray;
+        final int[] order = ruleSet.order;
+        int remaining = 0;
+        for (int position : selection) {
+            remaining += rules[order[position]].segmented && doc.isSelected(position) ? 1 : 0;
+        }
+        final EvalContext segment = doc.segmentContext();
+        for (int s = 0; s < doc.segmentCount && remaining > 0; s++) {
+            final int from = doc.segments[s], to = s + 1 < doc.segmentCount ? doc.segments[s + 1] : doc.length;
+            if(!doc.charge(to - from + selection.length)){
+                break;
+            }
+            segment.loadSegment(doc, from, to).scanTerms();
+            if(!mayMatch(doc, segment, selection)){
+                continue;
+            }
+            segment.scanOccurrences();
+            for (int position : selection) {
+                final int id = order[position];
+                if(!doc.isSelected(position)){
+                    continue;
+                }
+                // also when it matched in an earlier segment: it may be looked up by another rule
+                evalRule(segment, evaluators, id);
+                if(rules[id].segmented && !doc.isEvaluated(id) && segment.ruleRanges[2 * id] >= 0){
+                    doc.ruleRanges[2 * id] = from + segment.ruleRanges[2 * id];
+                    doc.ruleRanges[2 * id + 1] = from + segment.ruleRanges[2 * id + 1];
+                    doc.matched(id);
+                    doc.evaluated(id);
+                    remaining--;
+                }
+            }
+        }
+        segment.clear();
+        if(!doc.expired){
+            for (int position : selection) {
+                if(rules[order[position]].segmented && doc.isSelected(position)){
+                    // no match in any segment
+                    doc.evaluated(order[position]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether a segmented rule that did not match yet may match in a segment, see {@link EvalContext#mayMatch(MatchRule)}
+     */
+    private static boolean mayMatch(final EvalContext doc, final EvalContext segment, final int[] selection){
+        for (int position : selection) {
+            final MatchRule rule = doc.ruleSet.ruleArray[doc.ruleSet.order[position]];
+            if(rule.segmented && !doc.isEvaluated(rule.id) && doc.isSelected(position) && segment.mayMatch(rule)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluate a rule, and the rules it looks up first, unless they were evaluated already.
+     * @return false when a limit was reached
+     */
+    private static boolean evalNeeded(final EvalContext doc, final RuleEvaluator[] evaluators, final int id){
+        if(doc.isEvaluated(id)){
+            return true;
+        }
+        for (int dependency : doc.ruleSet.dependencies[id]) {
+            if(!evalNeeded(doc, evaluators, dependency)){
+                return false;
+            }
+        }
+        if(!doc.charge(1)){
+            return false;
+        }
+        evalRule(doc, evaluators, id);
+        if(doc.expired){
+            return false;
+        }
+        doc.evaluated(id);
+        return true;
+    }
+
+    /**
+     * Evaluate a rule against a document, after all rules it looks up.
+     * @param doc a document of which the rule set, hits and ranges are known
+     * @param evaluators generated code of the rule set, or null to interpret the rule
+     * @param id rule id
+     */
+    static void evalRule(final EvalContext doc, final RuleEvaluator[] evaluators, final int id){
+        final int[] aliases = doc.ruleSet.aliases;
+        final int[] ruleRanges = doc.ruleRanges;
+        if(aliases[id] >= 0){
+            // identical body
+            ruleRanges[2 * id] = ruleRanges[2 * aliases[id]];
+            ruleRanges[2 * id + 1] = ruleRanges[2 * aliases[id] + 1];
+        } else if(!doc.mayMatch(doc.ruleSet.ruleArray[id])){
+            // none of the required words occur: no match
+        } else if(evaluators != null && doc.chargeMatchers(doc.ruleSet.ruleArray[id])
+                && evaluators[id / RuleCompiler.CHUNK_SIZE].eval(id, doc.normalized, doc.exact, doc.length, doc.hits, ruleRanges) != RuleEvaluator.NOT_COMPILED){
+            // the generated code may have found literals that are not covered by the automaton
+            doc.compiled(id);
+        } else if(!doc.expired){
+            evalRule(doc, doc.ruleSet.ruleArray[id]);
+        }
+        if(doc.expired){
+            // a literal was not looked for: the range is not known
+            ruleRanges[2 * id] = ruleRanges[2 * id + 1] = -1;
+        } else if(ruleRanges[2 * id] >= 0){
+            doc.matched(id);
+        }
+    }
+
+    /**
+     * Return all matching labels of a batch of documents, evaluated in parallel by the common fork-join pool.
+     * @param ruleSet the rules to apply
+     * @param docs the tokens of the documents
+     * @return matching labels per document, in the order of the documents
+     */
+    public static List<Map<String, MatchRange>> evalBatch(final MatchRuleSet ruleSet, final List<Token[]> docs){
+        return evalBatch(ruleSet, docs, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Return all matching labels of a batch of documents, evaluated in parallel.
+     * The batch is split on the estimated cost of the documents, instead of on their number,
+     * so a single long document does not hold up a whole part of the batch.
+     * Idle workers steal the parts that are not evaluated yet.
+     * @param ruleSet the rules to apply
+     * @param docs the tokens of the documents
+     * @param pool the workers
+     * @return matching labels per document, in the order of the documents
+     */
+    public static List<Map<String, MatchRange>> evalBatch(final MatchRuleSet ruleSet, final List<Token[]> docs, final ForkJoinPool pool){
+        final Token[][] texts = docs.toArray(new Token[docs.size()][]);
+        final long[] costs = new long[texts.length + 1];
+        for (int i = 0; i < texts.length; i++) {
+            costs[i + 1] = costs[i] + cost(ruleSet, texts[i]);
+        }
+        // every task sets only the results of its own documents
+        final List<Map<String, MatchRange>> results = new ArrayList<>(Collections.<Map<String, MatchRange>>nCopies(texts.length, null));
+        if(texts.length > 0){
+            final long threshold = Math.max(1, costs[texts.length] / (8L * pool.getParallelism()));
+            pool.invoke(new BatchTask(ruleSet, texts, costs, threshold, results, 0, texts.length));
+        }
+        return results;
+    }
+
+    /**
+     * Return all matching labels of a stream of documents, evaluated in parallel by the common fork-join pool,
+     * one batch of documents at a time.
+     * @param ruleSet the rules to apply
+     * @param docs the tokens of the documents
+     * @param batchSize the number of documents that are read ahead and evaluated together
+     * @return matching labels per document, in the order of the documents
+     */
+    public static Stream<Map<String, MatchRange>> evalStream(final MatchRuleSet ruleSet, final Stream<Token[]> docs, final int batchSize){
+        return evalStream(ruleSet, docs, batchSize, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Return all matching labels of a stream of documents, evaluated in parallel one batch of documents at a time,
+     * see {@link #evalBatch(MatchRuleSet, List, ForkJoinPool)}.
+     * @param ruleSet the rules to apply
+     * @param docs the tokens of the documents
+     * @param batchSize the number of documents that are read ahead and evaluated together
+     * @param pool the workers
+     * @return matching labels per document, in the order of the documents
+     */
+    public static Stream<Map<String, MatchRange>> evalStream(final MatchRuleSet ruleSet, final Stream<Token[]> docs, final int batchSize, final ForkJoinPool pool){
+        if(batchSize < 1){
+            throw new IllegalArgumentException("The batch size should be positive: " + batchSize);
+        }
+        final Iterator<Token[]> it = docs.iterator();
+        final Iterator<List<Map<String, MatchRange>>> batches = new Iterator<List<Map<String, MatchRange>>>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public List<Map<String, MatchRange>> next() {
+                List<Token[]> batch = new ArrayList<>(batchSize);
+                while (batch.size() < batchSize && it.hasNext()) {
+                    batch.add(it.next());
+                }
+                if(batch.isEmpty()){
+                    throw new NoSuchElementException();
+                }
+                return evalBatch(ruleSet, batch, pool);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(batches, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .flatMap(List::stream)
+                .onClose(docs::close);
+    }
+
+    /**
+     * @return the estimated cost of evaluating a rule set against a document: the number of tokens times the number of rules
+     */
+    private static long cost(final MatchRuleSet ruleSet, final Token[] tokens){
+        return (tokens.length + 1L) * Math.max(1, ruleSet.ruleArray.length);
+    }
+
+    /**
+     * Evaluates a range of the documents of a batch, and splits it in two ranges of about the same cost when it is too expensive.
+     */
+    private static final class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final MatchRuleSet ruleSet;
+        private final Token[][] texts;
+        /** costs[i]: the cost of the documents before document i */
+        private final long[] costs;
+        private final long threshold;
+        private final List<Map<String, MatchRange>> results;
+        private final int from, to;
+
+        BatchTask(MatchRuleSet ruleSet, Token[][] texts, long[] costs, long threshold, List<Map<String, MatchRange>> results, int from, int to) {
+            this.ruleSet = ruleSet;
+            this.texts = texts;
+            this.costs = costs;
+            this.threshold = threshold;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from == 1 || costs[to] - costs[from] <= threshold){
+                // every worker reuses its own context
+                for (int i = from; i < to; i++) {
+                    results.set(i, eval(ruleSet, texts[i]));
+                }
+            } else {
+                // the first document after half of the cost, but keep both halves non-empty
+                int mid = Arrays.binarySearch(costs, from + 1, to, (costs[from] + costs[to]) / 2);
+                mid = Math.min(Math.max(mid < 0 ? -mid - 1 : mid, from + 1), to - 1);
+                invokeAll(new BatchTask(ruleSet, texts, costs, threshold, results, from, mid),
+                        new BatchTask(ruleSet, texts, costs, threshold, results, mid, to));
+            }
+        }
+    }
+
+    /**
+     * Return all matching labels of a single document, of which the rules are evaluated in parallel
+     * by the common fork-join pool, see {@link #evalParallel(MatchRuleSet, Token[], ForkJoinPool)}.
+     * @param ruleSet the rules to apply
+     * @param tokens the text
+     * @return matching labels
      */
     public static Map<String, MatchRange> evalParallel(final MatchRuleSet ruleSet, final Token[] tokens){
-        final Map<String, MatchRange> result = new ConcurrentHashMap<>();
-        ruleSet.rules.values().stream().parallel().forEach(rule -> {
-            int[] range = MatchEval.findRange(tokens, rule, ruleSet, result);
-            if(range != null){
-                result.put(rule.head, new MatchRange(rule.head, range[0], range[1], tokens[range[0]].getCharStart(), tokens[range[1]-1].getCharEnd()));
+        return evalParallel(ruleSet, tokens, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Return all matching labels of a single document, of which the rules are evaluated in parallel.
+     * First all literals are found, as by {@link #evalChunked(MatchRuleSet, Token[], int, ForkJoinPool)}.
+     * Then the rules are evaluated level by level of the lookup graph: the rules of a level only look up rules
+     * of the levels before it, so they can be evaluated at the same time. A level is split in shards of about the same cost,
+     * and every shard is evaluated by a worker with its own clause ranges, so nothing is shared but the results of the earlier levels.
+     * All rules are evaluated, without limits: unlike {@link #eval(EvalContext, Token[])}, there is no context of which
+     * the selected labels or the time and work limits apply. Use {@link #eval(MatchRuleSet, Token[], Collection)}
+     * or {@link #eval(MatchRuleSet, Token[], long, TimeUnit)} to evaluate fewer rules or to bound the time.
+     * @param ruleSet the rules to apply
+     * @param tokens the text
+     * @param pool the workers
+     * @return matching labels, the same as {@link #eval(MatchRuleSet, Token[])}
+     */
+    public static Map<String, MatchRange> evalParallel(final MatchRuleSet ruleSet, final Token[] tokens, final ForkJoinPool pool){
+        final EvalContext doc = ruleSet.acquire();
+        try {
+            findLiterals(doc.load(tokens), CHUNK_SIZE, pool);
+            doc.plan = ruleSet.statistics.plan();
+            doc.measure = false;
+            evalSegments(doc);
+            final int[] ruleRanges = doc.ruleRanges;
+            for (int l = 0; l < ruleSet.levels.length; l++) {
+                final int[] level = ruleSet.levels[l];
+                final long[] costs = ruleSet.levelCosts[l];
+                final long threshold = Math.max(MIN_SHARD_COST, costs[level.length] / (4L * pool.getParallelism()));
+                if(costs[level.length] <= threshold){
+                    // not worth to hand over
+                    for (int id : level) {
+                        if(!doc.isEvaluated(id)){
+                            evalRule(doc, ruleSet.evaluators, id);
+                            doc.evaluated(id);
+                        }
+                    }
+                } else {
+                    pool.invoke(new ShardTask(doc, level, costs, threshold, 0, level.length));
+                    for (int id : level) {
+                        if(!doc.isEvaluated(id)){
+                            if(ruleRanges[2 * id] >= 0){
+                                doc.matched(id);
+                            }
+                            doc.evaluated(id);
+                        }
+                    }
+                }
             }
-        });
-        return result;
+            return doc.toMap();
+        } finally {
+            ruleSet.release(doc);
+        }
+    }
+
+    /** the estimated cost of evaluating rules below which they are not split over workers, see {@link MatchRuleSet#levelCosts} */
+    private static final long MIN_SHARD_COST = 1 << 10;
+
+    /**
+     * Evaluates a range of the rules of a level, and splits it in two ranges of about the same cost when it is too expensive.
+     */
+    private static final class ShardTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final EvalContext doc;
+        private final int[] level;
+        /** costs[k]: the cost of the rules before level[k] */
+        private final long[] costs;
+        private final long threshold;
+        private final int from, to;
+
+        ShardTask(EvalContext doc, int[] level, long[] costs, long threshold, int from, int to) {
+            this.doc = doc;
+            this.level = level;
+            this.costs = costs;
+            this.threshold = threshold;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from == 1 || costs[to] - costs[from] <= threshold){
+                final EvalContext worker = doc.ruleSet.worker();
+                worker.borrow(doc);
+                try {
+                    for (int k = from; k < to; k++) {
+                        if(!doc.isEvaluated(level[k])){
+                            evalRule(worker, doc.ruleSet.evaluators, level[k]);
+                        }
+                    }
+                } finally {
+                    doc.ruleSet.releaseWorker(worker);
+                }
+            } else {
+                int mid = Arrays.binarySearch(costs, from + 1, to, (costs[from] + costs[to]) / 2);
+                mid = Math.min(Math.max(mid < 0 ? -mid - 1 : mid, from + 1), to - 1);
+                invokeAll(new ShardTask(doc, level, costs, threshold, from, mid),
+                        new ShardTask(doc, level, costs, threshold, mid, to));
+            }
+        }
+    }
+
+    /**
+     * Return all matching labels of a single long document, of which the literals are found in parallel
+     * by the common fork-join pool, see {@link #evalChunked(MatchRuleSet, Token[], int, ForkJoinPool)}.
+     * @param ruleSet the rules to apply
+     * @param tokens the text
+     * @return matching labels
+     */
+    public static Map<String, MatchRange> evalChunked(final MatchRuleSet ruleSet, final Token[] tokens){
+        return evalChunked(ruleSet, tokens, CHUNK_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Return all matching labels of a single long document, of which the literals are found in parallel.
+     * The text is split in chunks, and every chunk is scanned from the length of the longest word sequence before it,
+     * so every occurrence of a word sequence ends in exactly one chunk and is found there.
+     * The first occurrences of the chunks are merged in the order of the text.
+     * Literals with wildcards may span any number of chunks: each is looked for in the whole text by a task of its own.
+     * The rules are then evaluated from the occurrences, which does not depend on the length of the text.
+     * @param ruleSet the rules to apply
+     * @param tokens the text
+     * @param chunkSize the minimum number of tokens per chunk
+     * @param pool the workers
+     * @return matching labels, the same as {@link #eval(MatchRuleSet, Token[])}
+     */
+    public static Map<String, MatchRange> evalChunked(final MatchRuleSet ruleSet, final Token[] tokens, final int chunkSize, final ForkJoinPool pool){
+        if(chunkSize < 1){
+            throw new IllegalArgumentException("The chunk size should be positive: " + chunkSize);
+        }
+        final EvalContext doc = ruleSet.acquire();
+        try {
+            findLiterals(doc.load(tokens), chunkSize, pool);
+            evalRules(doc);
+            return doc.toMap();
+        } finally {
+            ruleSet.release(doc);
+        }
+    }
+
+    /**
+     * Find the first occurrences of all literals of the rule set of a context in parallel, and the words of its text.
+     * @param doc a context of which the text is loaded
+     * @param chunkSize the minimum number of tokens per chunk
+     * @param pool the workers
+     */
+    private static void findLiterals(final EvalContext doc, final int chunkSize, final ForkJoinPool pool){
+        final int chunks = (int) Math.max(1, Math.min(4L * pool.getParallelism(), doc.length / chunkSize));
+        final int[] uncovered = doc.ruleSet.automaton.uncovered();
+        final int[][] parts = new int[chunks][];
+        final long[] found = new long[uncovered.length];
+        pool.invoke(new ChunkTask(doc, parts, uncovered, found, 0, chunks + uncovered.length));
+        for (int[] part : parts) {
+            doc.addPart(part);
+        }
+        for (int k = 0; k < uncovered.length; k++) {
+            doc.setHit(uncovered[k], found[k]);
+        }
+        doc.scanTerms();
+    }
+
+    /** the default minimum number of tokens per chunk of {@link #evalChunked(MatchRuleSet, Token[])} */
+    private static final int CHUNK_SIZE = 1 << 13;
+
+    /**
+     * Finds the occurrences of a range of jobs: first the chunks of the text, then the uncovered literals.
+     * Splits the range in two when it contains more than one job.
+     */
+    private static final class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final EvalContext doc;
+        private final int[][] parts;
+        private final int[] uncovered;
+        private final long[] found;
+        private final int from, to;
+
+        ChunkTask(EvalContext doc, int[][] parts, int[] uncovered, long[] found, int from, int to) {
+            this.doc = doc;
+            this.parts = parts;
+            this.uncovered = uncovered;
+            this.found = found;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from == 1){
+                final int chunks = parts.length;
+                if(from < chunks){
+                    parts[from] = doc.scanPart((int) ((long) from * doc.length / chunks), (int) ((long) (from + 1) * doc.length / chunks));
+                } else {
+                    found[from - chunks] = doc.search(uncovered[from - chunks]);
+                }
+            } else if(to > from){
+                final int mid = (from + to) >>> 1;
+                invokeAll(new ChunkTask(doc, parts, uncovered, found, from, mid),
+                        new ChunkTask(doc, parts, uncovered, found, mid, to));
+            }
+        }
+    }
+
+    /**
+     * Evaluate a rule against a document, after all rules it looks up.
+     * The range of the rule is written to the rule ranges of the document when it matches.
+     * Whether it matches is decided in the order of the plan of the document, if any.
+     * The range is the same as for the original order.
+     * @param doc document of which the hits for the rule set of the rule are known
+     * @param rule match rule
+     * @return whether the rule matches
+     */
+    private static boolean evalRule(final EvalContext doc, final MatchRule rule){
+        final int[] clauseIds = rule.clauseIds;
+        final int[] order = doc.plan == null ? null : doc.plan.clauseOrder[rule.id];
+        boolean match = true;
+        for (int k = 0; k < clauseIds.length && match; k++) {
+            // a false clause makes the cnf false
+            match = isTrue(doc, clauseIds[order == null ? k : order[k]]);
+        }
+        if(doc.measure){
+            RuleStatistics statistics = doc.ruleSet.statistics;
+            statistics.ruleEvaluations[rule.id]++;
+            if(match){
+                statistics.ruleMatches[rule.id]++;
+            }
+        }
+        if(!match){
+            return false;
+        }
+
+        int start = 0, end = doc.length; // no constraints, match entire text
+        if(clauseIds.length > 0) {
+            final int[] clauseRanges = doc.clauseRanges;
+            int first = clauseIds[0], last = clauseIds[clauseIds.length - 1];
+            findClauseRange(doc, first);
+            findClauseRange(doc, last);
+            start = clauseRanges[2 * first];
+            end = clauseRanges[2 * last + 1];
+        }
+        doc.ruleRanges[2 * rule.id] = start;
+        doc.ruleRanges[2 * rule.id + 1] = end;
+        return true;
+    }
+
+    /**
+     * Whether a disjunction of the clause table is true. The literals are tried in the order of the plan,
+     * so the range of the clause is only known when no literal before the true literal in the original order is left.
+     */
+    private static boolean isTrue(final EvalContext doc, final int clause){
+        final int[] clauseRanges = doc.clauseRanges;
+        if(clauseRanges[2 * clause] == LiteralAutomaton.NOT_EVALUATED){
+            final Literal[] disjunction = doc.ruleSet.clauses[clause];
+            final int[] ids = doc.ruleSet.clauseLiteralIds[clause];
+            final int[] order = doc.plan == null ? null : doc.plan.literalOrder[clause];
+            clauseRanges[2 * clause] = clauseRanges[2 * clause + 1] = -1;
+            doc.clauseEvaluated(clause);
+            long tried = 0; // the first 64 literals in the original order that were false
+            for (int k = 0; k < disjunction.length; k++) {
+                int j = order == null ? k : order[k];
+                if(isTrue(doc, disjunction[j], ids[j], doc.measure)){
+                    if(j == Long.numberOfTrailingZeros(~tried)){
+                        // all literals before it were false
+                        setClauseRange(doc, clause, disjunction[j], ids[j]);
+                    } else {
+                        clauseRanges[2 * clause] = EvalContext.TRUE;
+                    }
+                    break;
+                } else if(j < 64){
+                    tried |= 1L << j;
+                }
+            }
+            if(doc.measure){
+                RuleStatistics statistics = doc.ruleSet.statistics;
+                statistics.clauseEvaluations[clause]++;
+                if(clauseRanges[2 * clause] != -1){
+                    statistics.clauseTrues[clause]++;
+                }
+            }
+        }
+        return clauseRanges[2 * clause] != -1;
+    }
+
+    /**
+     * Make sure the range of a true clause is known: the range of its first true literal in the original order.
+     */
+    private static void findClauseRange(final EvalContext doc, final int clause){
+        if(doc.clauseRanges[2 * clause] == EvalContext.TRUE){
+            final Literal[] disjunction = doc.ruleSet.clauses[clause];
+            final int[] ids = doc.ruleSet.clauseLiteralIds[clause];
+            for (int j = 0; j < disjunction.length; j++) {
+                if(isTrue(doc, disjunction[j], ids[j], false)){
+                    setClauseRange(doc, clause, disjunction[j], ids[j]);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void setClauseRange(final EvalContext doc, final int clause, final Literal lit, final int id){
+        if(lit.negated){
+            doc.clauseRanges[2 * clause] = 0;
+            doc.clauseRanges[2 * clause + 1] = doc.length;
+        } else {
+            int[] ranges = lit.meta == '#' ? doc.ruleRanges : doc.hits;
+            doc.clauseRanges[2 * clause] = ranges[2 * id];
+            doc.clauseRanges[2 * clause + 1] = ranges[2 * id + 1];
+        }
+    }
+
+    /**
+     * Whether a literal of a clause is true, its range is then at [2*id] and [2*id + 1] of the rule ranges (lookups)
+     * or the hits (literal table) of the document.
+     */
+    private static boolean isTrue(final EvalContext doc, final Literal lit, final int id, final boolean measure){
+        boolean found;
+        if(lit.meta == '#'){
+            found = doc.ruleRanges[2 * id] >= 0;
+        } else if(measure){
+            RuleStatistics statistics = doc.ruleSet.statistics;
+            if(doc.hits[2 * id] == LiteralAutomaton.NOT_EVALUATED){
+                long t0 = System.nanoTime();
+                found = doc.findLiteral(id);
+                statistics.literalNanos[id] += System.nanoTime() - t0;
+                statistics.literalComputations[id]++;
+            } else {
+                found = doc.findLiteral(id);
+            }
+            statistics.literalEvaluations[id]++;
+            if(found){
+                statistics.literalHits[id]++;
+            }
+        } else {
+            found = doc.findLiteral(id);
+        }
+        return found != lit.negated;
     }
 
     public static String highlight(String orgText, Map<String, MatchRange> eval){
@@ -89,6 +999,16 @@ public class MatchEval {
         return findRange(text, rule, null, null) != null;
     }
 
+    /**
+     * Apply a rule in CNF to an indexed list of tokens
+     * @param index the indexed tokens (text) to search in
+     * @param rule match rule
+     * @return whether the rule matches or not
+     */
+    public static boolean contains(final TokenIndex index, final MatchRule rule){
+        return findRange(new EvalContext(index), rule, null, null) != null;
+    }
+
     /**
      * Apply a rule in CNF to a list of tokens
      * @param text the list of tokens (text) to search in
@@ -96,20 +1016,47 @@ public class MatchEval {
      * @return whether the rule matches or not
      */
     public static int[] findRange(final Token[] text, final MatchRule rule, final MatchRuleSet context, final Map<String, MatchRange> result){
-        final int S = text.length;
+        return findRange(new EvalContext(text), rule, context, result);
+    }
+
+    /**
+     * Apply a rule in CNF to an indexed list of tokens
+     * @param index the indexed tokens (text) to search in
+     * @param rule match rule
+     * @return the range of the match or null if the rule does not match
+     */
+    public static int[] findRange(final TokenIndex index, final MatchRule rule, final MatchRuleSet context, final Map<String, MatchRange> result){
+        return findRange(new EvalContext(index), rule, context, result);
+    }
+
+    /**
+     * Apply a rule in CNF to a document
+     * @param doc the text to search in, and what is known about it
+     * @param rule match rule
+     * @param context the rule set for lookups
+     * @param result the labels found so far
+     * @return the range of the match or null if the rule does not match
+     */
+    private static int[] findRange(final EvalContext doc, final MatchRule rule, final MatchRuleSet context, final Map<String, MatchRange> result){
+        final int S = doc.length;
+        final int[] hits = doc.hits;
         if(rule.expression == null || rule.expression.length == 0){
             // no constraints, match entire text
             return new int[]{0, S};
         }
 
-        int[] rangeFound = null;
-        HashMap<Literal, int[]> cache = new HashMap<>();
+        // the start and end of the range so far, start is -1 while the first clause is not found
+        int start = -1, end = -1;
+        // the literal table already holds the literals of a rule set: only cache literals of a loose rule
+        final HashMap<Literal, int[]> cache = hits != null && rule.literalIds != null ? null : new HashMap<>();
 
-        for (Literal[] disjunction : rule.expression) {
+        for (int i = 0; i < rule.expression.length; i++) {
+            Literal[] disjunction = rule.expression[i];
             int[] disjunctionRange = null;
 
-            for (Literal lit : disjunction) {
-                if(cache.containsKey(lit)) {
+            for (int j = 0; j < disjunction.length; j++) {
+                Literal lit = disjunction[j];
+                if(cache != null && cache.containsKey(lit)) {
                     int[] cachedRange = cache.get(lit);
                     if (cachedRange != null) {
                         disjunctionRange = cachedRange; // already known to be true
@@ -121,22 +1068,35 @@ public class MatchEval {
 
 
                 if(lit.meta == '#' && context != null){
-                    if(result != null && result.containsKey(rule.head)){
+                    String lookup = lit.tokens[0].getWord();
+                    if(result != null && result.containsKey(lookup)){
                         // already known to be true
-                        MatchRange matchRange = result.get(rule.head);
+                        MatchRange matchRange = result.get(lookup);
                         disjunctionRange = new int[]{matchRange.tokenStart, matchRange.tokenEnd};
-                        break;
                     } else {
                         // perform lookup
-                        disjunctionRange = findRange(text, context.rules.get(lit.tokens[0].getWord()), context, result);
+                        disjunctionRange = findRange(doc, context.rules.get(lookup), context, result);
+                    }
+                    if(lit.negated){
+                        disjunctionRange = disjunctionRange == null ? new int[]{0, S} : null;
                     }
 
+                } else if(hits != null && rule.literalIds != null){
+                    // shared by all rules of the rule set, and possibly already found by the automaton
+                    int[] range = doc.literalRange(rule.literalIds[i][j]);
+                    if(lit.negated){
+                        disjunctionRange = range != null ? null : new int[]{0, S};
+                    } else {
+                        disjunctionRange = range;
+                    }
                 } else {
                     // evaluate the match
-                    disjunctionRange = findRange(text, lit);
+                    disjunctionRange = doc.findRange(lit);
                 }
 
-                cache.put(lit, disjunctionRange);
+                if(cache != null){
+                    cache.put(lit, disjunctionRange);
+                }
                 if(disjunctionRange != null){
                     break; // matched! next disjunction please...
                 }
@@ -144,20 +1104,108 @@ public class MatchEval {
 
             if(disjunctionRange == null){
                 // this prop is false, therefore the cnf is false
-                rangeFound = null;
-                break;
-            } else {
-                // update result range
-                if (rangeFound == null) {
-                    rangeFound = disjunctionRange;
+                return null;
+            }
+            // update result range, without changing the range of the disjunction: it may be cached or shared
+            if (start < 0) {
+                start = disjunctionRange[0];
+            }
+            // extend bound
+            end = disjunctionRange[1];
+        }
+
+        return new int[]{start, end};
+    }
+
+    /**
+     * Report the occurrences of the words of a rule in CNF, in a single pass per literal:
+     * when the rule matches the text, the occurrences of its literals that are not negated,
+     * and of the rules it looks up that match, in text order. Identical ranges are reported once.
+     * When they should not overlap, an occurrence that starts before the end of the last reported one is skipped.
+     * @param text the tokens to search in
+     * @param rule match rule
+     * @param context the rule set for lookups (optional: without it, lookups have no occurrences)
+     * @param overlapping whether to report every occurrence, instead of non-overlapping ones
+     * @param occurrences receives the ranges, and can stop the search
+     * @return the number of occurrences reported
+     */
+    public static int findAll(final Token[] text, final MatchRule rule, final MatchRuleSet context, final boolean overlapping, final Occurrences occurrences){
+        if(findRange(text, rule, context, null) == null){
+            return 0;
+        }
+        final LongStream.Builder ranges = LongStream.builder();
+        collect(text, rule, context, overlapping, ranges);
+        int count = 0, lastEnd = 0;
+        for (long range : ranges.build().sorted().distinct().toArray()) {
+            int start = (int) (range >> 32), end = (int) range;
+            if(overlapping || start >= lastEnd){
+                count++;
+                if(!occurrences.found(start, end)){
+                    break;
+                }
+                lastEnd = end;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Add the occurrences of the positive literals of a matching rule as <code>start &lt;&lt; 32 | end</code>.
+     */
+    private static void collect(final Token[] text, final MatchRule rule, final MatchRuleSet context, final boolean overlapping, final LongStream.Builder ranges){
+        if(rule.expression == null){
+            return;
+        }
+        for (Literal[] disjunction : rule.expression) {
+            for (Literal lit : disjunction) {
+                if(lit.negated){
+                    continue;
+                }
+                if(lit.meta == '#'){
+                    MatchRule lookup = context == null ? null : context.rules.get(lit.tokens[0].getWord());
+                    if(lookup != null && findRange(text, lookup, context, null) != null){
+                        collect(text, lookup, context, overlapping, ranges);
+                    }
                 } else {
-                    // extend bound
-                    rangeFound[1] = disjunctionRange[1];
+                    lit.matcher().findAll(text, overlapping, (start, end) -> {
+                        ranges.add((long) start << 32 | end);
+                        return true;
+                    });
                 }
             }
         }
+    }
 
-        return rangeFound;
+    /**
+     * Report the occurrences of a literal in a single pass over the text, see {@link SequenceMatcher#findAll(Token[], boolean, Occurrences)}.
+     * @param text the tokens to search in
+     * @param pattern the literal to look for, not negated
+     * @param overlapping whether to report every occurrence, instead of non-overlapping ones
+     * @param occurrences receives the ranges, and can stop the search
+     * @return the number of occurrences reported
+     */
+    public static int findAll(final Token[] text, final Literal pattern, final boolean overlapping, final Occurrences occurrences){
+        if(pattern.negated){
+            throw new IllegalArgumentException("A negated literal has no occurrences: " + pattern);
+        }
+        return pattern.matcher().findAll(text, overlapping, occurrences);
+    }
+
+    /**
+     * Report the occurrences of a literal in a text that is encoded with the vocabulary the literal was compiled with,
+     * see {@link SequenceMatcher#findAll(int[], int[], int, boolean, Occurrences)}.
+     * @param normalized vocabulary ids of the normalized forms of the text
+     * @param exact vocabulary ids of the exact forms of the text
+     * @param pattern the literal to look for, not negated
+     * @param overlapping whether to report every occurrence, instead of non-overlapping ones
+     * @param occurrences receives the ranges, and can stop the search
+     * @return the number of occurrences reported
+     */
+    public static int findAll(final int[] normalized, final int[] exact, final Literal pattern, final boolean overlapping, final Occurrences occurrences){
+        if(pattern.negated){
+            throw new IllegalArgumentException("A negated literal has no occurrences: " + pattern);
+        }
+        return pattern.matcher().findAll(normalized, exact, normalized.length, overlapping, occurrences);
     }
 
     private static boolean contains(final Token[] text, final Literal lit){
@@ -165,81 +1213,162 @@ public class MatchEval {
         return !(range == null || range[0] < 0);
     }
 
+    /**
+     * Find the first occurrence of a literal in a single pass over the text, see {@link SequenceMatcher}.
+     * @param text the tokens to search in
+     * @param pattern the literal to look for
+     * @return the range of the first occurrence, or null if not found (reversed when the literal is negated)
+     */
     public static int[] findRange(final Token[] text, final Literal pattern){
-        final int T = text.length;
-        final int P = pattern.tokens.length;
-
-        int matchStart = Integer.MAX_VALUE;
-        int matchEnd = -1;
-
-        boolean pNeg = pattern.negated;
-
-        nextS : for (int si = 0; si < T; si++) {
-            int pi;
-
-            nextP: for (pi = 0; pi < P; pi++) {
+        int[] range = pattern.matcher().findRange(text);
+        if(pattern.negated){
+            return range == null ? new int[]{0, text.length} : null;
+        }
+        return range;
+    }
 
-                Token p = pattern.tokens[pi];
+    /**
+     * Find the first occurrence of a literal using the positional index of the text.
+     * Single words are plain lookups. For sequences without + or * only the positions of the rarest word
+     * are tried as candidate starts. When a word of the sequence does not occur at all, no matching is needed.
+     * Sequences with groups or bounded gaps are matched in a single pass over the text.
+     * The positions of the single word operands of a proximity pattern are read from the index.
+     * @param index indexed text
+     * @param pattern the literal to look for
+     * @return the range of the first occurrence, or null if not found (reversed when the literal is negated)
+     */
+    public static int[] findRange(final TokenIndex index, final Literal pattern){
+        if(pattern.isGrouped()){
+            int[] range = pattern.matcher().findRange(index);
+            if(pattern.negated){
+                return range == null ? new int[]{0, index.size()} : null;
+            }
+            return range;
+        }
+        final Token[] text = index.tokens;
+        final Token[] p = pattern.tokens;
+        final int T = text.length;
+        final boolean pNeg = pattern.negated;
 
-                if(si + pi >= T){
+        int[] candidates = null;
+        int offset = 0;
+        boolean fixedOffset = true;
+        for (int pi = 0; pi < p.length; pi++) {
+            Token t = p[pi];
+            if(isGap(t)){
+                fixedOffset = false;
+            } else if(!isAnyOne(t)){
+                int[] positions = index.positions(t);
+                if(positions.length == 0){
+                    // a word of the sequence does not occur at all
                     return pNeg ? new int[]{0, T} : null;
                 }
-                Token s = text[si + pi];
-
-                if ("?".equals(p.getWord())) {
-                    matchStart = Math.min(si, matchStart);
-                    matchEnd = Math.max(si + pi + 1, matchEnd);
-                    continue nextP;
-                } else if ("+".equals(p.getWord()) || "*".equals(p.getWord())) {
-                    pi++;
-                    if(pi == P){
-                        matchStart = Math.min(si, matchStart);
-                        matchEnd = Math.max(si + pi, matchEnd);
-                        return pNeg ? null : new int[]{matchStart, matchEnd}; // last pattern token
-                    }
+                if(fixedOffset && (candidates == null || positions.length < candidates.length)){
+                    candidates = positions;
+                    offset = pi;
+                }
+            }
+        }
 
-                    Token pWildCard = p;
-                    p = pattern.tokens[pi];  // next p
-                    if("?".equals(p.getWord()) || "*".equals(p.getWord()) || "+".equals(p.getWord())){
-                        throw new IllegalArgumentException("Pattern contains multiple wildcards next to each other: " + pattern);
-                    }
-                    if(pi + si == T){
-                        return pNeg ? new int[]{0, T} : null; // no more tokens in sentence, but pattern expects token
+        if(candidates == null || !fixedOffset){
+            // the length of an occurrence is not fixed: a single pass over the text
+            return findRange(text, pattern);
+        } else {
+            for (int candidate : candidates) {
+                int si = candidate - offset;
+                if(si >= 0){
+                    int end = matchAt(text, pattern, si);
+                    if(end >= 0){
+                        return pNeg ? null : new int[]{si, end};
                     }
+                }
+            }
+        }
+        return pNeg ? new int[]{0, T} : null;
+    }
 
-                    // find first match for p
-                    for (int k = si + pi - ("*".equals(pWildCard.getWord()) ? 1 : 0); k < T; k++) {
-                        if(text[k].equals(p)){
-                            si = k;
-                            matchEnd = si + 1;
-                            continue nextP;
-                        }
-                    }
-                    matchStart = Integer.MAX_VALUE;
-                    matchEnd = -1;
-                    continue nextS; // next p not found
+    /**
+     * Match the (non negated) token sequence of a literal starting at a given position.
+     * After a + or * wildcard the earliest position of the remaining words is taken,
+     * which yields the shortest match for the given start. Not for sequences with groups or bounded gaps.
+     * @param text the tokens to search in
+     * @param pattern the literal to match
+     * @param start first token of the match
+     * @return the end (exclusive) of the match, or -1 if the literal does not match at start
+     */
+    public static int matchAt(final Token[] text, final Literal pattern, final int start){
+        final Token[] p = pattern.tokens;
+        final int T = text.length;
+        final int P = p.length;
+
+        int si = start;
+        int pi = 0;
+        while (pi < P) {
+            int minGap = 0;
+            boolean gap = false;
+            while (pi < P && isGap(p[pi])) {
+                gap = true;
+                if("+".equals(p[pi].getWord())){
+                    minGap++;
                 }
+                pi++;
+            }
 
-                // literal check
-                if (!s.equals(p)) {
-                    // not matching
-                    matchStart = Integer.MAX_VALUE;
-                    matchEnd = -1;
-                    continue nextS;
-                } else {
-                    // match
-                    matchStart = Math.min(si, matchStart);
-                    matchEnd = Math.max(si + pi + 1, matchEnd);
+            int segmentEnd = pi;
+            while (segmentEnd < P && !isGap(p[segmentEnd])) {
+                segmentEnd++;
+            }
+            final int segmentLength = segmentEnd - pi;
+
+            if(gap){
+                // earliest position of the next segment
+                int q = si + minGap;
+                while (q + segmentLength <= T && !segmentAt(text, p, pi, segmentEnd, q)) {
+                    q++;
+                }
+                if(q + segmentLength > T){
+                    return -1;
                 }
+                si = q;
+            } else if(si + segmentLength > T || !segmentAt(text, p, pi, segmentEnd, si)) {
+                return -1;
             }
+            si += segmentLength;
+            pi = segmentEnd;
+        }
+        return si;
+    }
 
-            if(pi == P){
-                // full pattern matched
-                return pNeg ? null : new int[]{matchStart, matchEnd};
+    /**
+     * Find the first occurrence of a literal in a text that is encoded with the vocabulary the literal was compiled with.
+     * @param normalized vocabulary ids of the normalized forms of the text
+     * @param exact vocabulary ids of the exact forms of the text
+     * @param pattern the literal to look for
+     * @return the range of the first occurrence, or null if not found (reversed when the literal is negated)
+     */
+    public static int[] findRange(final int[] normalized, final int[] exact, final Literal pattern){
+        int[] range = pattern.matcher().findRange(normalized, exact);
+        if(pattern.negated){
+            return range == null ? new int[]{0, normalized.length} : null;
+        }
+        return range;
+    }
+
+    private static boolean segmentAt(final Token[] text, final Token[] p, final int from, final int to, final int si){
+        for (int pi = from; pi < to; pi++) {
+            if(!isAnyOne(p[pi]) && !text[si + pi - from].equals(p[pi])){
+                return false;
             }
         }
-        return pNeg ? new int[]{0, T} : null;
+        return true;
     }
 
+    private static boolean isAnyOne(Token t){
+        return "?".equals(t.getWord());
+    }
+
+    private static boolean isGap(Token t){
+        return "+".equals(t.getWord()) || "*".equals(t.getWord());
+    }
 
 }
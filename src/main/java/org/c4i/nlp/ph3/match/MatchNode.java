@@ -67,11 +67,18 @@ public class MatchNode extends ImmutableBinaryTreeNode<MatchNode> {
                 return "'" + (left().eval()) + "'";
             case "-":
                 return "NOT(" + left().eval() + ")";
+            case "[":
+                return "[" + left().eval() + "]";
             case "?": return "?";
             case "+": return "+";
             case "*": return "*";
             case "#": return "#";
             default:
+                if(operator.startsWith("NEAR/")){
+                    return "(" + left().eval() + " " + operator + " " + right().eval() + ")";
+                } else if(operator.startsWith("COUNT{")){
+                    return left().eval() + operator.substring("COUNT".length());
+                }
                 throw new IllegalStateException();
         }
     }
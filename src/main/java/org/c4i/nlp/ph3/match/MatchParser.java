@@ -34,22 +34,74 @@ public class MatchParser extends BaseParser<MatchNode> {
 
 
     public static MatchRuleSet compileRuleSet(String rules, boolean simplify, StringNormalizer normalizer){
+        return compileRuleSet(rules, simplify, normalizer, new Vocabulary());
+    }
+
+    /**
+     * Compile rules, where all words are interned in the given vocabulary.
+     * Rule sets that share a vocabulary can evaluate the same encoded texts.
+     */
+    public static MatchRuleSet compileRuleSet(String rules, boolean simplify, StringNormalizer normalizer, Vocabulary vocabulary){
+        return compileRuleSet(rules, simplify, normalizer, vocabulary, false);
+    }
+
+    /**
+     * Compile rules that are evaluated by generated bytecode, instead of by the interpreter.
+     */
+    public static MatchRuleSet compileRuleSet(String rules, boolean simplify, StringNormalizer normalizer, boolean generateCode){
+        return compileRuleSet(rules, simplify, normalizer, new Vocabulary(), generateCode);
+    }
+
+    /**
+     * Compile rules, where all words are interned in the given vocabulary.
+     * @param generateCode whether the rules are evaluated by generated bytecode, instead of by the interpreter
+     */
+    public static MatchRuleSet compileRuleSet(String rules, boolean simplify, StringNormalizer normalizer, Vocabulary vocabulary, boolean generateCode){
 
         List<MatchRule> ruleList = Arrays.stream(rules.split("\n"))
                 .map(String::trim)
                 .filter(s -> !s.startsWith("//") && !s.isEmpty())
                 .map(s -> compileRule(s, simplify, normalizer)).collect(Collectors.toList());
 
-        return new MatchRuleSet(ruleList);
+        return new MatchRuleSet(ruleList, vocabulary, generateCode);
 
     }
 
+    /**
+     * Compile a rule of the form <code>rule_name = expression</code>, or <code>rule_name(options) = expression</code>
+     * with comma separated options: an integer priority (0 by default), and/or <code>segment</code>
+     * to match the expression within a single sentence or paragraph of a segmented text.
+     */
     public static MatchRule compileRule(String rule, boolean simplify, StringNormalizer normalizer){
         String[] split = rule.split("[=]", 2);
         if (split.length < 2){
             throw new IllegalArgumentException("The rule does not assign a rule name (rule_name = ...)");
         }
-        return new MatchRule(split[0].trim(), compileBody(split[1].trim(), simplify, normalizer));
+        String head = split[0].trim();
+        int priority = 0;
+        boolean segmented = false;
+        int open = head.indexOf('(');
+        if(open >= 0){
+            if(!head.endsWith(")")){
+                throw new IllegalArgumentException("The options of rule '" + head + "' are not closed: rule_name(options) = ...");
+            }
+            for (String option : head.substring(open + 1, head.length() - 1).split(",")) {
+                option = option.trim();
+                if(option.equals("segment")){
+                    segmented = true;
+                } else {
+                    try {
+                        priority = Integer.parseInt(option);
+                    } catch (NumberFormatException e){
+                        throw new IllegalArgumentException("Rule '" + head + "' has an unknown option: '" + option + "'. Use an integer priority or 'segment'.", e);
+                    }
+                }
+            }
+            head = head.substring(0, open).trim();
+        }
+        MatchRule result = new MatchRule(head, compileBody(split[1].trim(), simplify, normalizer), priority);
+        result.segmented = segmented;
+        return result;
     }
 
     public static Literal[][] compileBody(String expression){
@@ -101,15 +153,30 @@ public class MatchParser extends BaseParser<MatchNode> {
     Rule And() {
         Var<String> op = new Var<>();
         return Sequence(
-                Concat(),
+                Near(),
                 ZeroOrMore(
                         FirstOf("& ", "AND "), op.set(matchOrDefault(("&"))),
-                        Concat(),
+                        Near(),
                         push(new MatchNode("&", pop(1), pop()))
                 )
         );
     }
 
+    /**
+     * Two sequences within k words of each other, in either order: <code>refund NEAR/5 order_number</code>
+     */
+    Rule Near() {
+        Var<String> op = new Var<>();
+        return Sequence(
+                Concat(),
+                Optional(
+                        Sequence("NEAR/", OneOrMore(CharRange('0', '9'))), op.set(match()), WhiteSpace(),
+                        Concat(),
+                        push(new MatchNode(op.get(), pop(1), pop()))
+                )
+        );
+    }
+
     Rule Concat() {
         Var<String> op = new Var<>();
         return Sequence(
@@ -124,7 +191,7 @@ public class MatchParser extends BaseParser<MatchNode> {
 
     Rule Atom() {
 //        return FirstOf(DoubleQuotedString(), SingleQuotedString(), UnquotedQuotedString(), SquareRoot(), Parens());
-        return FirstOf(DoubleQuotedString(), SingleQuotedString(), LookUp(), AnyOne(), AnyOneOrMore(), AnyZeroOrMore(), Not(),  Parens(), UnquotedQuotedString());
+        return FirstOf(Count(), DoubleQuotedString(), SingleQuotedString(), LookUp(), AnyOne(), AnyOneOrMore(), AnyZeroOrMore(), Not(),  Parens(), OptionalPart(), BoundedGap(), UnquotedQuotedString());
     }
 
     /*MatchRule SquareRoot() {
@@ -161,6 +228,33 @@ public class MatchParser extends BaseParser<MatchNode> {
         return Sequence("( ", Expression(), ") ");
     }
 
+    /**
+     * An optional part of a sequence: <code>the_[big]_book</code>
+     */
+    Rule OptionalPart() {
+        return Sequence("[ ", Expression(), "] ", push(new MatchNode("[", pop(), null)));
+    }
+
+    /**
+     * A gap of at least m and at most n words in a sequence: <code>price_{0,3}_drop</code>, or <code>{m,}</code> or <code>{m}</code>
+     */
+    Rule BoundedGap() {
+        return Sequence(
+                Sequence('{', OneOrMore(CharRange('0', '9')), Optional(',', ZeroOrMore(CharRange('0', '9'))), '}'),
+                push(new MatchNode(match())), WhiteSpace());
+    }
+
+    /**
+     * A word that occurs at least m and at most n times: <code>refund{3,}</code>, or <code>{m,n}</code> or <code>{m}</code>
+     */
+    Rule Count() {
+        Var<String> op = new Var<>();
+        return Sequence(
+                FirstOf(DoubleQuotedString(), SingleQuotedString(), UnquotedQuotedString()),
+                Sequence('{', OneOrMore(CharRange('0', '9')), Optional(',', ZeroOrMore(CharRange('0', '9'))), '}'), op.set(match()),
+                push(new MatchNode("COUNT" + op.get(), pop(), null)), WhiteSpace());
+    }
+
     Rule AnyOne() {
         return Sequence("?", push(new MatchNode("?")), WhiteSpace());
     }
@@ -228,11 +322,19 @@ public class MatchParser extends BaseParser<MatchNode> {
                         CharRange("Basic Latin Lowercase"),
                         CharRange("Basic Latin Accents"),
                         CharRange("Digits"),
-                        CharRange("Arabic")
+                        WordLetter()
                 )),
                 push(new MatchNode("A", new MatchNode(matchOrDefault("")), null)), WhiteSpace());
     }
 
+    /**
+     * Latin, Greek, Cyrillic, Armenian, Hebrew and Arabic letters, up to the end of the Arabic block,
+     * except the characters that are operators of sequences: | [ ] { }.
+     */
+    Rule WordLetter(){
+        return Sequence(TestNot(AnyOf("|{}[]")), CharRange('\u0060', '\u06FF'));
+    }
+
     Rule CharRange(String name){
         char[] chars = CharRangeUtil.RANGES.get(name);
         return CharRange(chars[0], chars[1]);
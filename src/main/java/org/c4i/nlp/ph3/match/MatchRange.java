@@ -1,5 +1,8 @@
 package org.c4i.nlp.ph3.match;
 
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * @author Arvid Halma
  * @version 20-4-2017 - 13:35
@@ -8,6 +11,8 @@ public class MatchRange {
     String label;
     int tokenStart, tokenEnd;
     int charStart, charEnd;
+    /** per word that the rule counts, e.g. by refund{3,}: the number of occurrences in the text */
+    Map<String, Integer> counts = Collections.emptyMap();
 
     public MatchRange(String label, int tokenStart, int tokenEnd, int charStart, int charEnd) {
         this.label = label;
@@ -17,6 +22,34 @@ public class MatchRange {
         this.charEnd = charEnd;
     }
 
+    public String getLabel() {
+        return label;
+    }
+
+    public int getTokenStart() {
+        return tokenStart;
+    }
+
+    public int getTokenEnd() {
+        return tokenEnd;
+    }
+
+    public int getCharStart() {
+        return charStart;
+    }
+
+    public int getCharEnd() {
+        return charEnd;
+    }
+
+    /**
+     * @return per word that the rule counts, e.g. by <code>refund{3,}</code>: the number of occurrences in the text,
+     * empty when the rule counts no words or the counts are not known
+     */
+    public Map<String, Integer> getCounts() {
+        return counts;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -49,6 +82,9 @@ public class MatchRange {
         sb.append(", tokenEnd=").append(tokenEnd);
         sb.append(", charStart=").append(charStart);
         sb.append(", charEnd=").append(charEnd);
+        if(!counts.isEmpty()){
+            sb.append(", counts=").append(counts);
+        }
         sb.append('}');
         return sb.toString();
     }
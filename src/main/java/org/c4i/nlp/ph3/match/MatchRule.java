@@ -11,12 +11,70 @@ public class MatchRule {
 
     String head;
     Literal[][] expression;
+    /** rules with a higher priority are tried first when only the first matching labels are needed */
+    int priority;
+    /** whether the rule should match within a single segment (sentence or paragraph) of a text, see {@link org.c4i.nlp.ph3.tokenize.Segmenter} */
+    boolean segmented;
+    /** position of the rule in the rule set it belongs to */
+    int id = -1;
+    /**
+     * per literal (same shape as the expression): the id of its word sequence in the literal table of the rule set,
+     * or the id of the rule it looks up
+     */
+    int[][] literalIds;
+    /** per disjunction of the expression: its id in the clause table of the rule set */
+    int[] clauseIds;
+    /**
+     * words of which at least one occurs in every text the rule matches, as a sparse bitset over the vocabulary:
+     * bits requiredBits[k] of the long requiredWords[k] of a term bitset (see {@link EvalContext#terms}), or null when unknown
+     */
+    int[] requiredWords;
+    long[] requiredBits;
 
     public MatchRule(String head, Literal[][] expression) {
         this.head = head;
         this.expression = expression;
     }
 
+    public MatchRule(String head, Literal[][] expression, int priority) {
+        this(head, expression);
+        this.priority = priority;
+    }
+
+    /**
+     * @return a rule with the same head, body and options, but without the ids and codes of a rule set,
+     * so that rule sets built from the same rules do not overwrite each other's state
+     */
+    MatchRule copy(){
+        Literal[][] body = null;
+        if(expression != null){
+            body = new Literal[expression.length][];
+            for (int i = 0; i < expression.length; i++) {
+                body[i] = new Literal[expression[i].length];
+                for (int j = 0; j < expression[i].length; j++) {
+                    Literal lit = expression[i][j];
+                    body[i][j] = new Literal(lit.tokens, lit.negated, lit.meta);
+                    body[i][j].operators = lit.operators;
+                }
+            }
+        }
+        MatchRule copy = new MatchRule(head, body, priority);
+        copy.segmented = segmented;
+        return copy;
+    }
+
+    public String getHead() {
+        return head;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public boolean isSegmented() {
+        return segmented;
+    }
+
     @Override
     public String toString() {
         return head + " = " + Arrays.toString(expression);
@@ -2,9 +2,14 @@ package org.c4i.nlp.ph3.match;
 
 import org.c4i.nlp.ph3.tokenize.Token;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * A list of rules that define tags that may be triggered, given their corresponding expressions.
@@ -14,26 +19,547 @@ import java.util.stream.Collectors;
 public class MatchRuleSet {
 
     final Map<String, MatchRule> rules;
+    final Vocabulary vocabulary;
+    LiteralAutomaton automaton;
+    /** all distinct word sequences (not negated), shared by all rules: ids in the automaton and the literal ranges of a document */
+    Literal[] literals;
+    /** all distinct disjunctions, shared by all rules */
+    Literal[][] clauses;
+    /** per clause: the literal table ids or rule ids of its literals */
+    int[][] clauseLiteralIds;
+    /** per rule id: the id of an earlier rule with an identical body, or -1 */
+    int[] aliases;
+    /** selectivity of the literals, clauses and rules, and the evaluation order derived from it */
+    RuleStatistics statistics;
+    /** the number of longs of a term bitset of a document, 0 when no rule has required words */
+    int termWords;
+    /** the sorted vocabulary codes of the words that are counted, e.g. by refund{3,}: their counts are shared by all rules */
+    int[] countedWords;
+    /** per literal table id: the index of its word in {@link #countedWords} when it is a count, or -1 */
+    int[] countOf;
+    /** rules by id */
+    MatchRule[] ruleArray;
+    /** rule ids in evaluation order: a rule comes after all rules it looks up */
+    int[] order;
+    /** per rule id: its position in the evaluation order */
+    int[] positions;
+    /** per rule id: the rules that should be evaluated before it, because it looks them up or shares their body */
+    int[][] dependencies;
+    /** rule ids by descending priority, in the order of definition when equal */
+    int[] priorityOrder;
+    /** rule ids per level of the lookup graph, in evaluation order: a rule only looks up rules of lower levels */
+    int[][] levels;
+    /** per level: levelCosts[l][k] is the estimated cost of evaluating the rules before levels[l][k] */
+    long[][] levelCosts;
+    /** ascending positions in the evaluation order of the segmented rules and the rules they look up, or null when there are none */
+    int[] segmentSelection;
+    /** generated code for the rules, rule id i is evaluated by evaluators[i / {@link RuleCompiler#CHUNK_SIZE}] (optional) */
+    RuleEvaluator[] evaluators;
+    /** per set of labels: the positions in the evaluation order of their rules and the rules they look up */
+    private final Map<Set<String>, int[]> selections = new ConcurrentHashMap<>();
+    /** the number of sets of labels to remember */
+    private static final int MAX_SELECTIONS = 1024;
+    /** contexts to evaluate documents with that are not in use, reused for the next document */
+    private final Queue<EvalContext> contexts = new ConcurrentLinkedQueue<>();
+    /** contexts to evaluate some rules of a document of another thread with that are not in use, see {@link EvalContext#borrow(EvalContext)} */
+    private final Queue<EvalContext> workers = new ConcurrentLinkedQueue<>();
 
     public MatchRuleSet() {
-        rules = new HashMap<>();
+        rules = new LinkedHashMap<>();
+        vocabulary = new Vocabulary();
+        compile();
     }
 
     public MatchRuleSet(Map<String, MatchRule> rules) {
-        this.rules = rules;
+        this.rules = new LinkedHashMap<>();
+        rules.forEach((head, rule) -> this.rules.put(head, rule.copy()));
+        this.vocabulary = new Vocabulary();
         checkLookups();
+        compile();
     }
 
     public MatchRuleSet(List<MatchRule> rules) {
-        this();
+        this(rules, new Vocabulary());
+    }
+
+    /**
+     * @param rules the rules
+     * @param vocabulary the word ids to use, possibly shared with other rule sets
+     */
+    public MatchRuleSet(List<MatchRule> rules, Vocabulary vocabulary) {
+        this(rules, vocabulary, false);
+    }
+
+    /**
+     * @param rules the rules
+     * @param vocabulary the word ids to use, possibly shared with other rule sets
+     * @param generateCode whether to generate bytecode for the rules, instead of interpreting them
+     */
+    public MatchRuleSet(List<MatchRule> rules, Vocabulary vocabulary, boolean generateCode) {
+        this.rules = new LinkedHashMap<>();
+        this.vocabulary = vocabulary;
         for (MatchRule rule : rules) {
             if(this.rules.containsKey(rule.head)){
                 throw new IllegalArgumentException(String.format("There are multiple definitions of rule '%s'.", rule.head));
             } else {
-                this.rules.put(rule.head, rule);
+                this.rules.put(rule.head, rule.copy());
             }
         }
         checkLookups();
+        compile();
+        if(generateCode){
+            evaluators = RuleCompiler.compile(this);
+        }
+    }
+
+    /**
+     * Prepare the rules for evaluation: rules get an id and are put in evaluation order,
+     * on copies of the given rules and literals, which belong to this rule set only,
+     * all words are interned in the vocabulary and all plain word sequences are combined in a single automaton.
+     * Identical literals, disjunctions and bodies of different rules are shared, so a document needs to evaluate them only once.
+     */
+    private void compile(){
+        ruleArray = rules.values().toArray(new MatchRule[rules.size()]);
+        for (int i = 0; i < ruleArray.length; i++) {
+            ruleArray[i].id = i;
+        }
+
+        // literal table, keyed on the codes: unlike literal equality, these distinguish 'word' from "word"
+        Map<String, Integer> literalTable = new HashMap<>();
+        List<Literal> literalList = new ArrayList<>();
+        for (MatchRule rule : ruleArray) {
+            rule.literalIds = new int[rule.expression == null ? 0 : rule.expression.length][];
+            for (int i = 0; i < rule.literalIds.length; i++) {
+                Literal[] disjunction = rule.expression[i];
+                rule.literalIds[i] = new int[disjunction.length];
+                for (int j = 0; j < disjunction.length; j++) {
+                    Literal lit = disjunction[j];
+                    if (lit.meta == '#') {
+                        rule.literalIds[i][j] = rules.get(lit.tokens[0].getWord()).id;
+                    } else {
+                        lit.setIds(vocabulary.encode(lit));
+                        String key = literalKey(lit);
+                        Integer id = literalTable.get(key);
+                        if(id == null){
+                            id = literalList.size();
+                            Literal shared = new Literal(lit.tokens, false, lit.meta);
+                            shared.operators = lit.operators;
+                            shared.setIds(lit.ids);
+                            literalList.add(shared);
+                            literalTable.put(key, id);
+                        }
+                        rule.literalIds[i][j] = id;
+                    }
+                }
+            }
+        }
+        literals = literalList.toArray(new Literal[literalList.size()]);
+        automaton = new LiteralAutomaton(literalList, vocabulary);
+
+        // counted words
+        countedWords = Arrays.stream(literals).filter(MatchRuleSet::isCount).mapToInt(lit -> lit.ids[0]).distinct().sorted().toArray();
+        countOf = new int[literals.length];
+        for (int id = 0; id < literals.length; id++) {
+            countOf[id] = isCount(literals[id]) ? Arrays.binarySearch(countedWords, literals[id].ids[0]) : -1;
+        }
+
+        // clause table and identical bodies
+        Map<String, Integer> clauseTable = new HashMap<>();
+        List<Literal[]> clauseList = new ArrayList<>();
+        List<int[]> clauseLiteralIdList = new ArrayList<>();
+        Map<String, Integer> bodies = new HashMap<>();
+        aliases = new int[ruleArray.length];
+        for (MatchRule rule : ruleArray) {
+            rule.clauseIds = new int[rule.literalIds.length];
+            for (int i = 0; i < rule.clauseIds.length; i++) {
+                StringBuilder key = new StringBuilder();
+                for (int j = 0; j < rule.literalIds[i].length; j++) {
+                    Literal lit = rule.expression[i][j];
+                    key.append(lit.negated ? '-' : '+').append(lit.meta == '#' ? '#' : 'a').append(rule.literalIds[i][j]).append(' ');
+                }
+                Integer id = clauseTable.get(key.toString());
+                if(id == null){
+                    id = clauseList.size();
+                    clauseList.add(rule.expression[i]);
+                    clauseLiteralIdList.add(rule.literalIds[i]);
+                    clauseTable.put(key.toString(), id);
+                }
+                rule.clauseIds[i] = id;
+            }
+            // a segmented rule does not have the range of the same body in the whole text
+            Integer alias = bodies.putIfAbsent((rule.segmented ? "segment " : "") + Arrays.toString(rule.clauseIds), rule.id);
+            aliases[rule.id] = alias == null ? -1 : alias;
+        }
+        clauses = clauseList.toArray(new Literal[clauseList.size()][]);
+        clauseLiteralIds = clauseLiteralIdList.toArray(new int[clauseLiteralIdList.size()][]);
+
+        termWords = 0;
+        for (MatchRule rule : ruleArray) {
+            requireWords(rule);
+            if(rule.requiredWords != null){
+                termWords = Math.max(termWords, rule.requiredWords[rule.requiredWords.length - 1] + 1);
+            }
+        }
+
+        order = topologicalOrder();
+        positions = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            positions[order[i]] = i;
+        }
+        computeLevels();
+        List<String> segmented = Arrays.stream(ruleArray).filter(rule -> rule.segmented).map(rule -> rule.head).collect(Collectors.toList());
+        segmentSelection = segmented.isEmpty() ? null : selection(segmented);
+        priorityOrder = Arrays.stream(ruleArray)
+                .sorted(Comparator.comparingInt((MatchRule rule) -> -rule.priority).thenComparingInt(rule -> rule.id))
+                .mapToInt(rule -> rule.id).toArray();
+        statistics = new RuleStatistics(this);
+    }
+
+    /**
+     * A text can only match a rule if it contains a word of every disjunction of plain (not negated) word sequences:
+     * for instance the first word of every sequence. Of these disjunctions, the one with the fewest words is kept.
+     */
+    private static void requireWords(MatchRule rule){
+        Set<Integer> required = null;
+        for (int i = 0; i < rule.literalIds.length; i++) {
+            Set<Integer> words = new TreeSet<>();
+            for (Literal lit : rule.expression[i]) {
+                int word = lit.meta == '#' || lit.negated ? -1 : firstWord(lit);
+                if(word < 0){
+                    words = null;
+                    break;
+                }
+                words.add(word);
+            }
+            if(words != null && !words.isEmpty() && (required == null || words.size() < required.size())){
+                required = words;
+            }
+        }
+
+        rule.requiredWords = null;
+        rule.requiredBits = null;
+        if(required != null){
+            Map<Integer, Long> bits = new TreeMap<>();
+            for (int word : required) {
+                bits.merge(word >> 6, 1L << word, (a, b) -> a | b);
+            }
+            rule.requiredWords = bits.keySet().stream().mapToInt(Integer::intValue).toArray();
+            rule.requiredBits = bits.values().stream().mapToLong(Long::longValue).toArray();
+        }
+    }
+
+    /**
+     * @return the id of the first word of an encoded literal that is not part of a group, or -1 when there is none
+     */
+    static int firstWord(Literal lit){
+        int depth = 0;
+        for (int code : lit.ids) {
+            if(code == Vocabulary.GROUP_START || code == Vocabulary.OPTIONAL_START){
+                depth++;
+            } else if(code == Vocabulary.GROUP_END || code == Vocabulary.OPTIONAL_END){
+                depth--;
+            } else if(code >= 0 && depth == 0){
+                return code >> 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Group the rules by level: the level of a rule is one more than the highest level of the rules it looks up,
+     * so the rules of a level can be evaluated at the same time.
+     */
+    private void computeLevels(){
+        final int[] level = new int[ruleArray.length];
+        int levelCount = 0;
+        for (int id : order) {
+            for (int dependency : dependencies[id]) {
+                level[id] = Math.max(level[id], level[dependency] + 1);
+            }
+            levelCount = Math.max(levelCount, level[id] + 1);
+        }
+        final int[] sizes = new int[levelCount];
+        for (int id : order) {
+            sizes[level[id]]++;
+        }
+        levels = new int[levelCount][];
+        levelCosts = new long[levelCount][];
+        for (int l = 0; l < levelCount; l++) {
+            levels[l] = new int[sizes[l]];
+            levelCosts[l] = new long[sizes[l] + 1];
+            sizes[l] = 0;
+        }
+        for (int id : order) {
+            final int l = level[id], k = sizes[l]++;
+            levels[l][k] = id;
+            long cost = 1;
+            for (int i = 0; ruleArray[id].expression != null && i < ruleArray[id].expression.length; i++) {
+                cost += ruleArray[id].expression[i].length;
+            }
+            levelCosts[l][k + 1] = levelCosts[l][k] + cost;
+        }
+    }
+
+    /**
+     * Order the rules such that every rule comes after the rules it looks up (depth first).
+     * @return rule ids in evaluation order
+     */
+    private int[] topologicalOrder(){
+        dependencies = new int[ruleArray.length][];
+        for (MatchRule rule : ruleArray) {
+            IntStream.Builder ids = IntStream.builder();
+            if(aliases[rule.id] >= 0){
+                ids.add(aliases[rule.id]);
+            }
+            if(rule.expression != null) {
+                for (int i = 0; i < rule.expression.length; i++) {
+                    for (int j = 0; j < rule.expression[i].length; j++) {
+                        if (rule.expression[i][j].meta == '#') {
+                            ids.add(rule.literalIds[i][j]);
+                        }
+                    }
+                }
+            }
+            dependencies[rule.id] = ids.build().distinct().toArray();
+        }
+        int[] order = new int[ruleArray.length];
+        byte[] state = new byte[ruleArray.length]; // 0: new, 1: visiting, 2: done
+        int n = 0;
+        for (MatchRule rule : ruleArray) {
+            n = visit(rule, state, order, n);
+        }
+        return order;
+    }
+
+    private int visit(MatchRule rule, byte[] state, int[] order, int n){
+        if(state[rule.id] == 2){
+            return n;
+        } else if(state[rule.id] == 1){
+            throw new IllegalArgumentException(String.format("Rule '%s' (indirectly) contains a lookup to itself. No recursion allowed.", rule.head));
+        }
+        state[rule.id] = 1;
+        for (int dependency : dependencies[rule.id]) {
+            n = visit(ruleArray[dependency], state, order, n);
+        }
+        state[rule.id] = 2;
+        order[n] = rule.id;
+        return n + 1;
+    }
+
+    /**
+     * The rules needed to evaluate some labels: their own rules and the rules they (indirectly) look up.
+     * This is computed once per set of labels.
+     * @param labels heads of rules
+     * @return ascending positions in the evaluation order of the needed rules
+     */
+    int[] selection(Collection<String> labels){
+        int[] selection = labels instanceof Set ? selections.get(labels) : null;
+        if(selection == null){
+            Set<String> key = new HashSet<>(labels);
+            selection = selections.get(key);
+            if(selection == null){
+                boolean[] needed = new boolean[ruleArray.length];
+                for (String label : key) {
+                    MatchRule rule = rules.get(label);
+                    if(rule == null){
+                        throw new IllegalArgumentException("Unknown label: " + label);
+                    }
+                    require(rule, needed);
+                }
+                int n = 0;
+                for (int id : order) {
+                    n += needed[id] ? 1 : 0;
+                }
+                selection = new int[n];
+                n = 0;
+                for (int p = 0; p < order.length; p++) {
+                    if(needed[order[p]]){
+                        selection[n++] = p;
+                    }
+                }
+                if(selections.size() >= MAX_SELECTIONS){
+                    selections.clear();
+                }
+                selections.put(key, selection);
+            }
+        }
+        return selection;
+    }
+
+    private void require(MatchRule rule, boolean[] needed){
+        if(needed[rule.id]){
+            return;
+        }
+        needed[rule.id] = true;
+        for (int dependency : dependencies[rule.id]) {
+            require(ruleArray[dependency], needed);
+        }
+    }
+
+    /**
+     * @return the labels of all rules, in the order they are evaluated
+     */
+    public List<String> getLabels(){
+        List<String> labels = new ArrayList<>(order.length);
+        for (int id : order) {
+            labels.add(ruleArray[id].head);
+        }
+        return labels;
+    }
+
+    /**
+     * @return the number of labels: label ids are 0 up to this number
+     */
+    public int getLabelCount(){
+        return ruleArray.length;
+    }
+
+    /**
+     * @param label the head of a rule
+     * @return the dense id of the label, used by {@link MatchSink} and {@link MatchEval#classify(MatchRuleSet, Token[], long[])}, or -1 if unknown
+     */
+    public int getLabelId(String label){
+        MatchRule rule = rules.get(label);
+        return rule == null ? -1 : rule.id;
+    }
+
+    /**
+     * @param labelId the id of a label
+     * @return the label
+     */
+    public String getLabel(int labelId){
+        if(labelId < 0 || labelId >= ruleArray.length){
+            throw new IllegalArgumentException("Unknown label id: " + labelId);
+        }
+        return ruleArray[labelId].head;
+    }
+
+    /**
+     * @param label the head of a rule
+     * @return the priority of the rule, see {@link MatchEval#first(MatchRuleSet, Token[], int)}
+     */
+    public int getPriority(String label){
+        MatchRule rule = rules.get(label);
+        if(rule == null){
+            throw new IllegalArgumentException("Unknown label: " + label);
+        }
+        return rule.priority;
+    }
+
+    /**
+     * Evaluate clauses that are likely to be false, and literals that are likely to be true, first.
+     * The likelihoods are measured while evaluating, on a sample of the documents.
+     * This is on by default, and does not apply to generated code.
+     * The results are the same either way.
+     * @param adaptive whether to reorder the clauses and literals of the rules
+     */
+    public void setAdaptive(boolean adaptive){
+        statistics.setEnabled(adaptive);
+    }
+
+    public boolean isAdaptive(){
+        return statistics.isEnabled();
+    }
+
+    /**
+     * Reorder the clauses and literals of the rules now, based on the statistics so far.
+     * This also happens periodically while evaluating.
+     */
+    public void reorder(){
+        statistics.reorder();
+    }
+
+    /**
+     * Save the statistics on which the order of clauses and literals is based.
+     * @param writer destination
+     * @throws IOException when writing fails
+     */
+    public void saveStatistics(Writer writer) throws IOException {
+        statistics.write(writer);
+    }
+
+    /**
+     * Load statistics saved by (a rule set of the same rules) with {@link #saveStatistics(Writer)},
+     * so the order of clauses and literals does not have to be learned again.
+     * @param reader source
+     * @throws IOException when reading fails
+     */
+    public void loadStatistics(Reader reader) throws IOException {
+        statistics.read(reader);
+    }
+
+    /**
+     * Take an evaluation context that is not in use, or a new one when all are taken
+     * (by other threads, or by an evaluation that calls back into this rule set). Give it back with {@link #release(EvalContext)}.
+     * The contexts are owned by the rule set, so they do not keep it reachable after it is dropped.
+     * @return a cleared context for this rule set
+     */
+    EvalContext acquire(){
+        final EvalContext context = contexts.poll();
+        return context == null ? new EvalContext(this) : context;
+    }
+
+    /**
+     * Clear a context taken by {@link #acquire()}, so it can be used for the next document.
+     * @param context evaluation context of this rule set
+     */
+    void release(EvalContext context){
+        context.clear();
+        contexts.offer(context);
+    }
+
+    /**
+     * Take a context to evaluate some rules of the document of another context with. Give it back with {@link #releaseWorker(EvalContext)}.
+     * @return a context that does not borrow a document
+     */
+    EvalContext worker(){
+        final EvalContext worker = workers.poll();
+        return worker == null ? EvalContext.worker(this) : worker;
+    }
+
+    /**
+     * Let a context taken by {@link #worker()} give back the document it borrowed, so it can be used for the next one.
+     * @param worker worker context of this rule set
+     */
+    void releaseWorker(EvalContext worker){
+        worker.giveBack();
+        workers.offer(worker);
+    }
+
+    /**
+     * @return whether the rules are evaluated by generated code
+     */
+    public boolean isGenerated(){
+        return evaluators != null;
+    }
+
+    public LiteralAutomaton getAutomaton() {
+        return automaton;
+    }
+
+    /**
+     * @return the ids of all words in the rules. Use it to encode texts that are tokenized elsewhere.
+     */
+    public Vocabulary getVocabulary() {
+        return vocabulary;
+    }
+
+    private static boolean isCount(Literal lit){
+        return lit.ids.length == 2 && lit.ids[1] == Vocabulary.COUNT;
+    }
+
+    /**
+     * Key of a literal in the literal table: its codes, and the bounds of its gaps and proximity operators,
+     * which share the codes {@link Vocabulary#GAP} and {@link Vocabulary#NEAR}.
+     */
+    private static String literalKey(Literal lit){
+        StringBuilder key = new StringBuilder().append(lit.meta).append(Arrays.toString(lit.ids));
+        for (int i = 0; i < lit.tokens.length; i++) {
+            if(lit.special(i) <= Vocabulary.GAP){
+                key.append(lit.tokens[i].getWord());
+            }
+        }
+        return key.toString();
     }
 
     private void checkLookups(){
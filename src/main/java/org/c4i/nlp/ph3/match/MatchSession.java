@@ -0,0 +1,297 @@
+package org.c4i.nlp.ph3.match;
+
+import org.c4i.nlp.ph3.tokenize.Token;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Evaluation of a rule set against a text that grows, like a conversation, without evaluating the whole text again.
+ * <p>
+ * The session keeps the encoded tokens, the first occurrences of the literals and the state of the scans for the literals
+ * that have not been found yet. When tokens are appended, only these scans continue over the new tokens; literals that were
+ * found keep their first occurrence. The occurrences of counted words, e.g. by <code>refund{3,}</code>, are counted
+ * in the new tokens, and their counts are evaluated again after every message, and reported by the labels. The rules are then evaluated against the occurrences, which does not depend on the length of the text.
+ * The labels are the same as those of {@link MatchEval#eval(MatchRuleSet, Token[])} for all tokens appended so far,
+ * with token positions counted from the start of the session. Character offsets are the ones of the appended tokens,
+ * which are counted per message: they are -1 for a range that spans several messages.
+ * <p>
+ * Segmented rules (see {@link MatchRule#isSegmented()}) are evaluated per segment of the tokens appended so far,
+ * where segments are split like those of {@link MatchEval#eval(MatchRuleSet, Token[])}: a segment ends where the segment
+ * number of the next token differs, also within a message. Segments that ended keep their matches; the last segment is
+ * evaluated again after every message, since it may still grow.
+ * <p>
+ * Optionally, only a window of the last tokens is kept. Memory is bounded then, but a wildcard sequence that started before
+ * the window gets the first token of the window as its start. Counts always include the tokens before the window,
+ * segments only the tokens of the window.
+ */
+public class MatchSession {
+
+    private final MatchRuleSet ruleSet;
+    private final int window;
+
+    /** ids of the literals that are not covered by the automaton */
+    private final int[] uncovered;
+    /** per uncovered literal: the state of its forward scan */
+    private final long[] states;
+    /** the states of the automaton scan */
+    private final int[] automatonStates = new int[2];
+    /**
+     * the rules are evaluated with the first occurrences of all literals from the start of the session,
+     * and the words that occurred so far: its hits and terms are only updated, never cleared
+     */
+    private final EvalContext context;
+    /** the context to evaluate the segmented rules with, or null when the rule set has none */
+    private final EvalContext segment;
+    /** per rule id: the range of the first match of a segmented rule in a segment that ended, or -1 */
+    private final int[] endedRanges;
+    /** per rule id: the range of the match of a segmented rule in the last segment, or -1 */
+    private final int[] lastRanges;
+    /** the position of the first token of the last segment, and the segment number of the last token */
+    private int segmentStart, lastSegment;
+
+    /** the kept tokens, the first one is at position offset */
+    private Token[] tokens = new Token[16];
+    private int[] normalized = new int[16], exact = new int[16];
+    /** per kept token: the number of the message it was appended with, see {@link #toMatchRange(String, int, int)} */
+    private int[] messages = new int[16];
+    private int offset, size, messageCount;
+    private Map<String, MatchRange> labels = Collections.emptyMap();
+
+    /**
+     * @param ruleSet the rules to apply
+     */
+    public MatchSession(MatchRuleSet ruleSet) {
+        this(ruleSet, 0);
+    }
+
+    /**
+     * @param ruleSet the rules to apply
+     * @param window the number of last tokens in which new occurrences are searched, or 0 to keep all tokens
+     */
+    public MatchSession(MatchRuleSet ruleSet, int window) {
+        if(window < 0){
+            throw new IllegalArgumentException("The window should not be negative: " + window);
+        }
+        this.ruleSet = ruleSet;
+        this.window = window;
+        this.context = new EvalContext(ruleSet);
+        this.uncovered = IntStream.range(0, ruleSet.literals.length).filter(id -> !ruleSet.automaton.covers(id)).toArray();
+        this.states = new long[uncovered.length];
+        this.segment = ruleSet.segmentSelection == null ? null : new EvalContext(ruleSet);
+        this.endedRanges = segment == null ? null : new int[2 * ruleSet.ruleArray.length];
+        this.lastRanges = segment == null ? null : new int[2 * ruleSet.ruleArray.length];
+        if(endedRanges != null){
+            Arrays.fill(endedRanges, -1);
+        }
+        for (int id : uncovered) {
+            // not found yet
+            context.hits[2 * id] = context.hits[2 * id + 1] = -1;
+        }
+    }
+
+    /**
+     * Add tokens to the end of the text, and update the labels.
+     * @param message the tokens to add
+     * @return the labels of the whole text so far
+     */
+    public synchronized Map<String, MatchRange> append(Token[] message){
+        reserve(message.length);
+        final int from = size;
+        final int[] messageNormalized = ruleSet.vocabulary.normalizedIds(message);
+        final int[] messageExact = ruleSet.vocabulary.exactIds(message);
+        System.arraycopy(message, 0, tokens, size, message.length);
+        System.arraycopy(messageNormalized, 0, normalized, size, message.length);
+        System.arraycopy(messageExact, 0, exact, size, message.length);
+        Arrays.fill(messages, size, size + message.length, messageCount++);
+        size += message.length;
+        final int[] hits = context.hits;
+        final long[] terms = context.terms;
+        if(terms != null){
+            EvalContext.addTerms(terms, normalized, from, size);
+            EvalContext.addTerms(terms, exact, from, size);
+        }
+        final int[] counts = context.addCounts(normalized, exact, from, size, offset);
+
+        // literals of the automaton: occurrences that end in the message
+        ruleSet.automaton.scan(normalized, exact, from, size, automatonStates, (id, start, end) -> {
+            if(hits[2 * id] < 0){
+                hits[2 * id] = offset + start;
+                hits[2 * id + 1] = offset + end;
+            }
+        });
+
+        // other literals that are not found yet
+        for (int k = 0; k < uncovered.length; k++) {
+            final int id = uncovered[k];
+            final int counted = ruleSet.countOf[id];
+            if(counted >= 0){
+                // counts only grow, so a count may hold after a message, or stop holding, like refund{1,2}
+                final boolean holds = ruleSet.literals[id].matcher().countMatches(counts[3 * counted]);
+                hits[2 * id] = holds ? counts[3 * counted + 1] : -1;
+                hits[2 * id + 1] = holds ? counts[3 * counted + 2] : -1;
+            } else if(hits[2 * id] < 0){
+                final int[] range = find(k, ruleSet.literals[id].matcher(), from);
+                if(range != null){
+                    hits[2 * id] = range[0];
+                    hits[2 * id + 1] = range[1];
+                }
+            }
+        }
+
+        if(segment != null){
+            evalSegments(from);
+        }
+
+        // all literal occurrences are known: only the length of the text is needed
+        context.length = length();
+        context.start();
+        if(segment != null){
+            for (int position : ruleSet.segmentSelection) {
+                final int id = ruleSet.order[position];
+                if(ruleSet.ruleArray[id].segmented){
+                    final int[] ranges = endedRanges[2 * id] >= 0 ? endedRanges : lastRanges;
+                    if(ranges[2 * id] >= 0){
+                        context.ruleRanges[2 * id] = ranges[2 * id];
+                        context.ruleRanges[2 * id + 1] = ranges[2 * id + 1];
+                        context.matched(id);
+                    }
+                    context.evaluated(id);
+                }
+            }
+        }
+        MatchEval.evalRules(context);
+        final Map<String, MatchRange> result = new ConcurrentHashMap<>();
+        for (int k = 0; k < context.size(); k++) {
+            final MatchRange range = toMatchRange(context.label(k), context.tokenStart(k), context.tokenEnd(k));
+            range.counts = context.counts(context.match(k));
+            result.put(context.label(k), range);
+        }
+        context.clearRanges();
+        labels = result;
+        return result;
+    }
+
+    /**
+     * Evaluate the segmented rules against the segments that ended in the new tokens, and against the last segment.
+     * @param from the first new token in the buffer
+     */
+    private void evalSegments(int from){
+        for (int i = from; i < size; i++) {
+            final int number = tokens[i].getSegment();
+            if(offset + i > 0 && number != lastSegment){
+                evalSegment(segmentStart, offset + i, endedRanges);
+                segmentStart = offset + i;
+            }
+            lastSegment = number;
+        }
+        Arrays.fill(lastRanges, -1);
+        evalSegment(segmentStart, length(), lastRanges);
+    }
+
+    /**
+     * Evaluate the segmented rules, and the rules they look up, against the kept tokens of a segment.
+     * @param from the position of the first token of the segment
+     * @param to the position after the segment
+     * @param ranges per rule id: receives the range of the match of a segmented rule that has no range yet
+     */
+    private void evalSegment(int from, int to, int[] ranges){
+        final int start = Math.max(from, offset);
+        if(start >= to){
+            return;
+        }
+        segment.loadSegment(tokens, normalized, exact, start - offset, to - offset).scanTerms();
+        segment.scanOccurrences();
+        for (int position : ruleSet.segmentSelection) {
+            final int id = ruleSet.order[position];
+            MatchEval.evalRule(segment, ruleSet.evaluators, id);
+            if(ruleSet.ruleArray[id].segmented && ranges[2 * id] < 0 && segment.ruleRanges[2 * id] >= 0){
+                ranges[2 * id] = start + segment.ruleRanges[2 * id];
+                ranges[2 * id + 1] = start + segment.ruleRanges[2 * id + 1];
+            }
+        }
+        segment.clear();
+    }
+
+    /**
+     * Continue the scan of an uncovered literal over the new tokens.
+     * @param k index in {@link #uncovered}
+     * @param matcher matcher of the literal
+     * @param from the first new token in the buffer
+     * @return the range of the first occurrence, from the start of the session, or null if not found yet
+     */
+    private int[] find(int k, SequenceMatcher matcher, int from){
+        if(!matcher.isIncremental()){
+            // only * wildcards or a very long sequence: search the kept tokens
+            long found = matcher.find(normalized, exact, size);
+            return found < 0 ? null : new int[]{offset + (int) (found >> 32), offset + (int) found};
+        }
+        long d = states[k];
+        for (int i = from; i < size; i++) {
+            d = matcher.next(d, matcher.mask(normalized, exact, i));
+            if(matcher.accepts(d)){
+                int end = offset + i + 1;
+                return new int[]{matcher.start(null, normalized, exact, offset, offset, end), end};
+            }
+        }
+        states[k] = d;
+        return null;
+    }
+
+    /**
+     * Make room for n more tokens, dropping tokens before the window.
+     */
+    private void reserve(int n){
+        if(size + n <= tokens.length){
+            return;
+        }
+        final int drop = window > 0 ? Math.max(0, size - window) : 0;
+        final int keep = size - drop;
+        final int capacity = Math.max(keep + n, window > 0 ? 2 * window : 2 * tokens.length);
+        final Token[] keptTokens = new Token[capacity];
+        final int[] keptNormalized = new int[capacity], keptExact = new int[capacity], keptMessages = new int[capacity];
+        System.arraycopy(tokens, drop, keptTokens, 0, keep);
+        System.arraycopy(normalized, drop, keptNormalized, 0, keep);
+        System.arraycopy(exact, drop, keptExact, 0, keep);
+        System.arraycopy(messages, drop, keptMessages, 0, keep);
+        tokens = keptTokens;
+        normalized = keptNormalized;
+        exact = keptExact;
+        messages = keptMessages;
+        offset += drop;
+        size = keep;
+    }
+
+    /**
+     * The character offsets of the tokens are those within their message, so they are only known
+     * when the range is within one message that is kept.
+     * @return a range with the character offsets of its tokens, or -1 for both when it is empty, spans messages or starts before the window
+     */
+    private MatchRange toMatchRange(String label, int start, int end){
+        if(start >= offset && start < end && messages[start - offset] == messages[end - 1 - offset]){
+            return new MatchRange(label, start, end, tokens[start - offset].getCharStart(), tokens[end - 1 - offset].getCharEnd());
+        }
+        return new MatchRange(label, start, end, -1, -1);
+    }
+
+    /**
+     * @return the labels of the whole text so far
+     */
+    public synchronized Map<String, MatchRange> getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return the number of tokens appended so far
+     */
+    public synchronized int length(){
+        return offset + size;
+    }
+
+    public MatchRuleSet getRuleSet() {
+        return ruleSet;
+    }
+}
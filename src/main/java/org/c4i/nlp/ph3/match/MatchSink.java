@@ -0,0 +1,18 @@
+package org.c4i.nlp.ph3.match;
+
+/**
+ * Receives the matches of the rules of a rule set against a document, without creating a {@link MatchRange} per match.
+ * Labels are identified by their id in the rule set, see {@link MatchRuleSet#getLabelId(String)}.
+ */
+@FunctionalInterface
+public interface MatchSink {
+
+    /**
+     * @param labelId the id of the label of the matching rule
+     * @param tokenStart first token of the match
+     * @param tokenEnd the token after the match
+     * @param charStart first character of the match, or -1 when the original tokens are unknown
+     * @param charEnd the character after the match, or -1 when the original tokens are unknown
+     */
+    void match(int labelId, int tokenStart, int tokenEnd, int charStart, int charEnd);
+}
@@ -39,6 +39,26 @@ public class MatchUtil {
         return textToTokens(text, DEFAULT_NORMALIZER);
     }
 
+    /**
+     * Tokenizes a text and builds a positional index for it, so many patterns can be looked up efficiently.
+     * @param text original text
+     * @param normalizer how words are preprocessed
+     * @return the indexed words of the text
+     */
+    public static TokenIndex textToIndex(String text, StringNormalizer normalizer){
+        return new TokenIndex(textToTokens(text, normalizer));
+    }
+
+    /**
+     * Tokenizes a text and builds a positional index for it, so many patterns can be looked up efficiently.
+     * Words are normalized with {@link StringNormalizers#DEFAULT}.
+     * @param text original text
+     * @return the indexed words of the text
+     */
+    public static TokenIndex textToIndex(String text){
+        return textToIndex(text, DEFAULT_NORMALIZER);
+    }
+
     /**
      * Compiles a phrase rule to a form that can efficiently be reused when matching.
      * @param pattern a phrase expression
@@ -68,6 +88,26 @@ public class MatchUtil {
         return MatchEval.findRange(text, rule, null, null);
     }
 
+    /**
+     * Tries to finds the first possible occurrence of the pattern in the indexed text.
+     * @param text indexed text
+     * @param rule a phrase expression
+     * @return a array of length 2: {token_start_index_inclusive, token_end_index_exclusive}, or null when the pattern was not found
+     */
+    public static int[] findRange(final TokenIndex text, final MatchRule rule){
+        return MatchEval.findRange(text, rule, null, null);
+    }
+
+    /**
+     * Tries to finds the first possible occurrence of the pattern in the indexed text.
+     * @param text indexed text
+     * @param pattern a phrase expression
+     * @return a array of length 2: {token_start_index_inclusive, token_end_index_exclusive}, or null when the pattern was not found
+     */
+    public static int[] findRange(final TokenIndex text, final String pattern){
+        return MatchEval.findRange(text, new MatchRule(null, compilePattern(pattern)), null, null);
+    }
+
     /**
      * Tries to finds the first possible occurrence of the pattern in the text.
      * @param text original text
@@ -99,6 +139,39 @@ public class MatchUtil {
         return MatchEval.findRange(textToTokens(text, normalizer), new MatchRule(null, compilePattern(pattern, normalizer)), null, null);
     }
 
+    /**
+     * Finds the non-overlapping occurrences of the words of the pattern in the text, when the pattern matches it.
+     * See {@link MatchEval#findAll(Token[], MatchRule, MatchRuleSet, boolean, Occurrences)}.
+     * @param text the tokens to search in
+     * @param rule a phrase expression
+     * @param occurrences receives the token ranges: {token_start_index_inclusive, token_end_index_exclusive}
+     * @return the number of occurrences
+     */
+    public static int findAll(final Token[] text, final MatchRule rule, final Occurrences occurrences){
+        return MatchEval.findAll(text, rule, null, false, occurrences);
+    }
+
+    /**
+     * Finds the non-overlapping occurrences of the words of the pattern in the text, when the pattern matches it.
+     * @param text original text
+     * @param pattern a phrase expression
+     * @param occurrences receives the token ranges: {token_start_index_inclusive, token_end_index_exclusive}
+     * @return the number of occurrences
+     */
+    public static int findAll(final String text, final String pattern, final Occurrences occurrences){
+        return findAll(textToTokens(text), new MatchRule(null, compilePattern(pattern)), occurrences);
+    }
+
+    /**
+     * Counts the non-overlapping occurrences of the words of the pattern in the text, when the pattern matches it.
+     * @param text original text
+     * @param pattern a phrase expression
+     * @return the number of occurrences, 0 if the pattern was not found
+     */
+    public static int count(final String text, final String pattern){
+        return findAll(text, pattern, (start, end) -> true);
+    }
+
     /**
      * Checks whether a given pattern occurs in the text.
      * @param text the content to be queried
@@ -156,6 +229,16 @@ public class MatchUtil {
         return MatchEval.contains(text, new MatchRule(null, pattern));
     }
 
+    /**
+     * Checks whether a given pattern occurs in the indexed text.
+     * @param text the content to be queried
+     * @param pattern the expression to look for
+     * @return true if the pattern is found, false otherwise
+     */
+    public static boolean contains(TokenIndex text, Literal[][] pattern){
+        return MatchEval.contains(text, new MatchRule(null, pattern));
+    }
+
     /**
      * Checks whether at least one of the given patterns occurs in the text.
      * @param text the content to be queried
@@ -0,0 +1,15 @@
+package org.c4i.nlp.ph3.match;
+
+/**
+ * Receives the occurrences of a pattern as they are found, see {@link SequenceMatcher#findAll(org.c4i.nlp.ph3.tokenize.Token[], boolean, Occurrences)}.
+ */
+@FunctionalInterface
+public interface Occurrences {
+
+    /**
+     * @param start first token of the occurrence
+     * @param end the token after the occurrence
+     * @return whether to continue the search: false stops it
+     */
+    boolean found(int start, int end);
+}
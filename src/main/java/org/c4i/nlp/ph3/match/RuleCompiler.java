@@ -0,0 +1,403 @@
+package org.c4i.nlp.ph3.match;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Generates bytecode for the rules of a rule set, as an alternative to interpreting them.
+ * <p>
+ * Every rule becomes a static method in which its CNF is unrolled into straight-line code:
+ * literals and lookups read a constant slot of the literal ranges (hits) or rule ranges.
+ * Literals that are not found by the automaton are filled in by a generated matcher the first time they are needed,
+ * with the word ids and the wildcard structure as constants.
+ * Rules are generated in classes of {@link #CHUNK_SIZE} rules.
+ * Rules with other kinds of literals, or too many literals, are left to the interpreter.
+ * <p>
+ * The classes are defined by a class loader of their own, so they are unloaded together with the rule set.
+ */
+final class RuleCompiler {
+
+    /** number of rules per generated class */
+    static final int CHUNK_SIZE = 256;
+    /** keeps a rule method well below the size HotSpot is willing to compile (8000 bytes) */
+    static final int MAX_LITERALS = 256;
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+    private static final String SUPER = Type.getInternalName(RuleEvaluator.class);
+    private static final String RULE_DESC = "([I[II[I[I)Z";
+    private static final String MATCHER_DESC = "([I[II)J";
+
+    // locals of a rule method
+    private static final int NORMALIZED = 0, EXACT = 1, TEXT_LENGTH = 2, HITS = 3, RANGES = 4, START = 5, END = 6, CLAUSE_START = 7, CLAUSE_END = 8, FOUND = 9;
+    // locals of a matcher method (after the two text arrays and the text length)
+    private static final int LENGTH = 2, SI = 3, POS = 4, Q = 5;
+
+    private RuleCompiler() {
+    }
+
+    /**
+     * @param ruleSet a compiled rule set
+     * @return evaluators of the rules, rule id i is evaluated by evaluator i / {@link #CHUNK_SIZE}
+     */
+    static RuleEvaluator[] compile(MatchRuleSet ruleSet){
+        int n = ruleSet.ruleArray.length;
+        RuleEvaluator[] evaluators = new RuleEvaluator[(n + CHUNK_SIZE - 1) / CHUNK_SIZE];
+        Loader loader = new Loader();
+        for (int i = 0; i < evaluators.length; i++) {
+            evaluators[i] = compile(ruleSet, i * CHUNK_SIZE, Math.min(n, (i + 1) * CHUNK_SIZE), loader);
+        }
+        return evaluators;
+    }
+
+    /**
+     * @param rule a rule of a compiled rule set
+     * @return whether code can be generated for the rule
+     */
+    static boolean isCompilable(MatchRule rule){
+        if(rule.expression == null){
+            return true;
+        }
+        int n = 0;
+        for (int i = 0; i < rule.expression.length; i++) {
+            for (int j = 0; j < rule.expression[i].length; j++) {
+                Literal lit = rule.expression[i][j];
+                if(lit.meta != '#' && (lit.meta != 'a' || lit.ids == null || lit.isGrouped())){
+                    return false;
+                }
+                n++;
+            }
+        }
+        return n <= MAX_LITERALS && rule.literalIds != null;
+    }
+
+    private static RuleEvaluator compile(MatchRuleSet ruleSet, int from, int to, Loader loader){
+        MatchRule[] rules = ruleSet.ruleArray;
+        String name = "org/c4i/nlp/ph3/match/GeneratedRules$" + COUNTER.incrementAndGet();
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES){
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                // only int arrays are merged, never load classes for this
+                return "java/lang/Object";
+            }
+        };
+        cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, name, null, SUPER, null);
+
+        MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, SUPER, "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        Set<Integer> matchers = new TreeSet<>();
+        boolean[] compiled = new boolean[to - from];
+        for (int id = from; id < to; id++) {
+            if(isCompilable(rules[id])){
+                compiled[id - from] = true;
+                rule(cw, name, ruleSet, rules[id], matchers);
+            }
+        }
+        for (int id : matchers) {
+            matcher(cw, id, ruleSet.literals[id].ids);
+        }
+        dispatch(cw, name, from, compiled);
+        cw.visitEnd();
+
+        try {
+            return (RuleEvaluator) loader.define(name.replace('/', '.'), cw.toByteArray()).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not instantiate generated rules", e);
+        }
+    }
+
+    /**
+     * <code>public int eval(int rule, int[] normalized, int[] exact, int length, int[] hits, int[] ruleRanges)</code>:
+     * a table switch to the rule methods.
+     */
+    private static void dispatch(ClassWriter cw, String owner, int from, boolean[] compiled){
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "eval", "(I[I[II[I[I)I", null, null);
+        mv.visitCode();
+        Label notCompiled = new Label();
+        if(compiled.length > 0) {
+            Label[] cases = new Label[compiled.length];
+            for (int i = 0; i < cases.length; i++) {
+                cases[i] = compiled[i] ? new Label() : notCompiled;
+            }
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitTableSwitchInsn(from, from + compiled.length - 1, notCompiled, cases);
+            for (int i = 0; i < cases.length; i++) {
+                if (compiled[i]) {
+                    mv.visitLabel(cases[i]);
+                    mv.visitVarInsn(ALOAD, 2);
+                    mv.visitVarInsn(ALOAD, 3);
+                    mv.visitVarInsn(ILOAD, 4);
+                    mv.visitVarInsn(ALOAD, 5);
+                    mv.visitVarInsn(ALOAD, 6);
+                    mv.visitMethodInsn(INVOKESTATIC, owner, "r" + (from + i), RULE_DESC, false);
+                    mv.visitInsn(IRETURN);
+                }
+            }
+        }
+        mv.visitLabel(notCompiled);
+        mv.visitInsn(ICONST_M1);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * <code>static boolean r&lt;id&gt;(int[] normalized, int[] exact, int length, int[] hits, int[] ruleRanges)</code>:
+     * the first matching literal of every clause is searched for, in order. The range of the rule starts
+     * at the range of the first clause and ends where the last clause ends.
+     */
+    private static void rule(ClassWriter cw, String owner, MatchRuleSet ruleSet, MatchRule rule, Set<Integer> matchers){
+        MethodVisitor mv = cw.visitMethod(ACC_PRIVATE | ACC_STATIC, "r" + rule.id, RULE_DESC, null, null);
+        mv.visitCode();
+        Literal[][] cnf = rule.expression;
+
+        if(cnf == null || cnf.length == 0){
+            // no constraints, match entire text
+            wholeText(mv, START, END);
+        }
+
+        for (int i = 0; cnf != null && i < cnf.length; i++) {
+            Label clauseFound = new Label();
+            for (int j = 0; j < cnf[i].length; j++) {
+                Literal lit = cnf[i][j];
+                Label next = new Label();
+                int id = rule.literalIds[i][j];
+                int array = lit.meta == '#' ? RANGES : HITS;
+                if(lit.meta != '#' && !ruleSet.automaton.covers(id)){
+                    // evaluate the shared literal once: call its matcher when its range is not known yet
+                    Label known = new Label();
+                    matchers.add(id);
+                    mv.visitVarInsn(ALOAD, HITS);
+                    push(mv, 2 * id);
+                    mv.visitInsn(IALOAD);
+                    push(mv, LiteralAutomaton.NOT_EVALUATED);
+                    mv.visitJumpInsn(IF_ICMPNE, known);
+                    mv.visitVarInsn(ALOAD, NORMALIZED);
+                    mv.visitVarInsn(ALOAD, EXACT);
+                    mv.visitVarInsn(ILOAD, TEXT_LENGTH);
+                    mv.visitMethodInsn(INVOKESTATIC, owner, "m" + id, MATCHER_DESC, false);
+                    mv.visitVarInsn(LSTORE, FOUND);
+                    mv.visitVarInsn(ALOAD, HITS);
+                    push(mv, 2 * id);
+                    mv.visitVarInsn(LLOAD, FOUND);
+                    push(mv, 32);
+                    mv.visitInsn(LSHR); // -1 stays -1
+                    mv.visitInsn(L2I);
+                    mv.visitInsn(IASTORE);
+                    mv.visitVarInsn(ALOAD, HITS);
+                    push(mv, 2 * id + 1);
+                    mv.visitVarInsn(LLOAD, FOUND);
+                    mv.visitInsn(L2I);
+                    mv.visitInsn(IASTORE);
+                    mv.visitLabel(known);
+                }
+
+                // read the range of the literal or the looked up rule
+                mv.visitVarInsn(ALOAD, array);
+                push(mv, 2 * id);
+                mv.visitInsn(IALOAD);
+                mv.visitVarInsn(ISTORE, CLAUSE_START);
+                mv.visitVarInsn(ILOAD, CLAUSE_START);
+                if(lit.negated){
+                    mv.visitJumpInsn(IFGE, next);
+                    wholeText(mv, CLAUSE_START, CLAUSE_END);
+                } else {
+                    mv.visitJumpInsn(IFLT, next);
+                    mv.visitVarInsn(ALOAD, array);
+                    push(mv, 2 * id + 1);
+                    mv.visitInsn(IALOAD);
+                    mv.visitVarInsn(ISTORE, CLAUSE_END);
+                }
+                mv.visitJumpInsn(GOTO, clauseFound);
+                mv.visitLabel(next);
+            }
+            // this clause is false, therefore the cnf is false
+            mv.visitInsn(ICONST_0);
+            mv.visitInsn(IRETURN);
+
+            mv.visitLabel(clauseFound);
+            if(i == 0){
+                mv.visitVarInsn(ILOAD, CLAUSE_START);
+                mv.visitVarInsn(ISTORE, START);
+            }
+            mv.visitVarInsn(ILOAD, CLAUSE_END);
+            mv.visitVarInsn(ISTORE, END);
+        }
+
+        mv.visitVarInsn(ALOAD, RANGES);
+        push(mv, 2 * rule.id);
+        mv.visitVarInsn(ILOAD, START);
+        mv.visitInsn(IASTORE);
+        mv.visitVarInsn(ALOAD, RANGES);
+        push(mv, 2 * rule.id + 1);
+        mv.visitVarInsn(ILOAD, END);
+        mv.visitInsn(IASTORE);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * <code>static long m&lt;id&gt;(int[] normalized, int[] exact, int length)</code>: the first occurrence of a literal of the literal table
+     * in the first length tokens
+     * as <code>start &lt;&lt; 32 | end</code>, or -1. Same range as {@link SequenceMatcher}:
+     * from every start position, the segments between + and * wildcards are placed as early as possible.
+     * When a segment can not be placed for some start, it can not be placed for any later start either.
+     */
+    private static void matcher(ClassWriter cw, int id, int[] codes){
+        MethodVisitor mv = cw.visitMethod(ACC_PRIVATE | ACC_STATIC, "m" + id, MATCHER_DESC, null, null);
+        mv.visitCode();
+        Label nextStart = new Label();
+        Label notFound = new Label();
+        Label loop = new Label();
+
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, SI);
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ILOAD, SI);
+        mv.visitVarInsn(ILOAD, LENGTH);
+        mv.visitJumpInsn(IF_ICMPGE, notFound);
+        mv.visitVarInsn(ILOAD, SI);
+        mv.visitVarInsn(ISTORE, POS);
+
+        final int P = codes.length;
+        int pi = 0;
+        while (pi < P) {
+            int minGap = 0;
+            boolean gap = false;
+            while (pi < P && isGap(codes[pi])) {
+                gap = true;
+                if(codes[pi] == Vocabulary.ANY_ONE_OR_MORE){
+                    minGap++;
+                }
+                pi++;
+            }
+            int segmentEnd = pi;
+            while (segmentEnd < P && !isGap(codes[segmentEnd])) {
+                segmentEnd++;
+            }
+            final int segmentLength = segmentEnd - pi;
+
+            if(gap){
+                // earliest position of the segment: q = pos + minGap, ...
+                Label search = new Label();
+                Label advance = new Label();
+                Label placed = new Label();
+                mv.visitVarInsn(ILOAD, POS);
+                push(mv, minGap);
+                mv.visitInsn(IADD);
+                mv.visitVarInsn(ISTORE, Q);
+                mv.visitLabel(search);
+                fits(mv, Q, segmentLength, notFound);
+                segment(mv, codes, pi, segmentEnd, Q, advance);
+                mv.visitVarInsn(ILOAD, Q);
+                push(mv, segmentLength);
+                mv.visitInsn(IADD);
+                mv.visitVarInsn(ISTORE, POS);
+                mv.visitJumpInsn(GOTO, placed);
+                mv.visitLabel(advance);
+                mv.visitIincInsn(Q, 1);
+                mv.visitJumpInsn(GOTO, search);
+                mv.visitLabel(placed);
+            } else {
+                fits(mv, POS, segmentLength, notFound);
+                segment(mv, codes, pi, segmentEnd, POS, nextStart);
+                mv.visitIincInsn(POS, segmentLength);
+            }
+            pi = segmentEnd;
+        }
+
+        // found: start << 32 | end
+        mv.visitVarInsn(ILOAD, SI);
+        mv.visitInsn(I2L);
+        push(mv, 32);
+        mv.visitInsn(LSHL);
+        mv.visitVarInsn(ILOAD, POS);
+        mv.visitInsn(I2L);
+        mv.visitInsn(LOR);
+        mv.visitInsn(LRETURN);
+
+        mv.visitLabel(nextStart);
+        mv.visitIincInsn(SI, 1);
+        mv.visitJumpInsn(GOTO, loop);
+
+        mv.visitLabel(notFound);
+        mv.visitLdcInsn(-1L);
+        mv.visitInsn(LRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /** jump to notFound when a segment at the position in the given local does not fit in the text */
+    private static void fits(MethodVisitor mv, int position, int segmentLength, Label notFound){
+        mv.visitVarInsn(ILOAD, position);
+        push(mv, segmentLength);
+        mv.visitInsn(IADD);
+        mv.visitVarInsn(ILOAD, LENGTH);
+        mv.visitJumpInsn(IF_ICMPGT, notFound);
+    }
+
+    /** compare the words of a segment with the text at the position in the given local, jump to mismatch on the first difference */
+    private static void segment(MethodVisitor mv, int[] codes, int from, int to, int position, Label mismatch){
+        for (int pi = from; pi < to; pi++) {
+            int code = codes[pi];
+            if(code == Vocabulary.ANY_ONE){
+                continue;
+            }
+            mv.visitVarInsn(ALOAD, (code & 1) == 0 ? NORMALIZED : EXACT);
+            mv.visitVarInsn(ILOAD, position);
+            push(mv, pi - from);
+            mv.visitInsn(IADD);
+            mv.visitInsn(IALOAD);
+            push(mv, code >> 1);
+            mv.visitJumpInsn(IF_ICMPNE, mismatch);
+        }
+    }
+
+    /** start = 0, end = text length */
+    private static void wholeText(MethodVisitor mv, int start, int end){
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, start);
+        mv.visitVarInsn(ILOAD, TEXT_LENGTH);
+        mv.visitVarInsn(ISTORE, end);
+    }
+
+    private static void push(MethodVisitor mv, int value){
+        if(value >= -1 && value <= 5){
+            mv.visitInsn(ICONST_0 + value);
+        } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+            mv.visitIntInsn(BIPUSH, value);
+        } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE){
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    private static boolean isGap(int code){
+        return code == Vocabulary.ANY_ONE_OR_MORE || code == Vocabulary.ANY_ZERO_OR_MORE;
+    }
+
+    private static final class Loader extends ClassLoader {
+        Loader() {
+            super(RuleEvaluator.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] code){
+            return defineClass(name, code, 0, code.length);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.c4i.nlp.ph3.match;
+
+/**
+ * Evaluator of the rules of a rule set, generated at runtime (see {@link RuleCompiler}).
+ * <p>
+ * Instances are only created by the compiler. The class is public, since the generated subclasses
+ * are defined by their own class loader and can not access package private types.
+ */
+public abstract class RuleEvaluator {
+
+    /** Returned for rules that were not compiled: they have to be interpreted */
+    public static final int NOT_COMPILED = -1;
+
+    protected RuleEvaluator() {
+    }
+
+    /**
+     * Evaluate a single rule of the rule set against an encoded text.
+     * @param rule id of the rule
+     * @param normalized vocabulary ids of the normalized forms of the text
+     * @param exact vocabulary ids of the exact forms of the text
+     * @param length the number of tokens of the text, at the start of normalized and exact
+     * @param hits first occurrences of the literals of the automaton of the rule set
+     * @param ruleRanges ranges of the rules evaluated so far; the range of this rule is written at [2*rule] and [2*rule + 1]
+     * @return 1 when the rule matches, 0 when it does not, or {@link #NOT_COMPILED}
+     */
+    public abstract int eval(int rule, int[] normalized, int[] exact, int length, int[] hits, int[] ruleRanges);
+}
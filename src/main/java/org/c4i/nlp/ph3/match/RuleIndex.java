@@ -0,0 +1,334 @@
+package org.c4i.nlp.ph3.match;
+
+import org.c4i.nlp.ph3.tokenize.Token;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Boolean expression index of the rules of a rule set, for rule sets that are much larger than the number of rules
+ * a document matches.
+ * <p>
+ * A disjunction of plain word sequences (not negated, no lookups) can only be true when one of its sequences occurs.
+ * Such disjunctions are indexed on their sequences: sequences of the automaton on their literal id, other sequences on their
+ * first word. For a document, the sequences found by the automaton and the words of the text retrieve the disjunctions
+ * that may be true, and every rule counts these. Only the rules of which all indexed disjunctions may be true are
+ * evaluated (in dependency order, with the regular evaluator), together with the rules without indexed disjunctions.
+ * The other rules can not match. The work per document grows with the number of candidate rules instead of the
+ * size of the rule set.
+ * <p>
+ * An index is safe for concurrent use: every evaluation takes a per document state of its own,
+ * which is cleaned up after each document and reused instead of being allocated again.
+ */
+public class RuleIndex {
+
+    private static final int[] NONE = new int[0];
+
+    private final MatchRuleSet ruleSet;
+    /** per literal id of the automaton: the indexed clauses that contain it */
+    private final int[][] literalClauses;
+    /** per word id: the indexed clauses that contain a sequence outside the automaton that starts with that word */
+    private final int[][] wordClauses;
+    /** per clause id: the rules that contain it, if it is indexed */
+    private final int[][] clauseRules;
+    /** per rule id: the number of distinct indexed clauses */
+    private final int[] required;
+    /** the rules without indexed clauses, these are always evaluated */
+    private final int[] unindexed;
+    /** states that are not in use, reused for the next document */
+    private final Queue<State> states = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Per document state, to collect the candidate rules of a document and evaluate them.
+     * The arrays are reset after each document, only where they were changed.
+     */
+    private final class State {
+        int epoch;
+        final int[] clauseStamps, ruleStamps, ruleCounts, wordStamps;
+        int[] candidates = new int[64];
+        int size;
+        /** the document, cleared after each evaluation */
+        final EvalContext doc = new EvalContext(ruleSet);
+
+        State() {
+            clauseStamps = new int[clauseRules.length];
+            ruleStamps = new int[required.length];
+            ruleCounts = new int[required.length];
+            wordStamps = new int[wordClauses.length];
+        }
+
+        void next(){
+            if(++epoch == 0){
+                Arrays.fill(clauseStamps, 0);
+                Arrays.fill(ruleStamps, 0);
+                Arrays.fill(wordStamps, 0);
+                epoch = 1;
+            }
+            size = 0;
+        }
+
+        void clause(int c){
+            if(clauseStamps[c] == epoch){
+                return;
+            }
+            clauseStamps[c] = epoch;
+            for (int rule : clauseRules[c]) {
+                if(ruleStamps[rule] != epoch){
+                    ruleStamps[rule] = epoch;
+                    ruleCounts[rule] = 0;
+                }
+                if(++ruleCounts[rule] == required[rule]){
+                    add(rule);
+                }
+            }
+        }
+
+        void add(int rule){
+            if(size == candidates.length){
+                candidates = Arrays.copyOf(candidates, 2 * size);
+            }
+            candidates[size++] = rule;
+        }
+    }
+
+    /**
+     * @param ruleSet the rules to index
+     */
+    public RuleIndex(MatchRuleSet ruleSet) {
+        this.ruleSet = ruleSet;
+        final Literal[][] clauses = ruleSet.clauses;
+        final LiteralAutomaton automaton = ruleSet.automaton;
+
+        // indexed clauses: per clause, the literal (>= 0) or first word (< 0: -word - 1) of every literal, or null
+        final int[][] keys = new int[clauses.length][];
+        final int[] literalCounts = new int[ruleSet.literals.length];
+        final int[] wordCounts = new int[ruleSet.vocabulary.size()];
+        for (int c = 0; c < clauses.length; c++) {
+            int[] k = new int[clauses[c].length];
+            for (int j = 0; k != null && j < k.length; j++) {
+                Literal lit = clauses[c][j];
+                int id = ruleSet.clauseLiteralIds[c][j];
+                int word = lit.meta == '#' || lit.negated ? -1 : automaton.covers(id) ? -2 : MatchRuleSet.firstWord(ruleSet.literals[id]);
+                if(word == -2){
+                    k[j] = id;
+                } else if(word >= 0 && word < wordCounts.length){
+                    k[j] = -word - 1;
+                } else {
+                    k = null;
+                }
+            }
+            if(k != null && k.length > 0){
+                keys[c] = k;
+                for (int key : k) {
+                    if(key >= 0){
+                        literalCounts[key]++;
+                    } else {
+                        wordCounts[-key - 1]++;
+                    }
+                }
+            }
+        }
+        literalClauses = allocate(literalCounts);
+        wordClauses = allocate(wordCounts);
+        Arrays.fill(literalCounts, 0);
+        Arrays.fill(wordCounts, 0);
+        for (int c = 0; c < clauses.length; c++) {
+            if(keys[c] != null){
+                for (int key : keys[c]) {
+                    if(key >= 0){
+                        add(literalClauses[key], literalCounts, key, c);
+                    } else {
+                        add(wordClauses[-key - 1], wordCounts, -key - 1, c);
+                    }
+                }
+            }
+        }
+
+        // rules per indexed clause, and the number of distinct indexed clauses per rule
+        final MatchRule[] rules = ruleSet.ruleArray;
+        final int[] ruleCounts = new int[clauses.length];
+        required = new int[rules.length];
+        int[][] distinct = new int[rules.length][];
+        int unindexedCount = 0;
+        for (MatchRule rule : rules) {
+            distinct[rule.id] = Arrays.stream(rule.clauseIds).filter(c -> keys[c] != null).distinct().toArray();
+            required[rule.id] = distinct[rule.id].length;
+            for (int c : distinct[rule.id]) {
+                ruleCounts[c]++;
+            }
+            if(required[rule.id] == 0){
+                unindexedCount++;
+            }
+        }
+        clauseRules = allocate(ruleCounts);
+        Arrays.fill(ruleCounts, 0);
+        unindexed = new int[unindexedCount];
+        unindexedCount = 0;
+        for (MatchRule rule : rules) {
+            for (int c : distinct[rule.id]) {
+                add(clauseRules[c], ruleCounts, c, rule.id);
+            }
+            if(required[rule.id] == 0){
+                unindexed[unindexedCount++] = rule.id;
+            }
+        }
+    }
+
+    private static int[][] allocate(int[] counts){
+        int[][] lists = new int[counts.length][];
+        for (int i = 0; i < counts.length; i++) {
+            lists[i] = counts[i] == 0 ? NONE : new int[counts[i]];
+        }
+        return lists;
+    }
+
+    private static void add(int[] list, int[] counts, int key, int value){
+        list[counts[key]++] = value;
+    }
+
+    /**
+     * Return all matching labels, the same as {@link MatchEval#eval(MatchRuleSet, Token[])}.
+     * @param tokens the text
+     * @return matching labels
+     */
+    public Map<String, MatchRange> eval(Token[] tokens){
+        final State state = acquire();
+        try {
+            return eval(state.doc.load(tokens), state);
+        } finally {
+            release(state);
+        }
+    }
+
+    /**
+     * Pass all matches to a sink, the same as {@link MatchEval#eval(MatchRuleSet, Token[], MatchSink)}.
+     * @param tokens the text
+     * @param sink receives the matches
+     * @return the number of matches
+     */
+    public int eval(Token[] tokens, MatchSink sink){
+        final State state = acquire();
+        try {
+            final EvalContext doc = state.doc.load(tokens);
+            evalCandidates(doc, state);
+            return doc.forEach(sink);
+        } finally {
+            release(state);
+        }
+    }
+
+    /**
+     * Return all matching labels of a text that was tokenized and encoded elsewhere,
+     * the same as {@link MatchEval#eval(MatchRuleSet, int[], int[])}.
+     * @param normalized word ids of the normalized words
+     * @param exact word ids of the words as they appear in the text
+     * @return matching labels
+     */
+    public Map<String, MatchRange> eval(int[] normalized, int[] exact){
+        final State state = acquire();
+        try {
+            return eval(state.doc.load(normalized, exact), state);
+        } finally {
+            release(state);
+        }
+    }
+
+    /**
+     * @param tokens the text
+     * @return the number of rules that are evaluated for the text, the other rules can not match
+     */
+    public int candidates(Token[] tokens){
+        final State state = acquire();
+        try {
+            return collect(state.doc.load(tokens), state);
+        } finally {
+            release(state);
+        }
+    }
+
+    /**
+     * Take a state that is not in use, or a new one when all are taken
+     * (by other threads, or by an evaluation that calls back into this index). Give it back with {@link #release(State)}.
+     */
+    private State acquire(){
+        final State state = states.poll();
+        return state == null ? new State() : state;
+    }
+
+    /**
+     * Clear a state taken by {@link #acquire()}, so it can be used for the next document.
+     */
+    private void release(State state){
+        state.doc.clear();
+        states.offer(state);
+    }
+
+    private Map<String, MatchRange> eval(EvalContext doc, State state){
+        evalCandidates(doc, state);
+        return doc.toMap();
+    }
+
+    private void evalCandidates(EvalContext doc, State state){
+        final int n = collect(doc, state);
+        final int[] candidates = state.candidates;
+        final RuleEvaluator[] evaluators = ruleSet.evaluators;
+        doc.plan = ruleSet.statistics.plan();
+        MatchEval.evalSegments(doc);
+        for (int k = 0; k < n; k++) {
+            if(!doc.isEvaluated(candidates[k])){
+                MatchEval.evalRule(doc, evaluators, candidates[k]);
+            }
+        }
+    }
+
+    /**
+     * Find the literals of the automaton in a loaded document and collect the candidate rules in evaluation order.
+     * @return the number of candidates
+     */
+    private int collect(EvalContext doc, State state){
+        state.next();
+        doc.scan();
+        // so far, the touched literals are the ones found by the automaton
+        for (int k = 0; k < doc.touchedLiteralCount; k++) {
+            for (int c : literalClauses[doc.touchedLiterals[k]]) {
+                state.clause(c);
+            }
+        }
+        words(doc.normalized, doc.length, state);
+        words(doc.exact, doc.length, state);
+
+        for (int rule : unindexed) {
+            state.add(rule);
+        }
+        final int[] candidates = state.candidates;
+        final int n = state.size;
+        final MatchRuleSet ruleSet = this.ruleSet;
+        // evaluation order
+        for (int k = 0; k < n; k++) {
+            candidates[k] = ruleSet.positions[candidates[k]];
+        }
+        Arrays.sort(candidates, 0, n);
+        for (int k = 0; k < n; k++) {
+            candidates[k] = ruleSet.order[candidates[k]];
+        }
+        return n;
+    }
+
+    private void words(int[] ids, int length, State state){
+        for (int i = 0; i < length; i++) {
+            final int id = ids[i];
+            if(id >= 0 && id < wordClauses.length && state.wordStamps[id] != state.epoch){
+                state.wordStamps[id] = state.epoch;
+                for (int c : wordClauses[id]) {
+                    state.clause(c);
+                }
+            }
+        }
+    }
+
+    public MatchRuleSet getRuleSet() {
+        return ruleSet;
+    }
+}
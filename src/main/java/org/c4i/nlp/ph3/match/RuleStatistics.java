@@ -0,0 +1,281 @@
+package org.c4i.nlp.ph3.match;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selectivity statistics of the literals, clauses and rules of a rule set, and the evaluation order derived from them.
+ * <p>
+ * A sample of the evaluated documents is measured: how often a literal or clause is true, and how long it takes to
+ * find a literal that is not covered by the automaton. Every {@link #REORDER_INTERVAL} measured documents a new
+ * {@link Plan} is made: per rule the clauses that are most likely false (and cheap) come first, per clause the literals
+ * that are most likely true (and cheap) come first. The plan only decides the order in which the truth of a rule is
+ * found; the range of a matching rule is the same as in the original order.
+ * <p>
+ * The counters are updated without synchronization: a lost update only makes the statistics slightly less accurate.
+ * Plans are immutable and swapped in at once, so concurrent evaluations see either the old or the new plan.
+ */
+class RuleStatistics {
+
+    /** one in this many documents is measured */
+    static final int SAMPLE_RATE = 8;
+    /** number of measured documents after which the plan is renewed */
+    static final int REORDER_INTERVAL = 1024;
+    /** cost of reading a literal or rule range that is already known, in ns */
+    private static final double READ_COST = 1.0;
+
+    /**
+     * Evaluation order of a rule set.
+     */
+    static final class Plan {
+        /** per rule id: positions of its clauses, in evaluation order */
+        final int[][] clauseOrder;
+        /** per clause id: positions of its literals, in evaluation order */
+        final int[][] literalOrder;
+
+        Plan(int[][] clauseOrder, int[][] literalOrder) {
+            this.clauseOrder = clauseOrder;
+            this.literalOrder = literalOrder;
+        }
+    }
+
+    private final MatchRuleSet ruleSet;
+    final int[] literalEvaluations, literalHits, literalComputations;
+    final long[] literalNanos;
+    final int[] clauseEvaluations, clauseTrues;
+    final int[] ruleEvaluations, ruleMatches;
+    private final AtomicInteger measured = new AtomicInteger();
+    private volatile Plan plan;
+    private volatile boolean enabled = true;
+
+    RuleStatistics(MatchRuleSet ruleSet) {
+        this.ruleSet = ruleSet;
+        int literals = ruleSet.literals.length, clauses = ruleSet.clauses.length, rules = ruleSet.ruleArray.length;
+        literalEvaluations = new int[literals];
+        literalHits = new int[literals];
+        literalComputations = new int[literals];
+        literalNanos = new long[literals];
+        clauseEvaluations = new int[clauses];
+        clauseTrues = new int[clauses];
+        ruleEvaluations = new int[rules];
+        ruleMatches = new int[rules];
+    }
+
+    /**
+     * @return whether to measure the next document
+     */
+    boolean sample(){
+        return enabled && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0;
+    }
+
+    /**
+     * Count a measured document, and renew the plan now and then.
+     */
+    void measured(){
+        if(measured.incrementAndGet() % REORDER_INTERVAL == 0){
+            reorder();
+        }
+    }
+
+    /**
+     * @return the current evaluation order, or null for the original order
+     */
+    Plan plan(){
+        return enabled ? plan : null;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Derive a new plan from the statistics so far.
+     * For a conjunction the expected cost is lowest when clauses are sorted on cost / P(false),
+     * for a disjunction when literals are sorted on cost / P(true).
+     */
+    synchronized void reorder(){
+        final Literal[][] clauses = ruleSet.clauses;
+        final int[][] literalOrder = new int[clauses.length][];
+        final double[] clauseCost = new double[clauses.length];
+        for (int c = 0; c < clauses.length; c++) {
+            final int n = clauses[c].length;
+            final double[] p = new double[n];
+            final double[] cost = new double[n];
+            for (int j = 0; j < n; j++) {
+                p[j] = literalTrue(clauses[c][j], ruleSet.clauseLiteralIds[c][j]);
+                cost[j] = literalCost(clauses[c][j], ruleSet.clauseLiteralIds[c][j]);
+            }
+            literalOrder[c] = sort(n, j -> cost[j] / Math.max(p[j], 1e-9));
+
+            // expected cost: a literal is only evaluated when all literals before it are false
+            double reached = 1.0;
+            for (int j : literalOrder[c]) {
+                clauseCost[c] += reached * cost[j];
+                reached *= 1 - p[j];
+            }
+        }
+
+        final MatchRule[] rules = ruleSet.ruleArray;
+        final int[][] clauseOrder = new int[rules.length][];
+        for (MatchRule rule : rules) {
+            final int[] clauseIds = rule.clauseIds;
+            clauseOrder[rule.id] = sort(clauseIds.length, i -> clauseCost[clauseIds[i]] / Math.max(1 - clauseTrue(clauseIds[i]), 1e-9));
+        }
+        plan = new Plan(clauseOrder, literalOrder);
+    }
+
+    private interface Score {
+        double of(int i);
+    }
+
+    private static int[] sort(int n, Score score){
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        // stable: without statistics the original order is kept
+        Arrays.sort(order, Comparator.comparingDouble(score::of));
+        return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    /** Laplace smoothed: 1/2 without statistics */
+    private static double ratio(int count, int total){
+        return (count + 1.0) / (total + 2.0);
+    }
+
+    private double literalTrue(Literal lit, int id){
+        double p = lit.meta == '#' ? ratio(ruleMatches[id], ruleEvaluations[id]) : ratio(literalHits[id], literalEvaluations[id]);
+        return lit.negated ? 1 - p : p;
+    }
+
+    private double literalCost(Literal lit, int id){
+        if(lit.meta == '#' || literalComputations[id] == 0){
+            return READ_COST;
+        }
+        return READ_COST + (double) literalNanos[id] / literalComputations[id];
+    }
+
+    private double clauseTrue(int c){
+        return ratio(clauseTrues[c], clauseEvaluations[c]);
+    }
+
+    /**
+     * Write the statistics as text, keyed on the literals, clauses and rule labels, so they can be read
+     * by a rule set that is compiled from the same rules later on.
+     * @param writer destination
+     * @throws IOException when writing fails
+     */
+    synchronized void write(Writer writer) throws IOException {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("# rule statistics: type, counts, key");
+        for (int id = 0; id < ruleSet.literals.length; id++) {
+            out.printf("literal\t%d\t%d\t%d\t%d\t%s%n", literalEvaluations[id], literalHits[id], literalComputations[id], literalNanos[id], literalKey(id));
+        }
+        for (int c = 0; c < ruleSet.clauses.length; c++) {
+            out.printf("clause\t%d\t%d\t%s%n", clauseEvaluations[c], clauseTrues[c], clauseKey(c));
+        }
+        for (MatchRule rule : ruleSet.ruleArray) {
+            out.printf("rule\t%d\t%d\t%s%n", ruleEvaluations[rule.id], ruleMatches[rule.id], rule.head);
+        }
+        out.flush();
+        if(out.checkError()){
+            throw new IOException("Could not write the rule statistics.");
+        }
+    }
+
+    /**
+     * Read statistics written by {@link #write(Writer)}, add them to the current ones and renew the plan.
+     * Literals, clauses and rules that are not part of this rule set are ignored.
+     * @param reader source
+     * @throws IOException when reading fails
+     */
+    synchronized void read(Reader reader) throws IOException {
+        Map<String, Integer> literals = new HashMap<>(), clauses = new HashMap<>();
+        for (int id = 0; id < ruleSet.literals.length; id++) {
+            literals.put(literalKey(id), id);
+        }
+        for (int c = 0; c < ruleSet.clauses.length; c++) {
+            clauses.put(clauseKey(c), c);
+        }
+
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if(line.startsWith("#") || line.trim().isEmpty()){
+                continue;
+            }
+            String[] fields = line.split("\t");
+            try {
+                if ("literal".equals(fields[0]) && fields.length == 6) {
+                    Integer id = literals.get(fields[5]);
+                    if (id != null) {
+                        literalEvaluations[id] += Integer.parseInt(fields[1]);
+                        literalHits[id] += Integer.parseInt(fields[2]);
+                        literalComputations[id] += Integer.parseInt(fields[3]);
+                        literalNanos[id] += Long.parseLong(fields[4]);
+                    }
+                } else if ("clause".equals(fields[0]) && fields.length == 4) {
+                    Integer c = clauses.get(fields[3]);
+                    if (c != null) {
+                        clauseEvaluations[c] += Integer.parseInt(fields[1]);
+                        clauseTrues[c] += Integer.parseInt(fields[2]);
+                    }
+                } else if ("rule".equals(fields[0]) && fields.length == 4) {
+                    MatchRule rule = ruleSet.rules.get(fields[3]);
+                    if (rule != null) {
+                        ruleEvaluations[rule.id] += Integer.parseInt(fields[1]);
+                        ruleMatches[rule.id] += Integer.parseInt(fields[2]);
+                    }
+                } else {
+                    throw new IOException("Invalid rule statistics: " + line);
+                }
+            } catch (NumberFormatException e){
+                throw new IOException("Invalid rule statistics: " + line, e);
+            }
+        }
+        reorder();
+    }
+
+    /**
+     * @return the words of a literal, with their form: 'normalized' or "exact"
+     */
+    private String literalKey(int id){
+        Literal lit = ruleSet.literals[id];
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < lit.tokens.length; i++) {
+            if(i > 0){
+                key.append('_');
+            }
+            int code = lit.ids[i];
+            if(code < 0){
+                key.append(lit.tokens[i].getWord());
+            } else {
+                char quote = (code & 1) == 0 ? '\'' : '"';
+                key.append(quote).append(ruleSet.vocabulary.word(code >> 1)).append(quote);
+            }
+        }
+        return key.toString();
+    }
+
+    private String clauseKey(int c){
+        StringBuilder key = new StringBuilder();
+        for (int j = 0; j < ruleSet.clauses[c].length; j++) {
+            Literal lit = ruleSet.clauses[c][j];
+            int id = ruleSet.clauseLiteralIds[c][j];
+            if(j > 0){
+                key.append(" | ");
+            }
+            if(lit.negated){
+                key.append('-');
+            }
+            key.append(lit.meta == '#' ? "#" + ruleSet.ruleArray[id].head : literalKey(id));
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,953 @@
+package org.c4i.nlp.ph3.match;
+
+import org.c4i.nlp.ph3.tokenize.Token;
+
+import java.util.*;
+import java.util.function.IntToLongFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Bit-parallel (Shift-And) matcher of a sequence of pattern tokens with wildcards.
+ * <p>
+ * Every word and ? of the pattern is a bit in a state word. A + becomes a ? with a self loop, a * adds a self loop
+ * to the token before it. One left-to-right pass over the text finds the earliest end of an occurrence,
+ * and one pass back from there finds the leftmost start. This gives the same range as placing the parts
+ * between wildcards as early as possible from the leftmost start, without rescanning the text per start position.
+ * When all occurrences are reported, overlapping ones included, the leftmost start of every symbol of the state is
+ * carried along in the same pass instead, so no end needs a pass back.
+ * Patterns of more than {@link #MAX_SYMBOLS} words and ? wildcards do not fit in a state word. They give the same ranges,
+ * but take a step per symbol at every position of the text, instead of a single step: the time is the length of the text
+ * times the number of symbols.
+ * <p>
+ * A pattern with groups of alternatives, <code>the_(red|dark_blue)_book</code>, or optional parts, <code>the_[big]_book</code>,
+ * is compiled to the position automaton (Glushkov) of the pattern: every word and wildcard is a bit, and per bit the bits
+ * that may follow it replace the shift. It is matched in the same single pass, without expanding the alternatives,
+ * and has at most {@link #MAX_SYMBOLS} symbols.
+ * A bounded gap <code>{m,n}</code>, <code>price_{0,3}_drop</code>, is m required and n - m optional ? wildcards of such an automaton.
+ * Its matching time is linear in the length of the text, unlike the rescanning of every start that an unbounded gap may need.
+ * <p>
+ * A proximity pattern <code>A NEAR/k B</code> occurs where A and B occur, in either order, with at most k tokens between them.
+ * Both operands are sequences of words and ? wildcards. Their occurrences are found by a matcher each, or read from a
+ * {@link TokenIndex}, and the two sorted lists of positions are merged in a single pass.
+ * <p>
+ * A count <code>refund{3,}</code> occurs when a word occurs at least m and at most n times, from its first to its last occurrence.
+ */
+public class SequenceMatcher {
+
+    /**
+     * The number of words and ? wildcards that fit in the state word. A sequence with groups or bounded gaps has at most
+     * this many; a longer plain sequence is matched a symbol at a time, which is slower by about its number of symbols.
+     */
+    public static final int MAX_SYMBOLS = 64;
+
+    private static final int WORD = 0;
+
+    /** number of symbols: words and ? wildcards */
+    private final int m;
+    /** the pattern starts with + or *: every occurrence can be extended to the start of the text */
+    private final boolean leadingGap;
+    /** per symbol: the pattern token, or null for any token */
+    private final Token[] words;
+    /** per symbol: the vocabulary code, when known */
+    private final int[] codes;
+    /** per symbol: whether any number of tokens may follow it */
+    private final boolean[] loops;
+    private final long anyMask, loopMask, reversedLoopMask;
+    /** per symbol of a pattern with groups: the symbols that may follow it, or null for a sequence, where symbol j + 1 follows j */
+    private final long[] follow;
+    /** per symbol of a pattern with groups: the symbols that may precede it */
+    private final long[] precede;
+    /** the symbols an occurrence may start with, and the symbols it may end with */
+    private final long firstMask, lastMask;
+    private final Map<String, Long> normalizedWords = new HashMap<>();
+    private final Map<String, Long> exactWords = new HashMap<>();
+    private final int[] normalizedIds, exactIds;
+    private final long[] normalizedIdMasks, exactIdMasks;
+    /** of a proximity pattern: the matchers of both operands, and the maximum number of tokens between them, or -1 */
+    private final SequenceMatcher left, right;
+    private final int distance;
+    /** of a count: the matcher of the counted word, and the bounds of the number of occurrences, where -1 is no upper bound */
+    private final SequenceMatcher term;
+    private final int minCount, maxCount;
+
+    /**
+     * @param pattern the pattern tokens
+     * @param kinds per pattern token: 0 for a word, or a wildcard or group code of {@link Vocabulary}
+     * @param codes vocabulary codes of the pattern tokens, or null if the pattern is not encoded
+     */
+    private SequenceMatcher(Token[] pattern, int[] kinds, int[] codes) {
+        int near = -1, count = -1;
+        for (int i = 0; i < kinds.length; i++) {
+            if(kinds[i] == Vocabulary.NEAR && near < 0){
+                near = i;
+            } else if(kinds[i] == Vocabulary.COUNT){
+                count = i;
+            }
+        }
+        if(count >= 0){
+            if(count != 1 || kinds.length != 2 || kinds[0] != WORD){
+                throw new IllegalArgumentException("Only a single word can be counted: " + Arrays.toString(pattern));
+            }
+            final int[] bounds = gap(pattern[count].getWord().substring("COUNT".length()));
+            if(bounds[0] < 1){
+                throw new IllegalArgumentException("A word should be counted at least once, use NOT for words that should not occur: " + Arrays.toString(pattern));
+            }
+            this.term = operand(pattern, kinds, codes, 0, 1);
+            this.minCount = bounds[0];
+            this.maxCount = bounds[1];
+            this.distance = -1;
+            this.left = this.right = null;
+            pattern = new Token[0];
+            kinds = new int[0];
+            codes = codes == null ? null : new int[0];
+        } else if(near >= 0){
+            this.term = null;
+            this.minCount = this.maxCount = -1;
+            // the operands are matched on their own, this matcher has no symbols
+            this.distance = distance(pattern[near].getWord());
+            this.left = operand(pattern, kinds, codes, 0, near);
+            this.right = operand(pattern, kinds, codes, near + 1, pattern.length);
+            pattern = new Token[0];
+            kinds = new int[0];
+            codes = codes == null ? null : new int[0];
+        } else {
+            this.distance = -1;
+            this.left = this.right = null;
+            this.term = null;
+            this.minCount = this.maxCount = -1;
+        }
+        List<Token> words = new ArrayList<>();
+        List<Integer> symbolCodes = new ArrayList<>();
+        List<Boolean> loops = new ArrayList<>();
+        boolean grouped = false;
+        for (int kind : kinds) {
+            grouped |= kind <= Vocabulary.GROUP_START;
+        }
+        Positions positions = null;
+        if(grouped){
+            positions = new Positions(pattern, kinds, codes);
+            words = positions.words;
+            symbolCodes = positions.codes;
+            for (int j = 0; j < words.size(); j++) {
+                loops.add(false);
+            }
+        } else {
+            for (int i = 0; i < pattern.length; i++) {
+                int kind = kinds[i];
+                if(kind == Vocabulary.ANY_ZERO_OR_MORE){
+                    if(!loops.isEmpty()){
+                        loops.set(loops.size() - 1, true);
+                    }
+                } else {
+                    words.add(kind == WORD ? pattern[i] : null);
+                    symbolCodes.add(kind == WORD && codes != null ? codes[i] : Vocabulary.ANY_ONE);
+                    loops.add(kind == Vocabulary.ANY_ONE_OR_MORE);
+                }
+            }
+        }
+
+        this.m = words.size();
+        this.leadingGap = kinds.length > 0 && (kinds[0] == Vocabulary.ANY_ONE_OR_MORE || kinds[0] == Vocabulary.ANY_ZERO_OR_MORE);
+        this.words = words.toArray(new Token[m]);
+        this.codes = new int[m];
+        this.loops = new boolean[m];
+        for (int j = 0; j < m; j++) {
+            this.codes[j] = symbolCodes.get(j);
+            this.loops[j] = loops.get(j);
+        }
+        if(grouped){
+            this.follow = positions.follow();
+            this.precede = new long[m];
+            for (int j = 0; j < m; j++) {
+                for (long rest = follow[j]; rest != 0; rest &= rest - 1) {
+                    precede[Long.numberOfTrailingZeros(rest)] |= 1L << j;
+                }
+            }
+            this.firstMask = positions.first;
+            this.lastMask = positions.last;
+        } else {
+            this.follow = this.precede = null;
+            this.firstMask = 1L;
+            this.lastMask = m == 0 || m > MAX_SYMBOLS ? 0 : 1L << (m - 1);
+        }
+
+        long any = 0, loop = 0, reversedLoop = 0;
+        Map<Integer, Long> normalizedIdMap = new TreeMap<>(), exactIdMap = new TreeMap<>();
+        for (int j = 0; j < m && j < MAX_SYMBOLS; j++) {
+            long bit = 1L << j;
+            Token word = this.words[j];
+            if(word == null){
+                any |= bit;
+            } else if(word.isMatchOnNormalized()){
+                normalizedWords.merge(word.getNormalizedWord(), bit, (a, b) -> a | b);
+            } else {
+                exactWords.merge(word.getWord(), bit, (a, b) -> a | b);
+            }
+            if(codes != null && word != null){
+                int code = this.codes[j];
+                ((code & 1) == 0 ? normalizedIdMap : exactIdMap).merge(code >> 1, bit, (a, b) -> a | b);
+            }
+            if(this.loops[j]){
+                loop |= bit;
+                if(j < m - 1){
+                    // in the reversed pattern, the gap follows the next symbol
+                    reversedLoop |= 1L << (m - 2 - j);
+                }
+            }
+        }
+        this.anyMask = any;
+        this.loopMask = loop;
+        this.reversedLoopMask = reversedLoop;
+
+        if(codes != null){
+            normalizedIds = keys(normalizedIdMap);
+            normalizedIdMasks = values(normalizedIdMap);
+            exactIds = keys(exactIdMap);
+            exactIdMasks = values(exactIdMap);
+        } else {
+            normalizedIds = exactIds = null;
+            normalizedIdMasks = exactIdMasks = null;
+        }
+    }
+
+    /**
+     * The symbols of a pattern with groups, and which symbols may follow which, built in a single recursive descent.
+     * Every part of the pattern yields the symbols it may start and end with, and whether it may be empty.
+     * A + and a * are symbols that match any token and may follow themselves.
+     */
+    private static final class Positions {
+        private final Token[] pattern;
+        private final int[] kinds, patternCodes;
+        /** the next pattern token */
+        private int i;
+        final List<Token> words = new ArrayList<>();
+        final List<Integer> codes = new ArrayList<>();
+        private final List<Long> follow = new ArrayList<>();
+        final long first, last;
+
+        Positions(Token[] pattern, int[] kinds, int[] codes) {
+            this.pattern = pattern;
+            this.kinds = kinds;
+            this.patternCodes = codes;
+            long[] whole = alternatives();
+            if(i < kinds.length){
+                throw new IllegalArgumentException("Unbalanced group in sequence: " + Arrays.toString(pattern));
+            } else if(whole[2] != 0){
+                throw new IllegalArgumentException("The sequence may be empty, make a part of it required: " + Arrays.toString(pattern));
+            }
+            this.first = whole[0];
+            this.last = whole[1];
+        }
+
+        long[] follow(){
+            return follow.stream().mapToLong(Long::longValue).toArray();
+        }
+
+        /**
+         * @return {first symbols, last symbols, 1 when it may be empty} of the alternatives up to the end of their group
+         */
+        private long[] alternatives(){
+            long[] result = sequence();
+            while (i < kinds.length && kinds[i] == Vocabulary.ALTERNATIVE) {
+                i++;
+                long[] next = sequence();
+                result = new long[]{result[0] | next[0], result[1] | next[1], result[2] | next[2]};
+            }
+            return result;
+        }
+
+        private long[] sequence(){
+            long[] result = {0, 0, 1};
+            while (i < kinds.length && kinds[i] != Vocabulary.ALTERNATIVE && kinds[i] != Vocabulary.GROUP_END && kinds[i] != Vocabulary.OPTIONAL_END) {
+                result = concat(result, part());
+            }
+            return result;
+        }
+
+        /**
+         * @return {first symbols, last symbols, 1 when it may be empty} of part a followed by part b
+         */
+        private long[] concat(long[] a, long[] b){
+            // what ends a may be followed by what starts b
+            for (long rest = a[1]; rest != 0; rest &= rest - 1) {
+                int j = Long.numberOfTrailingZeros(rest);
+                follow.set(j, follow.get(j) | b[0]);
+            }
+            return new long[]{a[0] | (a[2] != 0 ? b[0] : 0), b[1] | (b[2] != 0 ? a[1] : 0), a[2] & b[2]};
+        }
+
+        private long[] part(){
+            final int kind = kinds[i++];
+            if(kind == Vocabulary.GROUP_START || kind == Vocabulary.OPTIONAL_START){
+                long[] group = alternatives();
+                int end = kind == Vocabulary.GROUP_START ? Vocabulary.GROUP_END : Vocabulary.OPTIONAL_END;
+                if(i == kinds.length || kinds[i] != end){
+                    throw new IllegalArgumentException("Unbalanced group in sequence: " + Arrays.toString(pattern));
+                }
+                i++;
+                if(kind == Vocabulary.OPTIONAL_START){
+                    group[2] = 1;
+                }
+                return group;
+            } else if(kind == Vocabulary.GAP){
+                // {m,n}: m required and n - m optional ? wildcards, {m,}: the last required one is a +
+                final int[] gap = gap(pattern[i - 1].getWord());
+                long[] result = {0, 0, 1};
+                for (int k = 0; k < gap[0]; k++) {
+                    result = concat(result, symbol(gap[1] < 0 && k == gap[0] - 1 ? Vocabulary.ANY_ONE_OR_MORE : Vocabulary.ANY_ONE));
+                }
+                if(gap[1] < 0 && gap[0] == 0){
+                    result = symbol(Vocabulary.ANY_ZERO_OR_MORE);
+                }
+                for (int k = gap[0]; k < gap[1]; k++) {
+                    long[] optional = symbol(Vocabulary.ANY_ONE);
+                    optional[2] = 1;
+                    result = concat(result, optional);
+                }
+                return result;
+            }
+            return symbol(kind);
+        }
+
+        /**
+         * Add a symbol for the current pattern token, of the given kind.
+         */
+        private long[] symbol(int kind){
+            if(words.size() == MAX_SYMBOLS){
+                throw new IllegalArgumentException("A sequence with groups or bounded gaps can have at most " + MAX_SYMBOLS + " words and wildcards: " + Arrays.toString(pattern));
+            }
+            final int j = words.size();
+            final long bit = 1L << j;
+            words.add(kind == WORD ? pattern[i - 1] : null);
+            codes.add(kind == WORD && patternCodes != null ? patternCodes[i - 1] : Vocabulary.ANY_ONE);
+            final boolean gap = kind == Vocabulary.ANY_ONE_OR_MORE || kind == Vocabulary.ANY_ZERO_OR_MORE;
+            follow.add(gap ? bit : 0L);
+            return new long[]{bit, bit, kind == Vocabulary.ANY_ZERO_OR_MORE ? 1 : 0};
+        }
+    }
+
+    /**
+     * @param word a bounded gap token: <code>{m,n}</code>, <code>{m,}</code> or <code>{m}</code>
+     * @return {m, n}, where n is -1 when there is no upper bound
+     */
+    static int[] gap(String word){
+        final String bounds = word.substring(1, word.length() - 1);
+        final int comma = bounds.indexOf(',');
+        try {
+            final int min = Integer.parseInt((comma < 0 ? bounds : bounds.substring(0, comma)).trim());
+            final String max = comma < 0 ? bounds : bounds.substring(comma + 1).trim();
+            final int[] gap = {min, max.isEmpty() ? -1 : Integer.parseInt(max)};
+            if(min < 0 || gap[1] >= 0 && gap[1] < min){
+                throw new IllegalArgumentException("The gap " + word + " should have 0 <= m <= n");
+            }
+            return gap;
+        } catch (NumberFormatException e){
+            throw new IllegalArgumentException("Invalid gap, use {m,n}, {m,} or {m}: " + word, e);
+        }
+    }
+
+    /**
+     * @param word a proximity operator: <code>NEAR/k</code>
+     * @return k, the maximum number of tokens between the operands
+     */
+    static int distance(String word){
+        try {
+            return Integer.parseInt(word.substring("NEAR/".length()));
+        } catch (NumberFormatException e){
+            throw new IllegalArgumentException("Invalid proximity operator, use NEAR/k: " + word, e);
+        }
+    }
+
+    private static SequenceMatcher operand(Token[] pattern, int[] kinds, int[] codes, int from, int to){
+        for (int i = from; i < to; i++) {
+            if(kinds[i] != WORD && kinds[i] != Vocabulary.ANY_ONE){
+                throw new IllegalArgumentException("The operands of NEAR/k can only be words and ? wildcards: " + Arrays.toString(pattern));
+            }
+        }
+        if(from == to){
+            throw new IllegalArgumentException("NEAR/k needs an operand on both sides: " + Arrays.toString(pattern));
+        }
+        return new SequenceMatcher(Arrays.copyOfRange(pattern, from, to), Arrays.copyOfRange(kinds, from, to),
+                codes == null ? null : Arrays.copyOfRange(codes, from, to));
+    }
+
+    /**
+     * @param lit a word sequence literal, where ?, + and * tokens are wildcards, {m,n} tokens are bounded gaps,
+     *            (, |, ), [ and ] tokens delimit groups, a NEAR/k token separates the operands of a proximity pattern,
+     *            and a COUNT{m,n} token follows the word of a count. Of a parsed literal, these are only the tokens that
+     *            the grammar made operators, see {@link Literal#special(int)}: a quoted "|" is a word.
+     *            Negation is ignored.
+     * @return a matcher for the tokens of the literal, and for its vocabulary codes if it is encoded
+     * @throws IllegalArgumentException when the groups are not balanced, the sequence may be empty,
+     * a sequence with groups has more than {@link #MAX_SYMBOLS} symbols, an operand of a proximity pattern is not
+     * a sequence of words and ? wildcards, or a count is not a single word that occurs at least once
+     */
+    public static SequenceMatcher of(Literal lit){
+        int[] kinds = new int[lit.tokens.length];
+        for (int i = 0; i < kinds.length; i++) {
+            int special = lit.special(i);
+            kinds[i] = special == Vocabulary.UNKNOWN ? WORD : special;
+        }
+        return new SequenceMatcher(lit.tokens, kinds, lit.ids);
+    }
+
+    /**
+     * @param pattern tokens, where only {@link Token#ANY_ONE}, {@link Token#ANY_ONE_OR_MORE} and {@link Token#ANY_ZERO_OR_MORE} are wildcards
+     * @return a matcher for the tokens
+     */
+    public static SequenceMatcher of(List<Token> pattern){
+        Token[] tokens = pattern.toArray(new Token[pattern.size()]);
+        int[] kinds = new int[tokens.length];
+        for (int i = 0; i < kinds.length; i++) {
+            Token t = tokens[i];
+            kinds[i] = t == Token.ANY_ONE ? Vocabulary.ANY_ONE : t == Token.ANY_ONE_OR_MORE ? Vocabulary.ANY_ONE_OR_MORE : t == Token.ANY_ZERO_OR_MORE ? Vocabulary.ANY_ZERO_OR_MORE : WORD;
+        }
+        return new SequenceMatcher(tokens, kinds, null);
+    }
+
+    /**
+     * @return whether the matcher can be applied to encoded texts
+     */
+    boolean hasCodes(){
+        return normalizedIds != null;
+    }
+
+    /**
+     * @param text the tokens to search in
+     * @return the range of the first occurrence, or null if not found
+     */
+    public int[] findRange(Token[] text){
+        if(distance >= 0){
+            return first(starts(left, text), starts(right, text));
+        } else if(term != null){
+            return counted(starts(term, text));
+        }
+        return find(text.length, i -> mask(text[i]), (j, i) -> text[i].equals(words[j]));
+    }
+
+    /**
+     * @param text the tokens to search in
+     * @return the range of the first occurrence, or null if not found
+     */
+    public int[] findRange(List<Token> text){
+        return findRange(text.toArray(new Token[text.size()]));
+    }
+
+    /**
+     * Only for matchers of encoded literals, see {@link #of(Literal)}.
+     * @param normalized vocabulary ids of the normalized forms of the text
+     * @param exact vocabulary ids of the exact forms of the text
+     * @return the range of the first occurrence, or null if not found
+     */
+    public int[] findRange(int[] normalized, int[] exact){
+        long found = find(normalized, exact, normalized.length);
+        return found < 0 ? null : new int[]{(int) (found >> 32), (int) found};
+    }
+
+    /**
+     * Only for matchers of encoded literals, see {@link #of(Literal)}.
+     * Apart from patterns of more than {@link #MAX_SYMBOLS} symbols, this does not allocate.
+     * @param normalized vocabulary ids of the normalized forms of the text
+     * @param exact vocabulary ids of the exact forms of the text
+     * @param length the number of tokens of the text, at the start of the arrays
+     * @return the range of the first occurrence as <code>start &lt;&lt; 32 | end</code>, or -1 if not found
+     */
+    public long find(int[] normalized, int[] exact, int length){
+        if(!hasCodes()){
+            throw new IllegalArgumentException("The pattern is not encoded with a vocabulary.");
+        } else if(distance >= 0 || term != null){
+            int[] range = term != null ? counted(starts(term, normalized, exact, length))
+                    : first(starts(left, normalized, exact, length), starts(right, normalized, exact, length));
+            return range == null ? -1 : (long) range[0] << 32 | range[1];
+        } else if(m == 0){
+            // only * wildcards
+            return length > 0 ? 0 : -1;
+        } else if(m > MAX_SYMBOLS){
+            int[] range = findLong(length, (j, i) -> Vocabulary.matches(codes[j], normalized, exact, i));
+            return range == null ? -1 : (long) range[0] << 32 | range[1];
+        }
+        long d = 0;
+        for (int i = 0; i < length; i++) {
+            d = next(d, mask(normalized, exact, i));
+            if(accepts(d)){
+                return (long) start(null, normalized, exact, 0, 0, i + 1) << 32 | (i + 1);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Report the occurrences in the text, in one pass, in the order of their ends.
+     * Non-overlapping occurrences are the first occurrence, and then repeatedly the first occurrence after the end of the last one.
+     * Otherwise, every end of an occurrence is reported with its leftmost start, like the first occurrence.
+     * A pattern of only * wildcards occurs once, empty, at the start of a text that is not empty.
+     * @param text the tokens to search in
+     * @param overlapping whether to report every occurrence, instead of non-overlapping ones
+     * @param occurrences receives the ranges, and can stop the search
+     * @return the number of occurrences reported
+     */
+    public int findAll(Token[] text, boolean overlapping, Occurrences occurrences){
+        if(distance >= 0){
+            return near(starts(left, text), starts(right, text), overlapping, occurrences);
+        } else if(term != null){
+            return found(counted(starts(term, text)), occurrences);
+        }
+        final long[] masks = m > MAX_SYMBOLS ? null : new long[text.length];
+        return findAll(text.length, overlapping, occurrences, i -> masks[i] = mask(text[i]), masks, null, null,
+                (j, i) -> text[i].equals(words[j]));
+    }
+
+    /**
+     * Only for matchers of encoded literals, see {@link #of(Literal)} and {@link #findAll(Token[], boolean, Occurrences)}.
+     * @param normalized vocabulary ids of the normalized forms of the text
+     * @param exact vocabulary ids of the exact forms of the text
+     * @param length the number of tokens of the text, at the start of the arrays
+     * @param overlapping whether to report every occurrence, instead of non-overlapping ones
+     * @param occurrences receives the ranges, and can stop the search
+     * @return the number of occurrences reported
+     */
+    public int findAll(int[] normalized, int[] exact, int length, boolean overlapping, Occurrences occurrences){
+        if(!hasCodes()){
+            throw new IllegalArgumentException("The pattern is not encoded with a vocabulary.");
+        } else if(distance >= 0){
+            return near(starts(left, normalized, exact, length), starts(right, normalized, exact, length), overlapping, occurrences);
+        } else if(term != null){
+            return found(counted(starts(term, normalized, exact, length)), occurrences);
+        }
+        return findAll(length, overlapping, occurrences, i -> mask(normalized, exact, i), null, normalized, exact,
+                (j, i) -> Vocabulary.matches(codes[j], normalized, exact, i));
+    }
+
+    /**
+     * Find the first occurrence using the positional index of the text: the positions of an operand that is a single word,
+     * and of a counted word, are read from the index, instead of scanning the text for them.
+     * Other patterns are matched in a single pass over the text.
+     * @param index indexed text
+     * @return the range of the first occurrence, or null if not found
+     */
+    int[] findRange(TokenIndex index){
+        if(term != null){
+            return counted(starts(term, index));
+        } else if(distance < 0){
+            return findRange(index.tokens);
+        }
+        return first(starts(left, index), starts(right, index));
+    }
+
+    /**
+     * Only for counts.
+     * @param count the number of occurrences of the counted word
+     * @return whether the count is within the bounds
+     */
+    boolean countMatches(int count){
+        return count >= minCount && (maxCount < 0 || count <= maxCount);
+    }
+
+    /**
+     * @param starts the positions of the counted word
+     * @return the range from the first to the last occurrence, or null when the count is not within the bounds
+     */
+    private int[] counted(int[] starts){
+        return countMatches(starts.length) ? new int[]{starts[0], starts[starts.length - 1] + 1} : null;
+    }
+
+    private static int found(int[] range, Occurrences occurrences){
+        if(range == null){
+            return 0;
+        }
+        occurrences.found(range[0], range[1]);
+        return 1;
+    }
+
+    private static int[] starts(SequenceMatcher operand, TokenIndex index){
+        return operand.m == 1 && operand.words[0] != null ? index.positions(operand.words[0]) : starts(operand, index.tokens);
+    }
+
+    /**
+     * The occurrences of an operand of a proximity pattern have a fixed length, so their ends are in the order of their starts.
+     */
+    private static int[] starts(SequenceMatcher operand, Token[] text){
+        final IntStream.Builder starts = IntStream.builder();
+        operand.findAll(text, true, (start, end) -> {
+            starts.add(start);
+            return true;
+        });
+        return starts.build().toArray();
+    }
+
+    private static int[] starts(SequenceMatcher operand, int[] normalized, int[] exact, int length){
+        final IntStream.Builder starts = IntStream.builder();
+        operand.findAll(normalized, exact, length, true, (start, end) -> {
+            starts.add(start);
+            return true;
+        });
+        return starts.build().toArray();
+    }
+
+    private int[] first(int[] a, int[] b){
+        final int[] range = new int[2];
+        return near(a, b, true, (start, end) -> {
+            range[0] = start;
+            range[1] = end;
+            return false;
+        }) == 0 ? null : range;
+    }
+
+    /**
+     * Merge the sorted positions of the operands of a proximity pattern, in the order of the ends of their occurrences.
+     * For every occurrence of one operand, the first occurrence of the other operand that ends at most distance tokens
+     * before it is kept by a pointer, that only moves forward. Ends are reported like {@link #findAll(Token[], boolean, Occurrences)}.
+     * @param a starts of the occurrences of the left operand
+     * @param b starts of the occurrences of the right operand
+     */
+    private int near(int[] a, int[] b, boolean overlapping, Occurrences occurrences){
+        final int la = left.m, lb = right.m;
+        int count = 0;
+        int from = 0;
+        int i = 0, j = 0, earliestA = 0, earliestB = 0;
+        while (i < a.length || j < b.length) {
+            final int endA = i < a.length ? a[i] + la : Integer.MAX_VALUE;
+            final int endB = j < b.length ? b[j] + lb : Integer.MAX_VALUE;
+            final int end = Math.min(endA, endB);
+            int start = Integer.MAX_VALUE;
+            if(endA == end){
+                earliestB = earliest(b, lb, earliestB, from, a[i] - distance);
+                if(a[i] >= from && earliestB < b.length && b[earliestB] + lb <= a[i]){
+                    start = b[earliestB];
+                }
+                i++;
+            }
+            if(endB == end){
+                earliestA = earliest(a, la, earliestA, from, b[j] - distance);
+                if(b[j] >= from && earliestA < a.length && a[earliestA] + la <= b[j]){
+                    start = Math.min(start, a[earliestA]);
+                }
+                j++;
+            }
+            if(start != Integer.MAX_VALUE){
+                count++;
+                if(!occurrences.found(start, end)){
+                    break;
+                }
+                if(!overlapping){
+                    from = end;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the first occurrence from k on that starts at or after from, and ends at or after minEnd
+     */
+    private static int earliest(int[] starts, int length, int k, int from, int minEnd){
+        while (k < starts.length && (starts[k] < from || starts[k] + length < minEnd)) {
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * The forward pass, that starts over after an occurrence when they should not overlap.
+     * The symbols of a position are computed by mask, and kept in masks or computed again from the encoded text by the backward pass.
+     */
+    private int findAll(int T, boolean overlapping, Occurrences occurrences, IntToLongFunction mask, long[] masks,
+                        int[] normalized, int[] exact, SymbolTest test){
+        if(m == 0){
+            // only * wildcards
+            if(T == 0){
+                return 0;
+            }
+            occurrences.found(0, 0);
+            return 1;
+        } else if(m > MAX_SYMBOLS){
+            return findAllLong(T, overlapping, occurrences, test);
+        }
+        int count = 0;
+        int from = 0;
+        long d = 0;
+        // when overlapping, the leftmost start per symbol of the state is carried forward instead of being searched back per end
+        final int[] starts = overlapping && !leadingGap ? new int[m] : null;
+        final int[] nextStarts = starts == null ? null : new int[m];
+        for (int i = 0; i < T; i++) {
+            d = starts == null ? next(d, mask.applyAsLong(i)) : next(d, mask.applyAsLong(i), i, starts, nextStarts);
+            if(accepts(d)){
+                final int end = i + 1;
+                // a leading gap extends to where the search started
+                final int start = leadingGap ? from : starts != null ? leftmost(d, starts) : start(masks, normalized, exact, 0, from, end);
+                count++;
+                if(!occurrences.found(start, end)){
+                    break;
+                }
+                if(!overlapping){
+                    d = 0;
+                    from = end;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The forward pass of a pattern of more than {@link #MAX_SYMBOLS} symbols, that does not fit in a state word.
+     * Per symbol, the leftmost start of the partial occurrences that reach it is carried along,
+     * as by {@link #next(long, long, int, int[], int[])}, so the occurrences are the same as those of a shorter pattern.
+     * Every position takes a step per symbol instead of a single one: the time is linear in the length of the text,
+     * times the number of symbols.
+     */
+    private int findAllLong(int T, boolean overlapping, Occurrences occurrences, SymbolTest test){
+        int count = 0;
+        int from = 0;
+        // per symbol: the leftmost start of the partial occurrences that reach it, or -1 when there are none
+        final int[] starts = new int[m];
+        Arrays.fill(starts, -1);
+        for (int i = 0; i < T; i++) {
+            // from the last symbol down, so the previous symbol still has its start before position i
+            for (int j = m - 1; j >= 0; j--) {
+                int start = -1;
+                if(words[j] == null || test.test(j, i)){
+                    // a new start, or a continuation of the previous symbol
+                    start = j == 0 ? i : starts[j - 1];
+                }
+                if(loops[j] && starts[j] >= 0 && (start < 0 || starts[j] < start)){
+                    start = starts[j];
+                }
+                starts[j] = start;
+            }
+            if(starts[m - 1] >= 0){
+                final int end = i + 1;
+                count++;
+                // a leading gap extends to where the search started
+                if(!occurrences.found(leadingGap ? from : starts[m - 1], end)){
+                    break;
+                }
+                if(!overlapping){
+                    Arrays.fill(starts, -1);
+                    from = end;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The first occurrence of a pattern of more than {@link #MAX_SYMBOLS} symbols, see {@link #findAllLong(int, boolean, Occurrences, SymbolTest)}.
+     */
+    private int[] findLong(int T, SymbolTest test){
+        final int[] range = new int[2];
+        return findAllLong(T, false, (start, end) -> {
+            range[0] = start;
+            range[1] = end;
+            return false;
+        }, test) == 0 ? null : range;
+    }
+
+    /**
+     * @return whether an occurrence can be found one position at a time, see {@link #next(long, long)}:
+     * the pattern has at least one and at most {@link #MAX_SYMBOLS} symbols
+     */
+    boolean isIncremental(){
+        return m > 0 && m <= MAX_SYMBOLS;
+    }
+
+    /**
+     * A step of the forward pass.
+     * @param d the state before a position, 0 at the start of the text
+     * @param mask the symbols that match the token at the position
+     * @return the state after the position
+     */
+    long next(long d, long mask){
+        if(follow == null){
+            return ((d << 1 | 1L) & mask) | (d & loopMask);
+        }
+        // an occurrence may start at any position
+        long next = firstMask;
+        for (long rest = d; rest != 0; rest &= rest - 1) {
+            next |= follow[Long.numberOfTrailingZeros(rest)];
+        }
+        return next & mask;
+    }
+
+    /**
+     * A step of the forward pass that also keeps, per symbol of the state, the leftmost start of the partial occurrences
+     * that reach it. Every path to a symbol either starts at the position, or continues a path to a symbol of the
+     * previous state, so the leftmost start is the least of those. This is at most one step per symbol and predecessor.
+     * @param d the state before position i
+     * @param mask the symbols that match the token at position i
+     * @param i the position
+     * @param starts per symbol of d: the leftmost start, updated to the symbols of the returned state
+     * @param scratch room for the starts of the next state
+     * @return the state after the position
+     */
+    private long next(long d, long mask, int i, int[] starts, int[] scratch){
+        final long next = next(d, mask);
+        for (long rest = next; rest != 0; rest &= rest - 1) {
+            final int k = Long.numberOfTrailingZeros(rest);
+            final long bit = 1L << k;
+            int start = Integer.MAX_VALUE;
+            if(follow == null){
+                if((mask & bit) != 0){
+                    // shifted in: a new start, or a continuation of the previous symbol
+                    start = k == 0 ? i : (d & bit >>> 1) != 0 ? starts[k - 1] : Integer.MAX_VALUE;
+                }
+                if((d & loopMask & bit) != 0){
+                    start = Math.min(start, starts[k]);
+                }
+            } else {
+                start = (firstMask & bit) != 0 ? i : Integer.MAX_VALUE;
+                for (long previous = d & precede[k]; previous != 0; previous &= previous - 1) {
+                    start = Math.min(start, starts[Long.numberOfTrailingZeros(previous)]);
+                }
+            }
+            scratch[k] = start;
+        }
+        for (long rest = next; rest != 0; rest &= rest - 1) {
+            final int k = Long.numberOfTrailingZeros(rest);
+            starts[k] = scratch[k];
+        }
+        return next;
+    }
+
+    /**
+     * @param d an accepting state of the forward pass, see {@link #next(long, long, int, int[], int[])}
+     * @param starts per symbol of d: the leftmost start
+     * @return the leftmost start of the occurrences that end at the position of the state
+     */
+    private int leftmost(long d, int[] starts){
+        int start = Integer.MAX_VALUE;
+        for (long rest = d & lastMask; rest != 0; rest &= rest - 1) {
+            start = Math.min(start, starts[Long.numberOfTrailingZeros(rest)]);
+        }
+        return start;
+    }
+
+    /**
+     * @param d a state of the forward pass
+     * @return whether an occurrence ends at the position of the state
+     */
+    boolean accepts(long d){
+        return (d & lastMask) != 0;
+    }
+
+    /**
+     * Only for matchers of encoded literals.
+     * @return the symbols that match text position i
+     */
+    long mask(int[] normalized, int[] exact, int i){
+        return anyMask | mask(normalizedIds, normalizedIdMasks, normalized[i]) | mask(exactIds, exactIdMasks, exact[i]);
+    }
+
+    private long mask(Token t){
+        return anyMask | normalizedWords.getOrDefault(t.getNormalizedWord(), 0L) | exactWords.getOrDefault(t.getWord(), 0L);
+    }
+
+    private static long mask(int[] ids, long[] masks, int id){
+        int k = ids.length == 0 ? -1 : Arrays.binarySearch(ids, id);
+        return k < 0 ? 0 : masks[k];
+    }
+
+    private interface SymbolTest {
+        /**
+         * @return whether pattern symbol j matches text position i
+         */
+        boolean test(int j, int i);
+    }
+
+    private int[] find(int T, IntToLongFunction mask, SymbolTest test){
+        if(m == 0){
+            // only * wildcards
+            return T > 0 ? new int[]{0, 0} : null;
+        } else if(m > MAX_SYMBOLS){
+            return findLong(T, test);
+        }
+
+        // forward: the earliest end of an occurrence
+        final long[] masks = new long[T];
+        long d = 0;
+        int end = -1;
+        for (int i = 0; i < T; i++) {
+            masks[i] = mask.applyAsLong(i);
+            d = next(d, masks[i]);
+            if(accepts(d)){
+                end = i + 1;
+                break;
+            }
+        }
+        return end < 0 ? null : new int[]{start(masks, null, null, 0, 0, end), end};
+    }
+
+    /**
+     * The backward pass: from the end of an occurrence, found by the forward pass, to the leftmost start of an occurrence that ends there.
+     * The symbols that match a text position are read from the masks, or computed from the encoded text.
+     * @param masks per position, the symbols that match it (optional)
+     * @param normalized vocabulary ids of the normalized forms of the text, when there are no masks
+     * @param exact vocabulary ids of the exact forms of the text, when there are no masks
+     * @param offset the text position of the first element of the arrays
+     * @param from the first text position that is known
+     * @param end the end of an occurrence
+     * @return the leftmost start, or from when the occurrence starts before it
+     */
+    int start(long[] masks, int[] normalized, int[] exact, int offset, int from, int end){
+        if(leadingGap){
+            return 0;
+        } else if(follow != null){
+            return startGrouped(masks, normalized, exact, offset, from, end);
+        }
+        final long accept = 1L << (m - 1);
+        int start = from;
+        long d = 0;
+        for (int i = end - 1; i >= from; i--) {
+            long mask = masks != null ? masks[i - offset] : mask(normalized, exact, i - offset);
+            long reversed = Long.reverse(mask) >>> (64 - m);
+            d = ((d << 1 | (i == end - 1 ? 1L : 0L)) & reversed) | (d & reversedLoopMask);
+            if(d == 0){
+                break;
+            } else if((d & accept) != 0){
+                start = i;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * The backward pass of a pattern with groups: from the symbols an occurrence may end with, to the symbols that may precede them.
+     */
+    private int startGrouped(long[] masks, int[] normalized, int[] exact, int offset, int from, int end){
+        int start = from;
+        long d = 0;
+        for (int i = end - 1; i >= from; i--) {
+            long previous = lastMask;
+            if(i < end - 1){
+                previous = 0;
+                for (long rest = d; rest != 0; rest &= rest - 1) {
+                    previous |= precede[Long.numberOfTrailingZeros(rest)];
+                }
+            }
+            d = previous & (masks != null ? masks[i - offset] : mask(normalized, exact, i - offset));
+            if(d == 0){
+                break;
+            } else if((d & firstMask) != 0){
+                start = i;
+            }
+        }
+        return start;
+    }
+
+    private static int[] keys(Map<Integer, Long> map){
+        return map.keySet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static long[] values(Map<Integer, Long> map){
+        return map.values().stream().mapToLong(Long::longValue).toArray();
+    }
+
+    @Override
+    public String toString() {
+        if(distance >= 0){
+            return left + " NEAR/" + distance + " " + right;
+        } else if(term != null){
+            return term + "{" + minCount + "," + (maxCount < 0 ? "" : maxCount) + "}";
+        }
+        return "SequenceMatcher" + Arrays.toString(words);
+    }
+}
@@ -0,0 +1,90 @@
+package org.c4i.nlp.ph3.match;
+
+import org.c4i.nlp.ph3.tokenize.Token;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Positional inverted index of a single tokenized text.
+ * Both the normalized and the exact form of every word are mapped to the sorted list of positions
+ * where they occur, so a literal can be looked up instead of scanned for.
+ * <p>
+ * Build it once per document and reuse it for all rules that are evaluated against that document.
+ */
+public class TokenIndex {
+
+    private static final int[] NONE = new int[0];
+
+    final Token[] tokens;
+    private final Map<String, int[]> normalized;
+    private final Map<String, int[]> exact;
+
+    public TokenIndex(Token[] tokens) {
+        this.tokens = tokens;
+        this.normalized = index(tokens, true);
+        this.exact = index(tokens, false);
+    }
+
+    private static Map<String, int[]> index(Token[] tokens, boolean matchOnNormalized){
+        // first count, then fill: positions are added in order, so every list is sorted
+        Map<String, int[]> counts = new HashMap<>();
+        for (Token token : tokens) {
+            String word = matchOnNormalized ? token.getNormalizedWord() : token.getWord();
+            if(word != null) {
+                counts.computeIfAbsent(word, w -> new int[1])[0]++;
+            }
+        }
+
+        Map<String, int[]> positions = new HashMap<>(counts.size() * 2);
+        for (int i = 0; i < tokens.length; i++) {
+            String word = matchOnNormalized ? tokens[i].getNormalizedWord() : tokens[i].getWord();
+            if(word != null) {
+                int[] list = positions.get(word);
+                int[] count = counts.get(word);
+                if (list == null) {
+                    list = new int[count[0]];
+                    positions.put(word, list);
+                    count[0] = 0; // reuse as fill pointer
+                }
+                list[count[0]++] = i;
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * The positions where a pattern token occurs in the text.
+     * @param pattern a (non wildcard) pattern token
+     * @return sorted token positions, possibly empty
+     */
+    public int[] positions(Token pattern){
+        String word = pattern.isMatchOnNormalized() ? pattern.getNormalizedWord() : pattern.getWord();
+        int[] list = word == null ? null : (pattern.isMatchOnNormalized() ? normalized : exact).get(word);
+        return list == null ? NONE : list;
+    }
+
+    /**
+     * @param pattern a (non wildcard) pattern token
+     * @return whether the token occurs somewhere in the text
+     */
+    public boolean contains(Token pattern){
+        return positions(pattern).length > 0;
+    }
+
+    /**
+     * @param pattern a (non wildcard) pattern token
+     * @return the number of times the token occurs in the text
+     */
+    public int count(Token pattern){
+        return positions(pattern).length;
+    }
+
+    public Token[] getTokens() {
+        return tokens;
+    }
+
+    public int size(){
+        return tokens.length;
+    }
+}
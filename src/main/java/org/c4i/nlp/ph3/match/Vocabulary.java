@@ -0,0 +1,230 @@
+package org.c4i.nlp.ph3.match;
+
+import org.c4i.nlp.ph3.tokenize.Token;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns the words of compiled rules to ints, so matching can compare ints instead of strings.
+ * <p>
+ * The normalized forms ('word') and exact forms ("Word") of the words share a single id space.
+ * A text is encoded into two id arrays, one for the normalized and one for the exact form of its tokens.
+ * Words that do not appear in any rule get id {@link #UNKNOWN}: they can never match.
+ * <p>
+ * Pattern tokens are encoded as codes: <code>id &lt;&lt; 1 | (exact ? 1 : 0)</code> for words,
+ * or one of the negative wildcard and group codes.
+ * A vocabulary can be shared by multiple rule sets, so they understand the same encoded texts.
+ */
+public class Vocabulary {
+
+    public static final int UNKNOWN = -1;
+
+    /** Pattern code of the ? wildcard */
+    public static final int ANY_ONE = -2;
+    /** Pattern code of the + wildcard */
+    public static final int ANY_ONE_OR_MORE = -3;
+    /** Pattern code of the * wildcard */
+    public static final int ANY_ZERO_OR_MORE = -4;
+    /** Pattern code of the ( that opens a group of alternatives in a sequence */
+    public static final int GROUP_START = -5;
+    /** Pattern code of the | between the alternatives of a group */
+    public static final int ALTERNATIVE = -6;
+    /** Pattern code of the ) that closes a group */
+    public static final int GROUP_END = -7;
+    /** Pattern code of the [ that opens an optional part of a sequence */
+    public static final int OPTIONAL_START = -8;
+    /** Pattern code of the ] that closes an optional part */
+    public static final int OPTIONAL_END = -9;
+    /** Pattern code of a bounded gap {m,n}: at least m and at most n tokens */
+    public static final int GAP = -10;
+    /** Pattern code of the NEAR/k between the two operands of a proximity literal */
+    public static final int NEAR = -11;
+    /** Pattern code of the COUNT{m,n} after the word of a count literal: at least m and at most n occurrences */
+    public static final int COUNT = -12;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final List<String> words = new ArrayList<>();
+
+    /**
+     * Add a word if it is not known yet.
+     * @param word a normalized or exact word form
+     * @return the id of the word
+     */
+    public synchronized int add(String word){
+        Integer id = ids.get(word);
+        if(id == null){
+            id = words.size();
+            words.add(word);
+            ids.put(word, id);
+        }
+        return id;
+    }
+
+    /**
+     * @param word a normalized or exact word form
+     * @return the id of the word or {@link #UNKNOWN}
+     */
+    public int id(String word){
+        Integer id = word == null ? null : ids.get(word);
+        return id == null ? UNKNOWN : id;
+    }
+
+    /**
+     * @param id word id
+     * @return the word form with the given id
+     */
+    public synchronized String word(int id){
+        return words.get(id);
+    }
+
+    public synchronized int size(){
+        return words.size();
+    }
+
+    /**
+     * @param text tokens of a text
+     * @return the ids of the normalized forms of the tokens
+     */
+    public int[] normalizedIds(Token[] text){
+        return normalizedIds(text, null);
+    }
+
+    /**
+     * @param text tokens of a text
+     * @param reuse array to write the ids to, if it is long enough (optional)
+     * @return the ids of the normalized forms of the tokens, at the first text.length positions
+     */
+    public int[] normalizedIds(Token[] text, int[] reuse){
+        int[] result = reuse != null && reuse.length >= text.length ? reuse : new int[text.length];
+        for (int i = 0; i < text.length; i++) {
+            result[i] = id(text[i].getNormalizedWord());
+        }
+        return result;
+    }
+
+    /**
+     * @param text tokens of a text
+     * @return the ids of the exact forms of the tokens
+     */
+    public int[] exactIds(Token[] text){
+        return exactIds(text, null);
+    }
+
+    /**
+     * @param text tokens of a text
+     * @param reuse array to write the ids to, if it is long enough (optional)
+     * @return the ids of the exact forms of the tokens, at the first text.length positions
+     */
+    public int[] exactIds(Token[] text, int[] reuse){
+        int[] result = reuse != null && reuse.length >= text.length ? reuse : new int[text.length];
+        for (int i = 0; i < text.length; i++) {
+            result[i] = id(text[i].getWord());
+        }
+        return result;
+    }
+
+    /**
+     * @param words (normalized) words of a text that was tokenized elsewhere
+     * @return the ids of the words
+     */
+    public int[] ids(List<String> words){
+        int[] result = new int[words.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = id(words.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Encode the tokens of a pattern, adding their words to the vocabulary.
+     * @param pattern the tokens of a literal
+     * @return a code per token: a word id with the form in the lowest bit, or a wildcard code
+     */
+    public int[] encode(Token[] pattern){
+        return encode(pattern, null, true);
+    }
+
+    /**
+     * Encode the tokens of a literal, adding their words to the vocabulary.
+     * Of a parsed literal, only the tokens that the grammar made operators get operator codes, see {@link Literal#special(int)}.
+     * @param lit a literal
+     * @return a code per token: a word id with the form in the lowest bit, or a wildcard code
+     */
+    int[] encode(Literal lit){
+        return encode(lit.tokens, lit, true);
+    }
+
+    /**
+     * Encode the tokens of a pattern, without changing the vocabulary.
+     * @param pattern the tokens of a literal
+     * @return the codes, or null if the pattern contains a word that is not in the vocabulary
+     */
+    public int[] lookup(Token[] pattern){
+        return encode(pattern, null, false);
+    }
+
+    private int[] encode(Token[] pattern, Literal lit, boolean add){
+        int[] codes = new int[pattern.length];
+        for (int i = 0; i < pattern.length; i++) {
+            Token token = pattern[i];
+            String word = token.getWord();
+            int special = lit == null ? special(word) : lit.special(i);
+            if(special != UNKNOWN){
+                codes[i] = special;
+            } else {
+                String form = token.isMatchOnNormalized() ? token.getNormalizedWord() : word;
+                int id = add ? add(form) : id(form);
+                if(id == UNKNOWN){
+                    return null;
+                }
+                codes[i] = id << 1 | (token.isMatchOnNormalized() ? 0 : 1);
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * @param word the word of a pattern token
+     * @return the code of a wildcard, a group token, a bounded gap, a proximity operator or a count, or {@link #UNKNOWN} for a word
+     */
+    static int special(String word){
+        switch (word) {
+            case "?": return ANY_ONE;
+            case "+": return ANY_ONE_OR_MORE;
+            case "*": return ANY_ZERO_OR_MORE;
+            case "(": return GROUP_START;
+            case "|": return ALTERNATIVE;
+            case ")": return GROUP_END;
+            case "[": return OPTIONAL_START;
+            case "]": return OPTIONAL_END;
+            default:
+                if(word.length() > 2 && word.charAt(0) == '{' && word.charAt(word.length() - 1) == '}'){
+                    return GAP;
+                }
+                if(word.length() > 5 && word.startsWith("NEAR/")){
+                    return NEAR;
+                }
+                return word.length() > 7 && word.startsWith("COUNT{") && word.charAt(word.length() - 1) == '}' ? COUNT : UNKNOWN;
+        }
+    }
+
+    /**
+     * Whether a pattern code of a word matches a text position.
+     * @param code non-negative pattern code, see {@link #encode(Token[])}
+     * @param normalized ids of the normalized forms of the text
+     * @param exact ids of the exact forms of the text
+     * @param i text position
+     * @return true when the word at i has the id of the code, in the form of the code
+     */
+    static boolean matches(int code, int[] normalized, int[] exact, int i){
+        return ((code & 1) == 0 ? normalized[i] : exact[i]) == code >> 1;
+    }
+
+    @Override
+    public String toString() {
+        return "Vocabulary{size=" + size() + '}';
+    }
+}
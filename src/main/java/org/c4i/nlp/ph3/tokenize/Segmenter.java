@@ -0,0 +1,82 @@
+package org.c4i.nlp.ph3.tokenize;
+
+/**
+ * Splits a tokenized text in sentences or paragraphs, by looking at the characters between the tokens.
+ * The number of the segment of every token is recorded with {@link Token#setSegment(int)},
+ * so rules can be evaluated per segment (see {@link org.c4i.nlp.ph3.match.MatchParser#compileRule}).
+ * The tokens should have the character offsets in the text, as set by the tokenizers of this package.
+ */
+public class Segmenter {
+
+    private Segmenter() {
+    }
+
+    /**
+     * Split a text in sentences. A sentence ends at a '!', '?' or a line break between two paragraphs,
+     * or at a '.' that is followed by white space and a token that does not start with a lower case letter
+     * (so "e.g. this" and "3.5" are not split).
+     * @param text the original text
+     * @param tokens the tokens of the text, in order
+     * @return the number of sentences
+     */
+    public static int sentences(String text, Token[] tokens){
+        return segment(text, tokens, true);
+    }
+
+    /**
+     * Split a text in paragraphs, that are separated by an empty line.
+     * @param text the original text
+     * @param tokens the tokens of the text, in order
+     * @return the number of paragraphs
+     */
+    public static int paragraphs(String text, Token[] tokens){
+        return segment(text, tokens, false);
+    }
+
+    private static int segment(String text, Token[] tokens, boolean sentences){
+        int segment = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            if(i > 0 && isBoundary(text, tokens[i - 1].getCharEnd(), tokens[i].getCharStart(), tokens[i], sentences)){
+                segment++;
+            }
+            tokens[i].setSegment(segment);
+        }
+        return tokens.length == 0 ? 0 : segment + 1;
+    }
+
+    /**
+     * @return whether the characters between two tokens separate two segments
+     */
+    private static boolean isBoundary(String text, int from, int to, Token next, boolean sentences){
+        boolean period = false, space = false;
+        int newLines = 0;
+        for (int c = Math.max(0, from); c < to && c < text.length(); c++) {
+            final char ch = text.charAt(c);
+            if(ch == '\n'){
+                if(++newLines == 2){
+                    return true;
+                }
+            } else if(!Character.isWhitespace(ch)){
+                // only white space between the line breaks of an empty line
+                newLines = 0;
+            }
+            if(sentences){
+                switch (ch) {
+                    case '!': case '?': case '؟': case '。': case '！': case '？':
+                        return true;
+                    case '.':
+                        period = true;
+                        space = false;
+                        break;
+                    default:
+                        space |= period && Character.isWhitespace(ch);
+                }
+            }
+        }
+        if(period && space){
+            final String word = next.getWord();
+            return word == null || word.isEmpty() || !Character.isLowerCase(word.charAt(0));
+        }
+        return false;
+    }
+}
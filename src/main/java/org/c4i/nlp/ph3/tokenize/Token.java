@@ -23,6 +23,8 @@ public class Token implements Comparable<Token>, CharSequence{
     private boolean matchOnNormalized = true;
 
     private int charStart, charEnd;
+    /** the number of the sentence or paragraph the token belongs to, see {@link Segmenter} */
+    private int segment;
 
     public Token(String word) {
         this.word = word;
@@ -175,6 +177,15 @@ public class Token implements Comparable<Token>, CharSequence{
         return this;
     }
 
+    public int getSegment() {
+        return segment;
+    }
+
+    public Token setSegment(int segment) {
+        this.segment = segment;
+        return this;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -1,6 +1,8 @@
 package org.c4i.nlp.ph3.tokenize;
 
 
+import org.c4i.nlp.ph3.match.SequenceMatcher;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -111,76 +113,14 @@ public class TokenUtil {
         return findRange(Arrays.asList(sentence), Arrays.asList(pattern));
     }
 
+    /**
+     * Find the first occurrence of a pattern in a single pass over the sentence, see {@link SequenceMatcher}.
+     * @param sentence the tokens to search in
+     * @param pattern tokens, where {@link Token#ANY_ONE}, {@link Token#ANY_ONE_OR_MORE} and {@link Token#ANY_ZERO_OR_MORE} are wildcards
+     * @return the range of the first occurrence, or null if not found
+     */
     public static int[] findRange(List<Token> sentence, List<Token> pattern){
-        final int S = sentence.size();
-        final int P = pattern.size();
-
-        int matchStart = Integer.MAX_VALUE;
-        int matchEnd = -1;
-
-        nextS : for (int si = 0; si < S; si++) {
-            int pi;
-
-            nextP: for (pi = 0; pi < P; pi++) {
-
-                Token p = pattern.get(pi);
-                if(si + pi >= S){
-                    return null;
-                }
-                Token s = sentence.get(si + pi);
-
-                if (p == Token.ANY_ONE) {
-                    matchStart = Math.min(si, matchStart);
-                    matchEnd = Math.max(si + pi + 1, matchEnd);
-                    continue nextP;
-                } else  if (p == Token.ANY_ZERO_OR_MORE || p == Token.ANY_ONE_OR_MORE) {
-                    pi++;
-                    if(pi == P){
-                        matchStart = Math.min(si, matchStart);
-                        matchEnd = Math.max(si + pi, matchEnd);
-                        return new int[]{matchStart, matchEnd}; // last pattern token
-                    }
-
-                    Token pQuant = p;
-                    p = pattern.get(pi);  // next p
-                    if(p == Token.ANY_ONE || p == Token.ANY_ONE_OR_MORE || p == Token.ANY_ZERO_OR_MORE){
-                        throw new IllegalArgumentException("Pattern contains multiple wildcards next to each other: " + pattern);
-                    }
-                    if(pi + si == S){
-                        return null; // no more tokens in sentence, but pattern expects token
-                    }
-
-                    // find first match for p
-                    for (int k = si + pi - (pQuant == Token.ANY_ZERO_OR_MORE ? 1 : 0); k < S; k++) {
-                        if(sentence.get(k).equals(p)){
-                            si = k;
-                            matchEnd = si + 1;
-                            continue nextP;
-                        }
-                    }
-                    matchStart = Integer.MAX_VALUE;
-                    matchEnd = -1;
-                    continue nextS; // next p not found
-                }
-
-                // literal check
-                if (!s.equals(p)) {
-                    matchStart = Integer.MAX_VALUE;
-                    matchEnd = -1;
-                    continue nextS;
-                } else {
-                    matchStart = Math.min(si, matchStart);
-                    matchEnd = Math.max(si + pi + 1, matchEnd);
-                }
-            }
-
-            if(pi == P){
-                // full pattern matched
-                return new int[]{matchStart, matchEnd};
-            }
-        }
-        return null;
+        return SequenceMatcher.of(pattern).findRange(sentence);
     }
 
-
 }
@@ -0,0 +1,46 @@
+package org.c4i.nlp.ph3;
+
+import org.c4i.nlp.ph3.match.MatchEval;
+import org.c4i.nlp.ph3.match.MatchParser;
+import org.c4i.nlp.ph3.match.MatchRuleSet;
+import org.c4i.nlp.ph3.match.Vocabulary;
+import org.c4i.nlp.ph3.tokenize.Token;
+import org.junit.Test;
+
+import static org.c4i.nlp.ph3.match.MatchUtil.textToTokens;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs all rule tests against rule sets that are evaluated by generated code.
+ */
+public class GeneratedRuleTest extends RuleTest {
+
+    @Override
+    MatchRuleSet compile(String rules, boolean simplify) {
+        return MatchParser.compileRuleSet(rules, simplify, normalizer, true);
+    }
+
+    @Override
+    MatchRuleSet compile(String rules, boolean simplify, Vocabulary vocabulary) {
+        return MatchParser.compileRuleSet(rules, simplify, normalizer, vocabulary, true);
+    }
+
+    @Test
+    public void matchGeneratedWildcards(){
+        String rules = "a = monkey_*_pear & -(pear_*_monkey)\n" +
+                "b = *_eats_+ | nothing\n" +
+                "c = \"The\"_?_eats_+_pear_* & #a\n" +
+                "d = the_+_+_a & -#b | a_?_?_?_?\n" +
+                "e = eats_+_pear_*_apple";
+        MatchRuleSet generated = compile(rules, false);
+        MatchRuleSet interpreted = MatchParser.compileRuleSet(rules, false, normalizer);
+        assertTrue(generated.isGenerated());
+
+        for (String text : new String[]{"The monkey eats a pear", "the monkey eats a pear and an apple", "pear monkey eats", ""}) {
+            Token[] tokens = textToTokens(text, normalizer);
+            assertEquals(text, MatchEval.eval(interpreted, tokens), MatchEval.eval(generated, tokens));
+        }
+        assertEquals(3, MatchEval.eval(generated, textToTokens("The monkey eats a pear", normalizer)).size());
+    }
+}
@@ -4,7 +4,12 @@ import org.apache.commons.lang3.time.StopWatch;
 import org.c4i.nlp.ph3.match.Literal;
 import org.c4i.nlp.ph3.match.MatchEval;
 import org.c4i.nlp.ph3.match.MatchParser;
+import org.c4i.nlp.ph3.match.MatchRange;
 import org.c4i.nlp.ph3.match.MatchRule;
+import org.c4i.nlp.ph3.match.MatchRuleSet;
+import org.c4i.nlp.ph3.match.MatchUtil;
+import org.c4i.nlp.ph3.match.SequenceMatcher;
+import org.c4i.nlp.ph3.match.TokenIndex;
 import org.c4i.nlp.ph3.normalize.StringNormalizer;
 import org.c4i.nlp.ph3.normalize.StringNormalizers;
 import org.c4i.nlp.ph3.tokenize.MatchingWordTokenizer;
@@ -12,9 +17,16 @@ import org.c4i.nlp.ph3.tokenize.Token;
 import org.c4i.nlp.ph3.tokenize.Tokenizer;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -158,6 +170,384 @@ public class MatchTest {
         match(true, "تعال إلى لاهاي للانضمام إلى المحور!", "Hello & world OR لاهاي");
     }
 
+    @Test
+    public void matchUnquotedNonLatin(){
+        match(true, "Привет, мир! Καλημέρα κόσμε, שלום עולם, Łódź", "мир & κόσμε & עולם & Łódź");
+    }
+
+    @Test
+    public void matchUnquotedTilde(){
+        // ~ is not an operator, the normalizer drops it like other punctuation
+        match(true, "ab c", "a~b");
+        match(true, "d c", "a~b | c");
+    }
+
+    @Test
+    public void matchNegatedInSequence(){
+        // the negation of a term of a sequence is ignored, as it always was
+        match(true, "Come to The Hague to join the Hub!", "-the_hague");
+    }
+
+    @Test
+    public void matchSequenceRandom(){
+        // the single pass matcher gives the same range as trying every start position
+        Random random = new Random(42);
+        String[] words = {"a", "b", "c", "?", "+", "*"};
+        for (int n = 0; n < 20_000; n++) {
+            // now and then a pattern that does not fit in a single state word
+            boolean large = n % 100 == 0;
+            Token[] tokens = new Token[random.nextInt(large ? 300 : 12)];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = new Token(words[random.nextInt(3)]);
+            }
+            int P = large ? 70 + random.nextInt(30) : 1 + random.nextInt(6);
+            Token[] pattern = new Token[P];
+            for (int i = 0; i < P; i++) {
+                pattern[i] = new Token(large && random.nextBoolean() ? "*" : words[random.nextInt(words.length)]);
+            }
+            Literal lit = new Literal(pattern, false, 'a');
+
+            int[] expected = null;
+            for (int si = 0; si < tokens.length && expected == null; si++) {
+                int end = MatchEval.matchAt(tokens, lit, si);
+                if(end >= 0){
+                    expected = new int[]{si, end};
+                }
+            }
+            String message = Arrays.toString(tokens) + " " + lit;
+            assertArrayEquals(message, expected, MatchEval.findRange(tokens, lit));
+            assertArrayEquals(message, expected, MatchEval.findRange(new TokenIndex(tokens), lit));
+        }
+    }
+
+    @Test
+    public void matchAllRandom(){
+        // one pass gives the same occurrences as finding the first occurrence in the rest of the text again and again
+        Random random = new Random(43);
+        String[] words = {"a", "b", "c", "?", "+", "*"};
+        for (int n = 0; n < 10_000; n++) {
+            boolean large = n % 100 == 0;
+            Token[] tokens = new Token[random.nextInt(large ? 300 : 16)];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = new Token(words[random.nextInt(3)]);
+            }
+            int P = large ? 70 + random.nextInt(30) : 1 + random.nextInt(4);
+            boolean gaps = random.nextBoolean();
+            Token[] pattern = new Token[P];
+            for (int i = 0; i < P; i++) {
+                pattern[i] = new Token(large && random.nextBoolean() ? "*" : words[random.nextInt(gaps ? words.length : 4)]);
+            }
+            Literal lit = new Literal(pattern, false, 'a');
+            String message = Arrays.toString(tokens) + " " + lit;
+
+            List<Integer> expected = new ArrayList<>();
+            for (int from = 0; from < tokens.length; ) {
+                int[] range = MatchEval.findRange(Arrays.copyOfRange(tokens, from, tokens.length), lit);
+                if(range == null){
+                    break;
+                }
+                expected.add(from + range[0]);
+                expected.add(from + range[1]);
+                if(range[1] == 0){
+                    // empty
+                    break;
+                }
+                from += range[1];
+            }
+            List<Integer> actual = new ArrayList<>();
+            int count = MatchEval.findAll(tokens, lit, false, (start, end) -> actual.add(start) && actual.add(end));
+            assertEquals(message, expected, actual);
+            assertEquals(message, expected.size() / 2, count);
+
+            if(!gaps && !large){
+                // every start
+                expected.clear();
+                for (int si = 0; si + P <= tokens.length; si++) {
+                    if(MatchEval.matchAt(tokens, lit, si) >= 0){
+                        expected.add(si);
+                        expected.add(si + P);
+                    }
+                }
+                actual.clear();
+                MatchEval.findAll(tokens, lit, true, (start, end) -> actual.add(start) && actual.add(end));
+                assertEquals(message, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void matchGroupsRandom(){
+        // a sequence with groups gives the earliest end, and then the leftmost start, of all the sequences it stands for
+        Random random = new Random(44);
+        for (int n = 0; n < 20_000; n++) {
+            List<String> pattern = new ArrayList<>();
+            List<List<String>> expansions = randomSequence(random, 0, pattern);
+            if(pattern.size() > 40 || expansions.stream().anyMatch(e -> e.stream().allMatch("*"::equals))){
+                // too many combinations, or may be empty
+                continue;
+            }
+            Token[] tokens = new Token[random.nextInt(14)];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = new Token(String.valueOf((char)('a' + random.nextInt(3))));
+            }
+            Literal lit = new Literal(pattern.stream().map(Token::new).toArray(Token[]::new), false, 'a');
+            String message = Arrays.toString(tokens) + " " + lit;
+
+            int[] expected = null;
+            for (List<String> expansion : expansions) {
+                int[] range = MatchEval.findRange(tokens, new Literal(expansion.stream().map(Token::new).toArray(Token[]::new), false, 'a'));
+                if(range != null && (expected == null || range[1] < expected[1] || range[1] == expected[1] && range[0] < expected[0])){
+                    expected = range;
+                }
+            }
+            assertArrayEquals(message, expected, MatchEval.findRange(tokens, lit));
+            assertArrayEquals(message, expected, MatchEval.findRange(new TokenIndex(tokens), lit));
+            if(n % 20 == 0 && !pattern.get(0).equals("(")){
+                // parsed from its string form (where a leading group would be a disjunction), and matched on the encoded text
+                MatchRuleSet ruleSet = MatchParser.compileRuleSet("x = " + lit, false, StringNormalizers.LOWER_CASE);
+                MatchRange range = MatchEval.eval(ruleSet, tokens).get("x");
+                assertArrayEquals(message, expected, range == null ? null : new int[]{range.getTokenStart(), range.getTokenEnd()});
+            }
+
+            List<Integer> all = new ArrayList<>();
+            for (int from = 0; from < tokens.length; ) {
+                int[] range = MatchEval.findRange(Arrays.copyOfRange(tokens, from, tokens.length), lit);
+                if(range == null){
+                    break;
+                }
+                all.add(from + range[0]);
+                all.add(from + range[1]);
+                from += range[1];
+            }
+            List<Integer> actual = new ArrayList<>();
+            MatchEval.findAll(tokens, lit, false, (start, end) -> actual.add(start) && actual.add(end));
+            assertEquals(message, all, actual);
+
+            // overlapping: every end, with the leftmost start of a sequence that occurs exactly there
+            Pattern regex = Pattern.compile(expansions.stream().map(e -> e.stream().map(w ->
+                    w.equals("?") ? "\\S+ " : w.equals("+") ? "(?:\\S+ )+" : w.equals("*") ? "(?:\\S+ )*" : w + " ")
+                    .collect(Collectors.joining())).collect(Collectors.joining("|")));
+            all.clear();
+            for (int end = 1; end <= tokens.length; end++) {
+                for (int start = 0; start < end; start++) {
+                    String text = Arrays.stream(tokens, start, end).map(t -> t.getWord() + " ").collect(Collectors.joining());
+                    if(regex.matcher(text).matches()){
+                        all.add(start);
+                        all.add(end);
+                        break;
+                    }
+                }
+            }
+            actual.clear();
+            MatchEval.findAll(tokens, lit, true, (start, end) -> actual.add(start) && actual.add(end));
+            assertEquals(message, all, actual);
+        }
+    }
+
+    /**
+     * Add a random sequence with groups to the pattern.
+     * @return the plain sequences it stands for
+     */
+    private static List<List<String>> randomSequence(Random random, int depth, List<String> pattern){
+        List<List<String>> result = new ArrayList<>();
+        result.add(new ArrayList<>());
+        for (int p = 1 + random.nextInt(3); p > 0; p--) {
+            List<List<String>> part = new ArrayList<>();
+            int kind = random.nextInt(depth < 2 ? 4 : 2);
+            if(kind < 2){
+                // a word, or now and then a wildcard
+                String word = String.valueOf("abcabcabc?+*{".charAt(random.nextInt(13)));
+                if(word.equals("{")){
+                    // a bounded gap {m,n}, or {m,}, that stands for m to n ? wildcards
+                    int min = random.nextInt(3), max = random.nextInt(4) - 1;
+                    if(max >= 0 && max < min){
+                        max = min;
+                    }
+                    pattern.add("{" + min + "," + (max < 0 ? "" : max) + "}");
+                    if(max < 0){
+                        List<String> gap = new ArrayList<>(Collections.nCopies(Math.max(0, min - 1), "?"));
+                        gap.add(min == 0 ? "*" : "+");
+                        part.add(gap);
+                    }
+                    for (int k = min; k <= max; k++) {
+                        part.add(new ArrayList<>(Collections.nCopies(k, "?")));
+                    }
+                } else {
+                    pattern.add(word);
+                    part.add(new ArrayList<>(Arrays.asList(word)));
+                }
+            } else {
+                boolean optional = kind == 3;
+                pattern.add(optional ? "[" : "(");
+                for (int a = optional ? 1 + random.nextInt(2) : 2 + random.nextInt(2); a > 0; a--) {
+                    part.addAll(randomSequence(random, depth + 1, pattern));
+                    pattern.add("|");
+                }
+                pattern.set(pattern.size() - 1, optional ? "]" : ")");
+                if(optional){
+                    part.add(new ArrayList<>());
+                }
+            }
+            List<List<String>> product = new ArrayList<>();
+            for (List<String> prefix : result) {
+                for (List<String> suffix : part) {
+                    List<String> sequence = new ArrayList<>(prefix);
+                    sequence.addAll(suffix);
+                    product.add(sequence);
+                }
+            }
+            result = product;
+        }
+        return result;
+    }
+
+    @Test
+    public void matchLongSequenceRandom(){
+        // a sequence of more than MAX_SYMBOLS words and wildcards is not matched bit-parallel, but gives the same ranges:
+        // followed by MAX_SYMBOLS ? wildcards, it occurs where the short sequence occurs, MAX_SYMBOLS tokens later
+        Random random = new Random(46);
+        for (int n = 0; n < 20_000; n++) {
+            List<Token> shortPattern = new ArrayList<>();
+            for (int p = 1 + random.nextInt(5); p > 0; p--) {
+                shortPattern.add(new Token(String.valueOf("abcabc?+*".charAt(random.nextInt(9)))));
+            }
+            if(shortPattern.stream().allMatch(t -> t.getWord().equals("*"))){
+                // may be empty
+                continue;
+            }
+            List<Token> longPattern = new ArrayList<>(shortPattern);
+            for (int j = 0; j < SequenceMatcher.MAX_SYMBOLS; j++) {
+                longPattern.add(new Token("?"));
+            }
+            Token[] tokens = new Token[random.nextInt(14)];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = new Token(String.valueOf((char)('a' + random.nextInt(3))));
+            }
+            Token[] padded = Arrays.copyOf(tokens, tokens.length + SequenceMatcher.MAX_SYMBOLS);
+            Arrays.fill(padded, tokens.length, padded.length, new Token("d"));
+            Literal shortLit = new Literal(shortPattern.toArray(new Token[0]), false, 'a');
+            Literal longLit = new Literal(longPattern.toArray(new Token[0]), false, 'a');
+            String message = Arrays.toString(tokens) + " " + shortLit;
+
+            int[] expected = MatchEval.findRange(tokens, shortLit);
+            if(expected != null){
+                expected[1] += SequenceMatcher.MAX_SYMBOLS;
+            }
+            assertArrayEquals(message, expected, MatchEval.findRange(padded, longLit));
+
+            List<Integer> all = new ArrayList<>();
+            MatchEval.findAll(tokens, shortLit, true, (start, end) -> all.add(start) && all.add(end + SequenceMatcher.MAX_SYMBOLS));
+            List<Integer> actual = new ArrayList<>();
+            MatchEval.findAll(padded, longLit, true, (start, end) -> actual.add(start) && actual.add(end));
+            assertEquals(message, all, actual);
+
+            // non-overlapping: the first occurrence, and then the first one after its end
+            all.clear();
+            for (int from = 0; from < padded.length; ) {
+                int[] range = MatchEval.findRange(Arrays.copyOfRange(padded, from, padded.length), longLit);
+                if(range == null){
+                    break;
+                }
+                all.add(from + range[0]);
+                all.add(from + range[1]);
+                from += range[1];
+            }
+            actual.clear();
+            MatchEval.findAll(padded, longLit, false, (start, end) -> actual.add(start) && actual.add(end));
+            assertEquals(message, all, actual);
+        }
+    }
+
+    @Test
+    public void matchNearRandom(){
+        // merging the positions of the operands gives the earliest end, and then the leftmost start, of all pairs of occurrences
+        Random random = new Random(45);
+        String[] words = {"a", "b", "c", "?"};
+        for (int n = 0; n < 20_000; n++) {
+            Token[] tokens = new Token[random.nextInt(16)];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = new Token(words[random.nextInt(3)]);
+            }
+            Token[] a = new Token[1 + random.nextInt(2)], b = new Token[1 + random.nextInt(2)];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = new Token(words[random.nextInt(words.length)]);
+            }
+            for (int i = 0; i < b.length; i++) {
+                b[i] = new Token(words[random.nextInt(words.length)]);
+            }
+            int k = random.nextInt(4);
+            List<Token> pattern = new ArrayList<>(Arrays.asList(a));
+            pattern.add(new Token("NEAR/" + k));
+            pattern.addAll(Arrays.asList(b));
+            Literal lit = new Literal(pattern.toArray(new Token[pattern.size()]), false, 'a');
+            String message = Arrays.toString(tokens) + " " + lit;
+
+            int[] expected = null;
+            for (int ai = 0; ai + a.length <= tokens.length; ai++) {
+                for (int bi = 0; bi + b.length <= tokens.length; bi++) {
+                    if(MatchEval.matchAt(tokens, new Literal(a, false, 'a'), ai) < 0 || MatchEval.matchAt(tokens, new Literal(b, false, 'a'), bi) < 0){
+                        continue;
+                    }
+                    int between = ai < bi ? bi - ai - a.length : ai - bi - b.length;
+                    if(between >= 0 && between <= k){
+                        int[] range = {Math.min(ai, bi), Math.max(ai + a.length, bi + b.length)};
+                        if(expected == null || range[1] < expected[1] || range[1] == expected[1] && range[0] < expected[0]){
+                            expected = range;
+                        }
+                    }
+                }
+            }
+            assertArrayEquals(message, expected, MatchEval.findRange(tokens, lit));
+            assertArrayEquals(message, expected, MatchEval.findRange(new TokenIndex(tokens), lit));
+            if(n % 20 == 0){
+                // parsed from its string form, and matched on the encoded text
+                MatchRuleSet ruleSet = MatchParser.compileRuleSet("x = " + lit + "\ny = -(" + lit + ")", false, StringNormalizers.LOWER_CASE);
+                Map<String, MatchRange> eval = MatchEval.eval(ruleSet, tokens);
+                MatchRange range = eval.get("x");
+                assertArrayEquals(message, expected, range == null ? null : new int[]{range.getTokenStart(), range.getTokenEnd()});
+                assertEquals(message, expected == null, eval.containsKey("y"));
+            }
+
+            List<Integer> all = new ArrayList<>();
+            for (int from = 0; from < tokens.length; ) {
+                int[] range = MatchEval.findRange(Arrays.copyOfRange(tokens, from, tokens.length), lit);
+                if(range == null){
+                    break;
+                }
+                all.add(from + range[0]);
+                all.add(from + range[1]);
+                from += range[1];
+            }
+            List<Integer> actual = new ArrayList<>();
+            MatchEval.findAll(tokens, lit, false, (start, end) -> actual.add(start) && actual.add(end));
+            assertEquals(message, all, actual);
+        }
+    }
+
+    @Test
+    public void matchAllRule(){
+        assertEquals(3, MatchUtil.count("the apple and the pear and an apple", "apple | pear"));
+        assertEquals(5, MatchUtil.count("the apple and the pear and an apple", "(apple | pear) & the"));
+        assertEquals(0, MatchUtil.count("the apple and the pear and an apple", "(apple | pear) & -the"));
+        // stop after the first
+        assertEquals(1, MatchUtil.findAll("the apple and the pear and an apple", "apple | pear", (start, end) -> false));
+        List<Integer> ranges = new ArrayList<>();
+        MatchUtil.findAll("the apple and the pear", "the_apple | apple", (start, end) -> ranges.add(start) && ranges.add(end));
+        // apple overlaps the_apple
+        assertEquals(Arrays.asList(0, 2), ranges);
+    }
+
+    @Test
+    public void matchRepeatedLiteral(){
+        List<Token> textTokens = tokenizer.tokenize("the pear and an apple");
+        Token[] tokens = textTokens.toArray(new Token[textTokens.size()]);
+        normalizer.normalizeTokens(tokens);
+        Literal[][] cnf = MatchParser.compileBody("apple & pear & apple", false, normalizer);
+        assertEquals(3, cnf.length);
+        // the range of the first clause is not changed when the rule range is extended
+        assertArrayEquals(new int[]{4, 5}, MatchEval.findRange(tokens, new MatchRule(null, cnf), null, null));
+        assertArrayEquals(new int[]{4, 5}, MatchEval.findRange(new TokenIndex(tokens), new MatchRule(null, cnf), null, null));
+    }
 
     private void match(boolean expected, String text, String pattern){
         System.out.printf("The text \"%s\" is expected to%s match (%s)\n", text, (expected ? "" : " NOT"), pattern );
@@ -183,5 +573,9 @@ public class MatchTest {
         System.out.println(" - speed (evals/s): " + (int)((double)N/ (stopWatch.getTime()/1000.0)));
 
         assertEquals(expected, eval != null);
+
+        int[] indexEval = MatchEval.findRange(new TokenIndex(tokens), new MatchRule(null, cnf), null, null);
+        System.out.println(" - index eval = " + Arrays.toString(indexEval));
+        assertEquals(expected, indexEval != null);
     }
 }
@@ -1,22 +1,48 @@
 package org.c4i.nlp.ph3;
 
 import org.apache.commons.lang3.time.StopWatch;
+import org.c4i.nlp.ph3.match.EvalContext;
+import org.c4i.nlp.ph3.match.EvalResult;
+import org.c4i.nlp.ph3.match.Literal;
+import org.c4i.nlp.ph3.match.LiteralAutomaton;
 import org.c4i.nlp.ph3.match.MatchEval;
 import org.c4i.nlp.ph3.match.MatchParser;
 import org.c4i.nlp.ph3.match.MatchRange;
+import org.c4i.nlp.ph3.match.MatchRule;
 import org.c4i.nlp.ph3.match.MatchRuleSet;
+import org.c4i.nlp.ph3.match.MatchSession;
+import org.c4i.nlp.ph3.match.RuleIndex;
+import org.c4i.nlp.ph3.match.TokenIndex;
+import org.c4i.nlp.ph3.match.Vocabulary;
 import org.c4i.nlp.ph3.normalize.StringNormalizer;
 import org.c4i.nlp.ph3.normalize.StringNormalizers;
+import org.c4i.nlp.ph3.tokenize.Segmenter;
 import org.c4i.nlp.ph3.tokenize.SplittingWordTokenizer;
 import org.c4i.nlp.ph3.tokenize.Token;
 import org.c4i.nlp.ph3.tokenize.Tokenizer;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.c4i.nlp.ph3.match.MatchUtil.textToTokens;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -26,13 +52,21 @@ import static org.junit.Assert.assertTrue;
 public class RuleTest {
 
     private Tokenizer tokenizer = new SplittingWordTokenizer();
-    private StringNormalizer normalizer = StringNormalizers.LOWER_CASE;
+    StringNormalizer normalizer = StringNormalizers.LOWER_CASE;
     private final static int N = 1_00_000;
 
+    MatchRuleSet compile(String rules, boolean simplify){
+        return MatchParser.compileRuleSet(rules, simplify, normalizer);
+    }
+
+    MatchRuleSet compile(String rules, boolean simplify, Vocabulary vocabulary){
+        return MatchParser.compileRuleSet(rules, simplify, normalizer, vocabulary);
+    }
+
 
     @Test
     public void matchSimple1(){
-        MatchRuleSet ruleSet = MatchParser.compileRuleSet("fruit = apple | pear", true, normalizer);
+        MatchRuleSet ruleSet = compile("fruit = apple | pear", true);
         Map<String, MatchRange> eval = MatchEval.eval(ruleSet, textToTokens("I like apple juice", normalizer));
 
         for (Map.Entry<String, MatchRange> evalEntry : eval.entrySet()) {
@@ -44,7 +78,7 @@ public class RuleTest {
 
     @Test
     public void matchSimple2(){
-        MatchRuleSet ruleSet = MatchParser.compileRuleSet("fruit = apple | pear", true, normalizer);
+        MatchRuleSet ruleSet = compile("fruit = apple | pear", true);
         Map<String, MatchRange> eval = MatchEval.eval(ruleSet, textToTokens("I like cocktails", normalizer));
 
         for (Map.Entry<String, MatchRange> evalEntry : eval.entrySet()) {
@@ -56,10 +90,10 @@ public class RuleTest {
 
     @Test
     public void matchSimple3(){
-        MatchRuleSet ruleSet = MatchParser.compileRuleSet(
+        MatchRuleSet ruleSet = compile(
                 "fruit = apple | pear\n" +
                         "drink = milk | beer | cocktail",
-                true, normalizer);
+                true);
         Map<String, MatchRange> eval = MatchEval.eval(ruleSet, textToTokens("Me like cocktail", normalizer));
 
         for (Map.Entry<String, MatchRange> evalEntry : eval.entrySet()) {
@@ -71,12 +105,12 @@ public class RuleTest {
 
     @Test
     public void matchSimple4(){
-        MatchRuleSet ruleSet = MatchParser.compileRuleSet(
+        MatchRuleSet ruleSet = compile(
                 "fruit = apple | pear\n" +
                         "drink = milk | beer | cocktail\n" +
                         "food = bread | #fruit",
 
-                false, normalizer);
+                false);
         Map<String, MatchRange> eval = MatchEval.eval(ruleSet, textToTokens("The monkey eats a pear", normalizer));
 
         for (Map.Entry<String, MatchRange> evalEntry : eval.entrySet()) {
@@ -86,15 +120,878 @@ public class RuleTest {
         assertTrue(eval.containsKey("food") && eval.containsKey("fruit"));
     }
 
+    @Test
+    public void matchIndexed(){
+        MatchRuleSet ruleSet = compile(
+                "fruit = apple | pear\n" +
+                        "animal = bear & -beer OR monkey\n" +
+                        "drink = milk | beer | cocktail\n" +
+                        "food = bread | #fruit\n" +
+                        "meal = monkey_eats_?_pear",
+
+                false);
+        Token[] tokens = textToTokens("The monkey eats a pear", normalizer);
+        Map<String, MatchRange> eval = MatchEval.eval(ruleSet, new TokenIndex(tokens));
+
+        for (Map.Entry<String, MatchRange> evalEntry : eval.entrySet()) {
+            System.out.println(evalEntry.getKey() + " @ " + evalEntry.getValue());
+        }
+
+        assertEquals(MatchEval.eval(ruleSet, tokens), eval);
+        assertTrue(eval.containsKey("food") && eval.containsKey("animal") && eval.containsKey("meal"));
+    }
+
+    @Test
+    public void matchAutomaton(){
+        MatchRuleSet ruleSet = compile(
+                "a = monkey_eats | pear\n" +
+                        "b = eats_a_pear & -(a_monkey)\n" +
+                        "c = \"The\"_\"monkey\" | the_monkey_eats_a_banana\n" +
+                        "d = a_pear_and | eats_?_pear",
+
+                false);
+        Token[] tokens = textToTokens("The monkey eats a pear", normalizer);
+
+        LiteralAutomaton automaton = ruleSet.getAutomaton();
+        int[] hits = automaton.first(tokens);
+        int id = automaton.id(MatchParser.compileBody("eats_a_pear", false, normalizer)[0][0]);
+        assertEquals(2, hits[2 * id]);
+        assertEquals(5, hits[2 * id + 1]);
+
+        Map<String, MatchRange> eval = MatchEval.eval(ruleSet, tokens);
+        for (Map.Entry<String, MatchRange> evalEntry : eval.entrySet()) {
+            System.out.println(evalEntry.getKey() + " @ " + evalEntry.getValue());
+        }
+        assertTrue(eval.containsKey("a") && eval.containsKey("b") && eval.containsKey("c") && eval.containsKey("d"));
+        assertEquals(1, eval.get("a").getTokenStart());
+        assertEquals(0, eval.get("c").getTokenStart());
+    }
+
+    @Test
+    public void matchIds(){
+        Vocabulary vocabulary = new Vocabulary();
+        MatchRuleSet ruleSet = compile(
+                "fruit = apple | pear\n" +
+                        "meal = monkey_+_pear & \"The\"_monkey\n" +
+                        "drink = milk | beer",
+                false, vocabulary);
+        MatchRuleSet otherRuleSet = compile("animal = monkey_eats", false, vocabulary);
+
+        Token[] tokens = textToTokens("The monkey eats a pear", normalizer);
+        Map<String, MatchRange> eval = MatchEval.eval(ruleSet, tokens);
+        assertTrue(eval.containsKey("fruit") && eval.containsKey("meal") && eval.size() == 2);
+        assertEquals(1, eval.get("meal").getTokenStart());
+
+        // tokenized and encoded elsewhere
+        int[] ids = vocabulary.ids(Arrays.asList("the", "monkey", "eats", "a", "pear"));
+        eval = MatchEval.eval(ruleSet, ids);
+        assertTrue(eval.containsKey("fruit") && eval.size() == 1);
+        assertEquals(-1, eval.get("fruit").getCharStart());
+        assertTrue(MatchEval.eval(otherRuleSet, ids).containsKey("animal"));
+    }
+
+    @Test
+    public void matchLookupHierarchy(){
+        // defined top-down: every rule looks up a rule that is defined after it
+        StringBuilder rules = new StringBuilder();
+        for (int i = 30; i > 0; i--) {
+            rules.append("level").append(i).append(" = #level").append(i - 1).append(" | word").append(i).append(" | #level").append(i - 1).append("\n");
+        }
+        rules.append("level0 = pear\n");
+        rules.append("nofruit = bread & -#level0\n");
+        MatchRuleSet ruleSet = compile(rules.toString(), false);
+
+        assertEquals("level0", ruleSet.getLabels().get(0));
+        Map<String, MatchRange> eval = MatchEval.eval(ruleSet, textToTokens("Bread and a pear", normalizer));
+        assertEquals(31, eval.size());
+        assertEquals(3, eval.get("level30").getTokenStart());
+
+        eval = MatchEval.eval(ruleSet, textToTokens("Bread only", normalizer));
+        assertTrue(eval.containsKey("nofruit") && eval.size() == 1);
+    }
+
+    @Test
+    public void matchShared(){
+        MatchRuleSet ruleSet = compile(
+                "a = monkey_+_pear | banana\n" +
+                        "b = monkey_+_pear | banana\n" +
+                        "c = -banana & (apple | monkey_+_pear)\n" +
+                        "d = (banana | monkey_+_pear) & eats & -(monkey_+_pear)",
+                false);
+        // banana, monkey_+_pear, apple, eats
+        assertEquals(4, ruleSet.getAutomaton().size());
+
+        Token[] tokens = textToTokens("The monkey eats a pear", normalizer);
+        Map<String, MatchRange> eval = MatchEval.eval(ruleSet, tokens);
+        assertTrue(eval.containsKey("a") && eval.containsKey("b") && eval.containsKey("c") && eval.size() == 3);
+        assertEquals(eval.get("a").getTokenEnd(), eval.get("b").getTokenEnd());
+        assertEquals(MatchEval.evalParallel(ruleSet, tokens), eval);
+    }
+
+    @Test
+    public void matchAdaptive() throws IOException {
+        String rules = "a = (pear_+_apple | monkey) & -banana & (eats | drinks)\n" +
+                "b = #a & (apple | the_+_eats)\n" +
+                "c = -monkey | bread";
+        MatchRuleSet ruleSet = compile(rules, false);
+        MatchRuleSet fixed = compile(rules, false);
+        fixed.setAdaptive(false);
+        String[] texts = {"The monkey eats a pear", "A monkey drinks", "pear and apple, the monkey eats", "bread"};
+        for (int i = 0; i < 20_000; i++) {
+            // mostly monkeys
+            MatchEval.eval(ruleSet, textToTokens(texts[i % 10 == 0 ? 2 : i % 2], normalizer));
+        }
+        ruleSet.reorder();
+        for (String text : texts) {
+            Token[] tokens = textToTokens(text, normalizer);
+            assertEquals(text, MatchEval.eval(fixed, tokens), MatchEval.eval(ruleSet, tokens));
+        }
+        // the range is the one of the first literal in the original order
+        assertEquals(0, MatchEval.eval(ruleSet, textToTokens(texts[2], normalizer)).get("a").getTokenStart());
+
+        StringWriter saved = new StringWriter();
+        ruleSet.saveStatistics(saved);
+        MatchRuleSet restarted = compile(rules, false);
+        restarted.loadStatistics(new StringReader(saved.toString()));
+        StringWriter resaved = new StringWriter();
+        restarted.saveStatistics(resaved);
+        assertEquals(saved.toString(), resaved.toString());
+        assertTrue(saved.toString().contains("literal\t"));
+    }
+
+    @Test
+    public void matchBatch(){
+        MatchRuleSet ruleSet = compile(
+                "a = monkey_+_pear | banana\n" +
+                        "b = #a & -eats\n" +
+                        "c = the_*_apple & (monkey | bread)", false);
+        String[] texts = {"The monkey eats a pear", "banana", "", "the bread and the apple", "A monkey drinks"};
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            longText.append("the monkey drinks ");
+        }
+        List<Token[]> docs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            docs.add(textToTokens(i == 7 ? longText + "pear" : texts[i % texts.length], normalizer));
+        }
+        List<Map<String, MatchRange>> expected = new ArrayList<>();
+        for (Token[] doc : docs) {
+            expected.add(MatchEval.eval(ruleSet, doc));
+        }
+
+        assertEquals(expected, MatchEval.evalBatch(ruleSet, docs));
+        assertEquals(expected, MatchEval.evalBatch(ruleSet, docs, new ForkJoinPool(3)));
+        assertEquals(expected, MatchEval.evalStream(ruleSet, docs.stream(), 16).collect(Collectors.toList()));
+        assertTrue(MatchEval.evalBatch(ruleSet, new ArrayList<>()).isEmpty());
+        assertEquals(30_001, expected.get(7).get("a").getTokenEnd());
+    }
+
+    @Test
+    public void matchSession(){
+        MatchRuleSet ruleSet = compile(
+                "a = monkey_+_pear | banana\n" +
+                        "b = #a & -eats\n" +
+                        "c = the_*_apple & (monkey | bread)\n" +
+                        "d = -monkey | \"The\"_?_eats\n" +
+                        "e = *_eats & a_big", false);
+        String[] words = "The monkey eats a big pear and the bread the apple banana".split(" ");
+        Random random = new Random(42);
+        for (int run = 0; run < 200; run++) {
+            MatchSession session = new MatchSession(ruleSet);
+            List<Token> text = new ArrayList<>();
+            List<Integer> messages = new ArrayList<>();
+            for (int m = 0; m < 6; m++) {
+                StringBuilder message = new StringBuilder();
+                for (int w = random.nextInt(4); w > 0; w--) {
+                    message.append(words[random.nextInt(words.length)]).append(' ');
+                }
+                Token[] tokens = textToTokens(message.toString(), normalizer);
+                text.addAll(Arrays.asList(tokens));
+                messages.addAll(Collections.nCopies(tokens.length, m));
+                Map<String, MatchRange> expected = new HashMap<>();
+                for (MatchRange range : MatchEval.eval(ruleSet, text.toArray(new Token[text.size()])).values()) {
+                    // character offsets are per message
+                    boolean spans = range.getTokenStart() >= range.getTokenEnd()
+                            || !messages.get(range.getTokenStart()).equals(messages.get(range.getTokenEnd() - 1));
+                    expected.put(range.getLabel(), spans ? new MatchRange(range.getLabel(), range.getTokenStart(), range.getTokenEnd(), -1, -1) : range);
+                }
+                Map<String, MatchRange> labels = session.append(tokens);
+                assertEquals(text.toString(), expected, labels);
+            }
+            assertEquals(text.size(), session.length());
+        }
+
+        // a window keeps what was found
+        MatchSession session = new MatchSession(ruleSet, 5);
+        session.append(textToTokens("a big monkey", normalizer));
+        for (int i = 0; i < 100; i++) {
+            session.append(textToTokens("and bread", normalizer));
+        }
+        Map<String, MatchRange> labels = session.append(textToTokens("eats the apple", normalizer));
+        assertEquals(204, labels.get("c").getTokenStart());
+        assertEquals(0, labels.get("e").getTokenStart());
+        assertTrue(!labels.containsKey("d"));
+
+        // character offsets are counted per message, and unknown for a range that spans messages
+        session = new MatchSession(ruleSet);
+        labels = session.append(textToTokens("the monkey eats a big pear", normalizer));
+        assertEquals(new MatchRange("a", 1, 6, 4, 26), labels.get("a"));
+        session = new MatchSession(ruleSet);
+        session.append(textToTokens("the monkey", normalizer));
+        labels = session.append(textToTokens("eats a big pear", normalizer));
+        assertEquals(new MatchRange("a", 1, 6, -1, -1), labels.get("a"));
+        labels = session.append(textToTokens("a banana", normalizer));
+        assertEquals(new MatchRange("a", 1, 6, -1, -1), labels.get("a"));
+    }
+
+    @Test
+    public void matchRequiredWords(){
+        MatchRuleSet ruleSet = compile(
+                "a = (monkey_+_pear | banana) & -eats\n" +
+                        "b = (\"The\"_?_eats | ?_drinks) & (#a | apple)\n" +
+                        "c = -monkey | bread\n" +
+                        "d = *_pear", false);
+        String[][] expected = {
+                {"The monkey eats an apple", "b"},
+                {"the monkey eats an apple", ""},
+                {"a monkey drinks a pear", "a b d"},
+                {"bread and banana", "a c"},
+                {"", "c"}};
+        for (String[] e : expected) {
+            Map<String, MatchRange> eval = MatchEval.eval(ruleSet, textToTokens(e[0], normalizer));
+            assertEquals(e[0], e[1], String.join(" ", new TreeSet<>(eval.keySet())));
+        }
+    }
+
+    @Test
+    public void matchRuleIndex(){
+        StringBuilder rules = new StringBuilder(
+                "a = (monkey_+_pear | banana) & -eats\n" +
+                        "b = (\"The\"_?_eats | ?_drinks) & (#a | apple)\n" +
+                        "c = -monkey | bread\n" +
+                        "d = *_pear\n" +
+                        "e = the_monkey & (eats | drinks) & -#c\n" +
+                        "f = the_monkey & (drinks | eats)\n");
+        for (int i = 0; i < 1000; i++) {
+            // words without digits: the tokenizer splits those
+            String word = "word" + Integer.toString(i, 26).chars().mapToObj(ch -> String.valueOf((char) (Character.digit(ch, 26) + 'a'))).collect(Collectors.joining());
+            rules.append("w").append(i).append(" = ").append(word).append(" & (the | a)\n");
+        }
+        MatchRuleSet ruleSet = compile(rules.toString(), false);
+        RuleIndex index = new RuleIndex(ruleSet);
+
+        String[] words = "The monkey eats a big pear and the bread the apple banana drinks wordh wordbq".split(" ");
+        Random random = new Random(7);
+        for (int i = 0; i < 500; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = random.nextInt(8); w > 0; w--) {
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            Token[] tokens = textToTokens(text.toString(), normalizer);
+            assertEquals(text.toString(), MatchEval.eval(ruleSet, tokens), index.eval(tokens));
+        }
+        // w7, w8 and c, which is not indexed
+        assertEquals(3, index.candidates(textToTokens("the wordh and wordi", normalizer)));
+
+        // an evaluation in the sink of another evaluation does not disturb it
+        Token[] outer = textToTokens("the wordh and wordi", normalizer);
+        Token[] inner = textToTokens("The monkey eats a big pear", normalizer);
+        List<String> labels = new ArrayList<>();
+        int n = index.eval(outer, (labelId, tokenStart, tokenEnd, charStart, charEnd) -> {
+            labels.add(ruleSet.getLabel(labelId));
+            assertEquals(MatchEval.eval(ruleSet, inner), index.eval(inner));
+        });
+        assertEquals(MatchEval.eval(ruleSet, outer).size(), n);
+        assertEquals(new TreeSet<>(MatchEval.eval(ruleSet, outer).keySet()), new TreeSet<>(labels));
+    }
+
+    @Test
+    public void matchContext(){
+        String rules = "a = (monkey_+_pear | banana) & -eats\n" +
+                "b = (\"The\"_?_eats | ?_drinks) & (#a | apple)\n" +
+                "c = -monkey | bread\n" +
+                "d = *_pear\n" +
+                "e = the_monkey & (eats | drinks) & -#c\n";
+        MatchRuleSet ruleSet = compile(rules, false);
+        EvalContext context = new EvalContext(ruleSet);
+
+        String[] words = "The monkey eats a big pear and the bread the apple banana drinks".split(" ");
+        Random random = new Random(11);
+        for (int i = 0; i < 500; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = random.nextInt(i % 2 == 0 ? 20 : 4); w > 0; w--) {
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            Token[] tokens = textToTokens(text.toString(), normalizer);
+            // a new rule set: nothing of the previous documents is left
+            Map<String, MatchRange> expected = MatchEval.eval(compile(rules, false), tokens);
+            assertEquals(text.toString(), expected, MatchEval.eval(context, tokens).toMap());
+            assertEquals(expected.size(), context.size());
+            for (int k = 0; k < context.size(); k++) {
+                assertEquals(expected.get(context.label(k)).getTokenStart(), context.tokenStart(k));
+            }
+            assertEquals(text.toString(), expected, MatchEval.eval(ruleSet, tokens));
+        }
+    }
+
+    @Test
+    public void matchBudget(){
+        String rules = "a = (monkey_+_pear | banana) & -eats\n" +
+                "b = (\"The\"_?_eats | ?_drinks) & (#a | apple)\n" +
+                "c = -monkey | bread\n" +
+                "d = *_pear\n" +
+                "e = the_monkey & (eats | drinks) & -#c\n";
+        MatchRuleSet ruleSet = compile(rules, false);
+        EvalContext context = new EvalContext(ruleSet);
+
+        String[] words = "The monkey eats a big pear and the bread the apple banana drinks".split(" ");
+        Random random = new Random(12);
+        for (int i = 0; i < 500; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = random.nextInt(30); w > 0; w--) {
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            Token[] tokens = textToTokens(text.toString(), normalizer);
+            Map<String, MatchRange> expected = MatchEval.eval(ruleSet, tokens);
+
+            // the labels that are decided within the budget are the same as without a limit
+            Map<String, MatchRange> actual = MatchEval.eval(context.setBudget(random.nextInt(100)), tokens).toMap();
+            for (String label : ruleSet.getLabels()) {
+                if(context.isEvaluated(ruleSet.getLabelId(label))){
+                    assertEquals(text.toString(), expected.get(label), actual.get(label));
+                } else {
+                    assertFalse(actual.containsKey(label));
+                }
+            }
+
+            // nothing of a partial evaluation is left for the next document
+            assertEquals(text.toString(), expected, MatchEval.eval(context.setBudget(Long.MAX_VALUE), tokens).toMap());
+            assertTrue(context.isComplete());
+        }
+
+        Token[] tokens = textToTokens("The monkey eats a big pear", normalizer);
+        MatchEval.eval(context.setBudget(0), tokens);
+        assertFalse(context.isComplete());
+        for (int id = 0; id < ruleSet.getLabelCount(); id++) {
+            assertFalse(context.isEvaluated(id));
+        }
+        assertEquals(0, context.size());
+
+        MatchEval.eval(context.setBudget(Long.MAX_VALUE).setTimeout(1, TimeUnit.MINUTES), tokens);
+        assertTrue(context.isComplete());
+        EvalResult result = MatchEval.eval(ruleSet, tokens, 1, TimeUnit.MINUTES);
+        assertEquals(MatchEval.eval(ruleSet, tokens), result.getLabels());
+        assertTrue(result.isComplete());
+        assertTrue(result.notEvaluated().isEmpty());
+    }
+
+    @Test
+    public void matchTimeout(){
+        MatchRuleSet ruleSet = compile("a = the_*_apple\nb = monkey", false);
+        StringBuilder text = new StringBuilder("The monkey eats");
+        for (int i = 0; i < 5000; i++) {
+            text.append(" the big pear");
+        }
+        Token[] tokens = textToTokens(text.append(" the apple").toString(), normalizer);
+
+        // looking for the wildcard sequence in the long text takes longer than no time at all
+        EvalResult result = MatchEval.eval(ruleSet, tokens, 0, TimeUnit.NANOSECONDS);
+        assertFalse(result.isComplete());
+        assertTrue(result.notEvaluated().contains("a"));
+        assertFalse(result.getLabels().containsKey("a"));
+
+        result = MatchEval.eval(ruleSet, tokens, 1, TimeUnit.MINUTES);
+        assertTrue(result.isComplete());
+        assertEquals(MatchEval.eval(ruleSet, tokens), result.getLabels());
+    }
+
+    @Test
+    public void matchSelected(){
+        String rules = "a = (monkey_+_pear | banana) & -eats\n" +
+                "b = (\"The\"_?_eats | ?_drinks) & (#a | apple)\n" +
+                "c = -monkey | bread\n" +
+                "d = *_pear\n" +
+                "e = the_monkey & (eats | drinks) & -#c\n";
+        MatchRuleSet ruleSet = compile(rules, false);
+        List<List<String>> selections = Arrays.asList(
+                Arrays.asList("a"), Arrays.asList("b"), Arrays.asList("e", "d"), ruleSet.getLabels());
+
+        String[] words = "The monkey eats a big pear and the bread the apple banana drinks".split(" ");
+        Random random = new Random(13);
+        for (int i = 0; i < 500; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = random.nextInt(20); w > 0; w--) {
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            Token[] tokens = textToTokens(text.toString(), normalizer);
+            Map<String, MatchRange> all = MatchEval.eval(ruleSet, tokens);
+            for (List<String> labels : selections) {
+                Map<String, MatchRange> expected = new HashMap<>(all);
+                expected.keySet().retainAll(labels);
+                assertEquals(text.toString(), expected, MatchEval.eval(ruleSet, tokens, labels));
+            }
+        }
+
+        // only the rules that are needed
+        EvalContext context = new EvalContext(ruleSet).select(Arrays.asList("b"));
+        MatchEval.eval(context, textToTokens("The monkey eats a pear", normalizer));
+        assertTrue(context.isComplete());
+        assertTrue(context.isEvaluated(ruleSet.getLabelId("a")) && context.isEvaluated(ruleSet.getLabelId("b")));
+        assertFalse(context.isEvaluated(ruleSet.getLabelId("c")) || context.isEvaluated(ruleSet.getLabelId("d")));
+        assertEquals(0, context.size());
+        MatchEval.eval(context.select(null), textToTokens("The monkey eats a pear", normalizer));
+        assertTrue(context.isEvaluated(ruleSet.getLabelId("d")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void matchSelectedUnknown(){
+        MatchEval.eval(compile("a = apple", false), textToTokens("an apple", normalizer), Arrays.asList("a", "b"));
+    }
+
+    @Test
+    public void matchFirst(){
+        MatchRuleSet ruleSet = compile(
+                "greeting(10) = hello | hi\n" +
+                        "complaint(20) = broken | #angry\n" +
+                        "angry = hate | terrible\n" +
+                        "order(5) = buy | order",
+                false);
+        Token[] tokens = textToTokens("hi I hate this broken thing and want to buy another", normalizer);
+        List<MatchRange> first = MatchEval.first(ruleSet, tokens, 1);
+        assertEquals(1, first.size());
+        assertEquals("complaint", first.get(0).getLabel());
+        assertEquals(Arrays.asList("complaint", "greeting", "order", "angry"),
+                MatchEval.first(ruleSet, tokens, 10).stream().map(MatchRange::getLabel).collect(Collectors.toList()));
+        assertEquals(MatchEval.eval(ruleSet, tokens).get("greeting"), MatchEval.first(ruleSet, tokens, 2).get(1));
+
+        // the lower priority rules are not evaluated, except the ones that are looked up
+        EvalContext context = new EvalContext(ruleSet);
+        MatchEval.first(context, tokens, 1, (labelId, tokenStart, tokenEnd, charStart, charEnd) -> {});
+        assertTrue(context.isEvaluated(ruleSet.getLabelId("angry")));
+        assertFalse(context.isEvaluated(ruleSet.getLabelId("greeting")) || context.isEvaluated(ruleSet.getLabelId("order")));
+
+        String rules = "a(3) = (monkey_+_pear | banana) & -eats\n" +
+                "b(4) = (\"The\"_?_eats | ?_drinks) & (#a | apple)\n" +
+                "c = -monkey | bread\n" +
+                "d(3) = *_pear\n" +
+                "e(1) = the_monkey & (eats | drinks) & -#c\n";
+        ruleSet = compile(rules, false);
+        String[] words = "The monkey eats a big pear and the bread the apple banana drinks".split(" ");
+        Random random = new Random(14);
+        for (int i = 0; i < 500; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = random.nextInt(20); w > 0; w--) {
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            tokens = textToTokens(text.toString(), normalizer);
+            Map<String, MatchRange> expected = MatchEval.eval(ruleSet, tokens);
+            List<MatchRange> all = MatchEval.first(ruleSet, tokens, Integer.MAX_VALUE);
+            assertEquals(text.toString(), expected.size(), all.size());
+            for (int k = 0; k < all.size(); k++) {
+                assertEquals(text.toString(), expected.get(all.get(k).getLabel()), all.get(k));
+                assertTrue(k == 0 || ruleSet.getPriority(all.get(k - 1).getLabel()) >= ruleSet.getPriority(all.get(k).getLabel()));
+            }
+            int k = random.nextInt(4);
+            assertEquals(all.subList(0, Math.min(k, all.size())), MatchEval.first(ruleSet, tokens, k));
+        }
+    }
+
+    @Test
+    public void matchChunked(){
+        MatchRuleSet ruleSet = compile(
+                "a = the_big_monkey | banana_split\n" +
+                        "b = monkey_+_pear & -apple\n" +
+                        "c = \"The\"_?_eats | #a\n" +
+                        "d = *_pear | drinks_*_bread\n" +
+                        "e = monkey & eats & -#c\n",
+                false);
+        String[] words = "The the big monkey eats a pear apple bread banana split drinks".split(" ");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Random random = new Random(15);
+        for (int i = 0; i < 200; i++) {
+            // mostly other words, so the first occurrences lie anywhere in the text
+            Token[] tokens = new Token[random.nextInt(3000)];
+            double rare = random.nextDouble() * 0.02;
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < tokens.length; w++) {
+                text.append(random.nextDouble() < rare ? words[random.nextInt(words.length)] : "filler").append(' ');
+            }
+            tokens = textToTokens(text.toString(), normalizer);
+            Map<String, MatchRange> expected = MatchEval.eval(ruleSet, tokens);
+            assertEquals(expected, MatchEval.evalChunked(ruleSet, tokens, 1 + random.nextInt(100), pool));
+            assertEquals(expected, MatchEval.evalChunked(ruleSet, tokens));
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void matchParallelLevels(){
+        StringBuilder rules = new StringBuilder();
+        String[] words = new String[60];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = "word" + Integer.toString(i, 26).chars().mapToObj(ch -> String.valueOf((char) (Character.digit(ch, 26) + 'a'))).collect(Collectors.joining());
+        }
+        Random random = new Random(16);
+        // three levels of many rules, that share literals and clauses
+        for (int i = 0; i < 1500; i++) {
+            rules.append("a").append(i).append(" = ").append(words[random.nextInt(60)]).append("_*_").append(words[random.nextInt(60)])
+                    .append(" | (").append(words[random.nextInt(60)]).append(" & -").append(words[random.nextInt(60)]).append(")\n");
+        }
+        for (int i = 0; i < 1500; i++) {
+            rules.append("b").append(i).append(" = (#a").append(random.nextInt(1500)).append(" | ").append(words[random.nextInt(60)])
+                    .append(") & -#a").append(random.nextInt(1500)).append("\n");
+        }
+        for (int i = 0; i < 500; i++) {
+            rules.append("c").append(i).append(" = #b").append(random.nextInt(1500)).append(" & (#a").append(random.nextInt(1500))
+                    .append(" | ").append(words[random.nextInt(60)]).append("_?_").append(words[random.nextInt(60)]).append(")\n");
+        }
+        MatchRuleSet ruleSet = compile(rules.toString(), false);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int i = 0; i < 50; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = random.nextInt(100); w > 0; w--) {
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            Token[] tokens = textToTokens(text.toString(), normalizer);
+            Map<String, MatchRange> expected = MatchEval.eval(ruleSet, tokens);
+            assertEquals(expected, MatchEval.evalParallel(ruleSet, tokens, pool));
+            assertEquals(expected, MatchEval.evalParallel(ruleSet, tokens));
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void matchGroups(){
+        MatchRuleSet ruleSet = compile(
+                "colored = the_(red|dark_blue)_book\n" +
+                        "sized = a_[very]_(big|small)_book\n" +
+                        "any = (red|blue)_+_(book|pen) & -pencil\n" +
+                        "meta = #colored & #sized",
+                false);
+        Token[] tokens = textToTokens("I read the dark blue book and a very small book", normalizer);
+        Map<String, MatchRange> eval = MatchEval.eval(ruleSet, tokens);
+        assertEquals(2, eval.get("colored").getTokenStart());
+        assertEquals(6, eval.get("colored").getTokenEnd());
+        assertEquals(7, eval.get("sized").getTokenStart());
+        assertEquals(11, eval.get("sized").getTokenEnd());
+        assertTrue(eval.containsKey("any") && eval.containsKey("meta"));
+        assertEquals(eval, MatchEval.eval(ruleSet, new TokenIndex(tokens)));
+        assertEquals(eval, new RuleIndex(ruleSet).eval(tokens));
+        MatchSession session = new MatchSession(ruleSet);
+        session.append(textToTokens("I read the dark", normalizer));
+        Map<String, MatchRange> appended = session.append(textToTokens("blue book and a very small book", normalizer));
+        assertEquals(eval.keySet(), appended.keySet());
+        for (MatchRange range : eval.values()) {
+            assertEquals(range.getTokenStart(), appended.get(range.getLabel()).getTokenStart());
+            assertEquals(range.getTokenEnd(), appended.get(range.getLabel()).getTokenEnd());
+        }
+
+        eval = MatchEval.eval(ruleSet, textToTokens("the blue book and a small book near a red pencil", normalizer));
+        assertTrue(eval.containsKey("sized") && eval.size() == 1);
+
+        assertEquals("the_(red|dark_blue)_book", MatchParser.compileBody("the_(red | dark_blue)_book")[0][0].toString());
+        assertEquals("a_b", MatchParser.compileBody("a_-b")[0][0].toString());
+        for (String invalid : new String[]{"[very]", "a_(b & c)"}) {
+            try {
+                compile("x = " + invalid, false);
+                assertTrue(invalid, false);
+            } catch (IllegalArgumentException e){
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void matchBoundedGaps(){
+        MatchRuleSet ruleSet = compile(
+                "near = price_{0,3}_drop\n" +
+                        "far = price_*_drop\n" +
+                        "exact = the_{2}_price\n" +
+                        "least = price_{2,}_drop",
+                false);
+        Token[] tokens = textToTokens("the crude oil price did not really go down or drop and the price will drop", normalizer);
+        Map<String, MatchRange> eval = MatchEval.eval(ruleSet, tokens);
+        assertEquals(13, eval.get("near").getTokenStart());
+        assertEquals(3, eval.get("far").getTokenStart());
+        assertEquals(0, eval.get("exact").getTokenStart());
+        assertEquals(3, eval.get("least").getTokenStart());
+        assertEquals(11, eval.get("least").getTokenEnd());
+        assertEquals(eval, MatchEval.eval(ruleSet, new TokenIndex(tokens)));
+
+        eval = MatchEval.eval(ruleSet, textToTokens("the price of oil did not really drop", normalizer));
+        assertTrue(eval.containsKey("far") && eval.containsKey("least") && !eval.containsKey("near"));
+    }
+
+    @Test
+    public void matchProximity(){
+        MatchRuleSet ruleSet = compile(
+                "close = refund NEAR/3 order_number\n" +
+                        "tight = order_number NEAR/2 refund\n" +
+                        "adjacent = my NEAR/0 refund\n" +
+                        "apart = -(refund NEAR/1 money) & please",
+                false);
+        Token[] tokens = textToTokens("please refund my money now for order number 5 and the refund", normalizer);
+        Map<String, MatchRange> eval = MatchEval.eval(ruleSet, tokens);
+        assertEquals(6, eval.get("close").getTokenStart());
+        assertEquals(12, eval.get("close").getTokenEnd());
+        assertFalse(eval.containsKey("tight"));
+        assertEquals(1, eval.get("adjacent").getTokenStart());
+        assertEquals(3, eval.get("adjacent").getTokenEnd());
+        assertFalse(eval.containsKey("apart"));
+        assertEquals(eval, MatchEval.eval(ruleSet, new TokenIndex(tokens)));
+    }
+
+    @Test
+    public void matchCounts(){
+        MatchRuleSet ruleSet = compile(
+                "spam = refund{3,} & money\n" +
+                        "flood = refund{4,}\n" +
+                        "few = refund{1,2}\n" +
+                        "calm = -refund{4,} & \"Refund\"{1}\n" +
+                        "echo = #spam & money{2}",
+                false);
+        Token[] tokens = textToTokens("refund please, refund now or I want a Refund and my money", normalizer);
+        Map<String, MatchRange> eval = MatchEval.eval(ruleSet, tokens);
+        assertEquals(0, eval.get("spam").getTokenStart());
+        assertEquals(12, eval.get("spam").getTokenEnd());
+        assertEquals(3, (int) eval.get("spam").getCounts().get("refund"));
+        assertFalse(eval.containsKey("flood"));
+        assertFalse(eval.containsKey("few"));
+        assertEquals(1, (int) eval.get("calm").getCounts().get("Refund"));
+        assertEquals(2, eval.get("calm").getCounts().size());
+        assertFalse(eval.containsKey("echo"));
+        assertEquals(eval, MatchEval.eval(ruleSet, new TokenIndex(tokens)));
+        assertEquals(eval, MatchEval.evalChunked(ruleSet, tokens, 2, ForkJoinPool.commonPool()));
+        assertEquals(eval, MatchEval.evalParallel(ruleSet, tokens, ForkJoinPool.commonPool()));
+
+        // the same counts without a rule set
+        Literal[][] cnf = MatchParser.compileBody("refund{3}", true, normalizer);
+        assertArrayEquals(new int[]{0, 9}, MatchEval.findRange(tokens, cnf[0][0]));
+        assertArrayEquals(new int[]{0, 9}, MatchEval.findRange(new TokenIndex(tokens), cnf[0][0]));
+    }
+
+    @Test
+    public void matchSessionCounts(){
+        MatchRuleSet ruleSet = compile("spam = refund{3,}\nfew = refund{1,2}", false);
+        MatchSession session = new MatchSession(ruleSet);
+        Map<String, MatchRange> labels = session.append(textToTokens("refund please", normalizer));
+        assertFalse(labels.containsKey("spam"));
+        assertEquals(1, (int) labels.get("few").getCounts().get("refund"));
+        labels = session.append(textToTokens("a refund now", normalizer));
+        assertEquals(2, (int) labels.get("few").getCounts().get("refund"));
+        assertEquals(4, labels.get("few").getTokenEnd());
+
+        // crossing the upper bound of a count
+        labels = session.append(textToTokens("refund", normalizer));
+        assertFalse(labels.containsKey("few"));
+        assertEquals(0, labels.get("spam").getTokenStart());
+        assertEquals(6, labels.get("spam").getTokenEnd());
+        assertEquals(3, (int) labels.get("spam").getCounts().get("refund"));
+
+        // the range and count of a count without upper bound grow
+        labels = session.append(textToTokens("and another refund", normalizer));
+        assertEquals(9, labels.get("spam").getTokenEnd());
+        assertEquals(4, (int) labels.get("spam").getCounts().get("refund"));
+        Map<String, MatchRange> eval = MatchEval.eval(ruleSet, textToTokens("refund please a refund now refund and another refund", normalizer));
+        assertEquals(eval.keySet(), labels.keySet());
+        assertEquals(eval.get("spam").getCounts(), labels.get("spam").getCounts());
+    }
+
+    @Test
+    public void matchQuotedOperators(){
+        // quoted words are words, also when they look like operators
+        MatchRuleSet ruleSet = compile(
+                "bar = \"|\"\n" +
+                        "near = \"NEAR/2\"\n" +
+                        "gap = \"{2}\"\n" +
+                        "count = \"COUNT{2}\"\n" +
+                        "sequence = \"(\"_\"|\"_\")\"\n" +
+                        "mixed = (\"|\" | \"(\")_a", false);
+        Token[] tokens = Arrays.stream("b ( | ) NEAR/2 {2} COUNT{2} | a".split(" ")).map(Token::new).toArray(Token[]::new);
+        Map<String, MatchRange> eval = MatchEval.eval(ruleSet, tokens);
+        assertEquals(new TreeSet<>(Arrays.asList("bar", "near", "gap", "count", "sequence", "mixed")), new TreeSet<>(eval.keySet()));
+        assertEquals(5, eval.get("gap").getTokenStart());
+        assertEquals(1, eval.get("sequence").getTokenStart());
+        assertEquals(7, eval.get("mixed").getTokenStart());
+        assertEquals("(\"|\"|\"(\")_a", MatchParser.compileBody("(\"|\" | \"(\")_a")[0][0].toString());
+    }
+
+    @Test
+    public void matchSharedRules(){
+        // rule sets built from the same rules keep their own ids and codes
+        List<MatchRule> rules = new ArrayList<>();
+        for (String rule : new String[]{"a = the_big_monkey | banana_split", "b = monkey_+_pear & -apple", "c = eats & #b"}) {
+            rules.add(MatchParser.compileRule(rule, false, normalizer));
+        }
+        MatchRuleSet all = new MatchRuleSet(rules);
+        Token[] tokens = textToTokens("the big monkey eats a pear", normalizer);
+        Map<String, MatchRange> expected = MatchEval.eval(all, tokens);
+        assertEquals(new TreeSet<>(Arrays.asList("a", "b", "c")), new TreeSet<>(expected.keySet()));
+
+        Vocabulary other = new Vocabulary();
+        other.add("filler");
+        MatchRuleSet subset = new MatchRuleSet(Arrays.asList(rules.get(1), rules.get(0)), other, false);
+        assertEquals(new TreeSet<>(Arrays.asList("a", "b")), new TreeSet<>(MatchEval.eval(subset, tokens).keySet()));
+        assertEquals(expected, MatchEval.eval(all, tokens));
+    }
+
+    @Test
+    public void matchDroppedRuleSet() throws InterruptedException {
+        // the contexts a rule set evaluates documents with do not keep it reachable
+        MatchRuleSet ruleSet = compile("a = the_big_monkey | banana_split\nb = eats & #a", false);
+        Token[] tokens = textToTokens("the big monkey eats a pear", normalizer);
+        assertEquals(MatchEval.eval(ruleSet, tokens).keySet(), MatchEval.evalParallel(ruleSet, tokens).keySet());
+        WeakReference<MatchRuleSet> reference = new WeakReference<>(ruleSet);
+        ruleSet = null;
+        for (int i = 0; i < 100 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void matchCountAbsent(){
+        // a word that should not occur is negated instead
+        compile("x = refund{0,2}", false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void matchProximityOperands(){
+        // the operands of NEAR/k are sequences of words
+        compile("x = (refund | money) NEAR/2 order", false);
+    }
+
+    @Test
+    public void matchSegments(){
+        MatchRuleSet ruleSet = compile(
+                "together(segment) = apple & pear\n" +
+                        "anywhere = apple & pear\n" +
+                        "fruit = apple | pear\n" +
+                        "sentence(segment) = #fruit & -banana\n",
+                false);
+        String text = "I like an apple. The pear is nice! A banana and a pear.";
+        Token[] tokens = textToTokens(text, normalizer);
+        assertEquals(3, Segmenter.sentences(text, tokens));
+        Map<String, MatchRange> eval = MatchEval.eval(ruleSet, tokens);
+        assertFalse(eval.containsKey("together"));
+        assertTrue(eval.containsKey("anywhere"));
+        assertEquals(3, eval.get("sentence").getTokenStart());
+        // a session evaluates the segmented rules per segment as well
+        MatchSession session = new MatchSession(ruleSet);
+        tokens = textToTokens("I like an apple. The pear is nice!", normalizer);
+        Segmenter.sentences("I like an apple. The pear is nice!", tokens);
+        Map<String, MatchRange> appended = session.append(tokens);
+        assertFalse(appended.containsKey("together"));
+        assertEquals(MatchEval.eval(ruleSet, tokens), appended);
+        tokens = textToTokens("A banana and an apple with a pear.", normalizer);
+        appended = session.append(tokens);
+        assertEquals(12, appended.get("together").getTokenStart());
+        assertEquals(3, appended.get("sentence").getTokenStart());
+        // a single segment
+        eval = MatchEval.eval(ruleSet, textToTokens(text, normalizer));
+        assertTrue(eval.containsKey("together") && !eval.containsKey("sentence"));
+
+        assertEquals(1, Segmenter.sentences("Fruit, e.g. the apple and 3.5 pears", textToTokens("Fruit, e.g. the apple and 3.5 pears", normalizer)));
+        text = "One line.\nNext line.\n\nA new paragraph";
+        assertEquals(2, Segmenter.paragraphs(text, textToTokens(text, normalizer)));
+
+        String rules = "a(segment) = (monkey_+_pear | banana) & -eats\n" +
+                "c = -monkey | bread\n" +
+                "d(segment) = *_pear\n" +
+                "e(segment) = the_monkey & (eats | drinks) & -#c\n";
+        ruleSet = compile(rules, false);
+        MatchRuleSet plain = compile(rules.replace("(segment)", ""), false);
+        RuleIndex index = new RuleIndex(ruleSet);
+        String[] words = "The monkey eats a big pear and the bread the apple banana drinks".split(" ");
+        Random random = new Random(17);
+        for (int i = 0; i < 300; i++) {
+            tokens = new Token[random.nextInt(40)];
+            int segment = 0;
+            for (int t = 0; t < tokens.length; t++) {
+                segment += random.nextInt(5) == 0 ? 1 : 0;
+                tokens[t] = textToTokens(words[random.nextInt(words.length)], normalizer)[0].setSegment(segment);
+            }
+            String message = Arrays.toString(tokens);
+            Map<String, MatchRange> expected = new HashMap<>();
+            if(MatchEval.eval(plain, tokens).containsKey("c")){
+                expected.put("c", MatchEval.eval(plain, tokens).get("c"));
+            }
+            for (int from = 0, to; from < tokens.length; from = to) {
+                for (to = from + 1; to < tokens.length && tokens[to].getSegment() == tokens[from].getSegment(); to++);
+                for (MatchRange range : MatchEval.eval(plain, Arrays.copyOfRange(tokens, from, to)).values()) {
+                    if(!range.getLabel().equals("c") && !expected.containsKey(range.getLabel())){
+                        expected.put(range.getLabel(), new MatchRange(range.getLabel(), from + range.getTokenStart(), from + range.getTokenEnd(),
+                                tokens[from + range.getTokenStart()].getCharStart(), tokens[from + range.getTokenEnd() - 1].getCharEnd()));
+                    }
+                }
+            }
+            assertEquals(message, expected, MatchEval.eval(ruleSet, tokens));
+            assertEquals(message, expected, MatchEval.evalParallel(ruleSet, tokens));
+            assertEquals(message, expected, MatchEval.evalChunked(ruleSet, tokens));
+            assertEquals(message, expected, index.eval(tokens));
+            assertEquals(message, expected.size(), MatchEval.first(ruleSet, tokens, 10).size());
+
+            session = new MatchSession(ruleSet);
+            appended = session.append(new Token[0]);
+            for (int from = 0, to; from < tokens.length; from = to) {
+                to = Math.min(tokens.length, from + 1 + random.nextInt(10));
+                appended = session.append(Arrays.copyOfRange(tokens, from, to));
+            }
+            assertEquals(message, expected.keySet(), appended.keySet());
+            for (MatchRange range : expected.values()) {
+                assertEquals(message, range.getTokenStart(), appended.get(range.getLabel()).getTokenStart());
+                assertEquals(message, range.getTokenEnd(), appended.get(range.getLabel()).getTokenEnd());
+            }
+        }
+    }
+
+    @Test
+    public void matchSink(){
+        MatchRuleSet ruleSet = compile(
+                "fruit = apple | pear\n" +
+                        "animal = bear & -beer OR monkey\n" +
+                        "drink = milk | beer | cocktail\n" +
+                        "food = bread | #fruit",
+                false);
+        assertEquals(4, ruleSet.getLabelCount());
+        assertEquals(-1, ruleSet.getLabelId("vegetable"));
+
+        Token[] tokens = textToTokens("The monkey eats a pear", normalizer);
+        Map<String, MatchRange> expected = MatchEval.eval(ruleSet, tokens);
+        Map<String, MatchRange> actual = new HashMap<>();
+        int n = MatchEval.eval(ruleSet, tokens, (labelId, tokenStart, tokenEnd, charStart, charEnd) -> {
+            String label = ruleSet.getLabel(labelId);
+            actual.put(label, new MatchRange(label, tokenStart, tokenEnd, charStart, charEnd));
+        });
+        assertEquals(3, n);
+        assertEquals(expected, actual);
+        assertEquals(expected.get("fruit").getCharStart(), actual.get("fruit").getCharStart());
+
+        long[] bits = MatchEval.classify(ruleSet, tokens, null);
+        for (String label : ruleSet.getLabels()) {
+            int id = ruleSet.getLabelId(label);
+            assertEquals(label, expected.containsKey(label), (bits[id >> 6] & 1L << id) != 0);
+        }
+        // reused
+        assertTrue(bits == MatchEval.classify(ruleSet, textToTokens("I like a cocktail", normalizer), bits));
+        assertEquals(1L << ruleSet.getLabelId("drink"), bits[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void matchLookupCycle(){
+        compile("a = x | #b\nb = y & #c\nc = #a", false);
+    }
+
     @Test
     public void matchSimple4n(){
-        MatchRuleSet ruleSet = MatchParser.compileRuleSet(
+        MatchRuleSet ruleSet = compile(
                 "fruit = apple | pear\n" +
                         "animal = bear & -beer OR monkey\n" +
                         "drink = milk | beer | cocktail\n" +
                         "food = bread | #fruit",
 
-                false, normalizer);
+                false);
 
         Map<String, MatchRange> eval = null;
         StopWatch stopWatch = new StopWatch();
@@ -116,7 +1013,7 @@ public class RuleTest {
 
     @Test
     public void matchSimple4nMarkup(){
-        MatchRuleSet ruleSet = MatchParser.compileRuleSet(
+        MatchRuleSet ruleSet = compile(
                 "// LANG = [ar,en], tokenize=word\n" +
                         "// comment\n" +
                         "\n" +
@@ -131,7 +1028,7 @@ public class RuleTest {
                         "food6 = bread | #fruit\n" +
                         "food7 = bread | #fruit\n",
 
-                false, normalizer);
+                false);
 
         Map<String, MatchRange> eval = null;
         StopWatch stopWatch = new StopWatch();
@@ -154,7 +1051,7 @@ public class RuleTest {
 
     @Test
     public void matchSimple4nMarkupPar(){
-        MatchRuleSet ruleSet = MatchParser.compileRuleSet(
+        MatchRuleSet ruleSet = compile(
                 "// LANG = [ar,en], tokenize=word\n" +
                         "// comment\n" +
                         "\n" +
@@ -169,7 +1066,7 @@ public class RuleTest {
                         "food6 = bread | #fruit\n" +
                         "food7 = bread | #fruit\n",
 
-                false, normalizer);
+                false);
 
         Map<String, MatchRange> eval = null;
         StopWatch stopWatch = new StopWatch();